@@ -0,0 +1,172 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Executa microbenchmarks sem depender de bibliotecas externas, no mesmo esquema do JMH: algumas iteracoes de
+ * aquecimento, para o JIT compilar o codigo medido, seguidas das iteracoes medidas, cada uma com duracao fixa.
+ * <p>
+ * Dentro de cada iteracao a operacao roda em lotes, e o relogio so eh lido entre um lote e outro, para que operacoes
+ * de poucos nanossegundos nao medam o proprio System.nanoTime(). O tamanho do lote eh calibrado no aquecimento.
+ * O valor retornado por cada operacao eh acumulado em sink, para que o JIT nao elimine o codigo medido.
+ * <p>
+ * O resultado de cada benchmark eh uma linha em CSV ou JSON, para ser comparado entre execucoes. Com um baseline (um
+ * CSV de uma execucao anterior), a diferenca para ele eh impressa a parte, sem mudar o formato do resultado.
+ */
+class BenchmarkRunner {
+
+    static final String CSV_HEADER = "benchmark,param,iterations,ops,nsPerOp,stdevNs,minNs,maxNs";
+
+    //Duracao minima de um lote, para que a leitura do relogio seja desprezivel
+    private static final long MIN_BATCH_NANOS = 10_000;
+
+    /**
+     * Operacao medida. Retorna qualquer valor que dependa do trabalho feito.
+     */
+    interface Operation {
+
+        long run() throws Exception;
+    }
+
+    private final int warmupIterations;
+
+    private final int iterations;
+
+    private final long iterationNanos;
+
+    private final boolean json;
+
+    private final PrintStream out;
+
+    private final PrintStream report;
+
+    //Resultado de uma execucao anterior, por "benchmark,param", ou null
+    private final Map<String, Double> baseline;
+
+    private long sink;
+
+    BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis, boolean json, PrintStream out,
+                    PrintStream report, String baselineFile) throws IOException {
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+        this.json = json;
+        this.out = out;
+        this.report = report;
+        this.baseline = baselineFile != null ? readBaseline(baselineFile) : null;
+        if (!json) {
+            out.println(CSV_HEADER);
+        }
+    }
+
+    /**
+     * Mede a operacao e imprime o resultado.
+     */
+    void measure(String benchmark, String param, Operation operation) throws Exception {
+        long batch = 1;
+        for (int i = 0; i < warmupIterations; i++) {
+            batch = calibrate(operation, batch);
+            runIteration(operation, batch);
+        }
+        batch = calibrate(operation, batch);
+
+        final double[] samples = new double[iterations];
+        long ops = 0;
+        for (int i = 0; i < iterations; i++) {
+            final long start = System.nanoTime();
+            final long done = runIteration(operation, batch);
+            samples[i] = (double) (System.nanoTime() - start) / done;
+            ops += done;
+        }
+
+        double sum = 0;
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double sample : samples) {
+            sum += sample;
+            min = Math.min(min, sample);
+            max = Math.max(max, sample);
+        }
+        final double mean = sum / samples.length;
+        double squares = 0;
+        for (double sample : samples) {
+            squares += (sample - mean) * (sample - mean);
+        }
+        final double stdev = samples.length > 1 ? Math.sqrt(squares / (samples.length - 1)) : 0;
+
+        if (json) {
+            out.println(String.format(Locale.ROOT, "{\"benchmark\":\"%s\",\"param\":\"%s\",\"iterations\":%d,"
+                            + "\"ops\":%d,\"nsPerOp\":%.2f,\"stdevNs\":%.2f,\"minNs\":%.2f,\"maxNs\":%.2f}",
+                    benchmark, param, iterations, ops, mean, stdev, min, max));
+        } else {
+            out.println(String.format(Locale.ROOT, "%s,%s,%d,%d,%.2f,%.2f,%.2f,%.2f",
+                    benchmark, param, iterations, ops, mean, stdev, min, max));
+        }
+        out.flush();
+
+        if (baseline != null) {
+            final Double previous = baseline.get(benchmark + "," + param);
+            if (previous != null) {
+                report.println(String.format(Locale.ROOT, "%s %s: %.2f ns/op, baseline %.2f ns/op (%+.1f%%)",
+                        benchmark, param, mean, previous, (mean / previous - 1) * 100));
+            }
+        }
+    }
+
+    /**
+     * Aumenta o lote ate ele levar ao menos MIN_BATCH_NANOS.
+     */
+    private long calibrate(Operation operation, long batch) throws Exception {
+        while (true) {
+            final long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                sink += operation.run();
+            }
+            if (System.nanoTime() - start >= MIN_BATCH_NANOS) {
+                return batch;
+            }
+            batch *= 2;
+        }
+    }
+
+    /**
+     * Executa lotes da operacao ate completar iterationNanos. Retorna o numero de operacoes executadas.
+     */
+    private long runIteration(Operation operation, long batch) throws Exception {
+        final long deadline = System.nanoTime() + iterationNanos;
+        long ops = 0;
+        do {
+            for (long i = 0; i < batch; i++) {
+                sink += operation.run();
+            }
+            ops += batch;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    /**
+     * Valor acumulado das operacoes. Impresso no fim da execucao para que nada do que foi medido seja descartado.
+     */
+    long getSink() {
+        return sink;
+    }
+
+    private static Map<String, Double> readBaseline(String file) throws IOException {
+        final Map<String, Double> results = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            final String[] fields = line.split(",");
+            if (fields.length < 5 || line.equals(CSV_HEADER)) {
+                continue;
+            }
+            results.put(fields[0] + "," + fields[1], Double.parseDouble(fields[4]));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,283 @@
+package br.usp.redes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmarks dos caminhos que crescem com o numero de clientes e contatos:
+ * <ul>
+ * <li>parseContactsFromMessage : leitura de um CLIST com N contatos pelo cliente.</li>
+ * <li>loadContactGraph : carga de um arquivo de clientes com N clientes de 5 contatos cada.</li>
+ * <li>contactGraphIdOf : busca do id de um cliente pelo nome em um grafo com N clientes.</li>
+ * <li>registryGet : busca de um cliente conectado pelo nome, com N clientes conectados.</li>
+ * <li>presenceFanout : conexao e desconexao de um cliente que eh contato de N clientes conectados, incluindo os
+ * CONAT e CONIN colocados nas filas de saida deles e a retirada dessas mensagens das filas.</li>
+ * </ul>
+ * Cada linha do resultado traz o tempo medio por operacao em nanossegundos, com o desvio padrao, o minimo e o maximo
+ * entre as iteracoes medidas.
+ * <p>
+ * Uso: java -cp server.jar:client.jar:bench.jar br.usp.redes.Benchmarks [--filter=regex] [--warmup=N]
+ * [--iterations=N] [--time-ms=N] [--format=csv|json] [--out=arquivo] [--baseline=arquivo.csv]
+ */
+public class Benchmarks {
+
+    private static final int CONTACTS_PER_CLIENT = 5;
+
+    private static final int[] CONTACT_LIST_SIZES = {10, 100, 1000, 10000};
+
+    private static final int[] CLIENTS_FILE_SIZES = {1000, 10000, 100000};
+
+    private static final int[] REGISTRY_SIZES = {1000, 100000, 1000000};
+
+    private static final int[] FANOUT_SIZES = {10, 100, 1000, 10000};
+
+    private Pattern filter;
+
+    private int warmup = 3;
+
+    private int iterations = 5;
+
+    private long timeMillis = 1000;
+
+    private boolean json;
+
+    private String outFile;
+
+    private String baselineFile;
+
+    private BenchmarkRunner runner;
+
+    private final List<File> tempFiles = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        final Benchmarks benchmarks = new Benchmarks();
+        for (String arg : args) {
+            final String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--filter=")) {
+                benchmarks.filter = Pattern.compile(value);
+            } else if (arg.startsWith("--warmup=")) {
+                benchmarks.warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--iterations=")) {
+                benchmarks.iterations = Integer.parseInt(value);
+            } else if (arg.startsWith("--time-ms=")) {
+                benchmarks.timeMillis = Long.parseLong(value);
+            } else if (arg.startsWith("--format=")) {
+                if (!value.equals("csv") && !value.equals("json")) {
+                    throw new IllegalArgumentException("Formato invalido: " + value);
+                }
+                benchmarks.json = value.equals("json");
+            } else if (arg.startsWith("--out=")) {
+                benchmarks.outFile = value;
+            } else if (arg.startsWith("--baseline=")) {
+                benchmarks.baselineFile = value;
+            } else {
+                throw new IllegalArgumentException("Opcao invalida: " + arg);
+            }
+        }
+        benchmarks.run();
+    }
+
+    private void run() throws Exception {
+        final PrintStream report = System.out;
+        //Silencia as mensagens de conexao e desconexao do servidor
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        final PrintStream out = outFile != null ? new PrintStream(new FileOutputStream(outFile), true) : report;
+        try {
+            runner = new BenchmarkRunner(warmup, iterations, timeMillis, json, out, System.err, baselineFile);
+            parseContactsFromMessage();
+            loadContactGraph();
+            contactGraphIdOf();
+            registryGet();
+            presenceFanout();
+            System.err.println("sink=" + runner.getSink());
+        } finally {
+            if (out != report) {
+                out.close();
+            }
+            for (File file : tempFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    private boolean selected(String benchmark) {
+        return filter == null || filter.matcher(benchmark).find();
+    }
+
+    private void parseContactsFromMessage() throws Exception {
+        if (!selected("parseContactsFromMessage")) {
+            return;
+        }
+        for (int size : CONTACT_LIST_SIZES) {
+            final StringBuilder message = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    message.append(';');
+                }
+                message.append("u").append(i).append("/10.0.").append(i / 256 % 256).append('.').append(i % 256)
+                        .append(':').append(10000 + i % 50000);
+            }
+            final String contacts = message.toString();
+            runner.measure("parseContactsFromMessage", String.valueOf(size),
+                    () -> MessageParser.parseContactsFromMessage(contacts).size());
+        }
+    }
+
+    private void loadContactGraph() throws Exception {
+        if (!selected("loadContactGraph")) {
+            return;
+        }
+        for (int size : CLIENTS_FILE_SIZES) {
+            final String path = clientsFile(size);
+            runner.measure("loadContactGraph", String.valueOf(size),
+                    () -> FilesInterpreter.loadContactGraph(path).size());
+        }
+    }
+
+    private void contactGraphIdOf() throws Exception {
+        if (!selected("contactGraphIdOf")) {
+            return;
+        }
+        for (int size : CLIENTS_FILE_SIZES) {
+            final ContactGraph graph = FilesInterpreter.loadContactGraph(clientsFile(size));
+            final String[] names = lookupNames(size);
+            final int[] next = {0};
+            runner.measure("contactGraphIdOf", String.valueOf(size), () -> {
+                final int i = next[0];
+                next[0] = i + 1 == names.length ? 0 : i + 1;
+                return graph.idOf(names[i]);
+            });
+        }
+    }
+
+    private void registryGet() throws Exception {
+        if (!selected("registryGet")) {
+            return;
+        }
+        for (int size : REGISTRY_SIZES) {
+            final ClientRegistry registry = new ClientRegistry();
+            for (int i = 0; i < size; i++) {
+                registry.register(newClient("u" + i));
+            }
+            final String[] names = lookupNames(size);
+            final int[] next = {0};
+            runner.measure("registryGet", String.valueOf(size), () -> {
+                final int i = next[0];
+                next[0] = i + 1 == names.length ? 0 : i + 1;
+                return registry.get(names[i]) != null ? 1 : 0;
+            });
+        }
+    }
+
+    /**
+     * Sobe o estado do servidor com um arquivo em que "targetN" eh contato dos clientes w0 a w(N-1), conecta os
+     * clientes w e mede registerClient e unregisterClient de cada "targetN".
+     */
+    private void presenceFanout() throws Exception {
+        if (!selected("presenceFanout")) {
+            return;
+        }
+        final int watchers = FANOUT_SIZES[FANOUT_SIZES.length - 1];
+        final File file = tempFile();
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (int size : FANOUT_SIZES) {
+                writer.println("target" + size);
+            }
+            for (int w = 0; w < watchers; w++) {
+                final StringBuilder line = new StringBuilder("w" + w);
+                for (int size : FANOUT_SIZES) {
+                    if (w < size) {
+                        line.append(";target").append(size);
+                    }
+                }
+                writer.println(line);
+            }
+        }
+        Main.init(ServerConfig.parse(new String[]{"--clients-file=" + file.getAbsolutePath(),
+                "--watch-clients-file=false", "--coalesce-ms=0", "--log-level=warn"}));
+
+        final List<Client> connected = new ArrayList<>();
+        for (int w = 0; w < watchers; w++) {
+            final Client c = newClient("w" + w);
+            c.setWriter(Main.newOutboundQueue(null, null));
+            if (!Main.registerClient(c)) {
+                throw new IllegalStateException("Nao registrou " + c.getName());
+            }
+            connected.add(c);
+        }
+
+        for (int size : FANOUT_SIZES) {
+            final Client target = newClient("target" + size);
+            target.setWriter(Main.newOutboundQueue(null, null));
+            final List<Client> notified = connected.subList(0, size);
+            runner.measure("presenceFanout", String.valueOf(size), () -> {
+                Main.registerClient(target);
+                Main.unregisterClient(target);
+                long bytes = 0;
+                for (Client c : notified) {
+                    final OutboundQueue queue = c.getWriter();
+                    ByteBuffer message;
+                    while ((message = queue.poll()) != null) {
+                        bytes += message.remaining();
+                    }
+                }
+                return bytes;
+            });
+        }
+    }
+
+    /**
+     * Arquivo de clientes "u0" a "u(size-1)", cada um com os CONTACTS_PER_CLIENT seguintes como contatos.
+     */
+    private String clientsFile(int size) throws IOException {
+        final File file = tempFile();
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (int i = 0; i < size; i++) {
+                final StringBuilder line = new StringBuilder("u" + i);
+                for (int c = 1; c <= CONTACTS_PER_CLIENT; c++) {
+                    line.append(";u").append((i + c) % size);
+                }
+                writer.println(line);
+            }
+        }
+        return file.getAbsolutePath();
+    }
+
+    private File tempFile() throws IOException {
+        final File file = File.createTempFile("clients", ".txt");
+        file.deleteOnExit();
+        tempFiles.add(file);
+        return file;
+    }
+
+    /**
+     * Nomes a procurar, em ordem embaralhada e em objetos String diferentes dos registrados, como os lidos da rede.
+     */
+    private static String[] lookupNames(int size) {
+        final int count = Math.min(size, 65536);
+        final String[] names = new String[count];
+        //Passo primo com size, para visitar nomes espalhados pelo indice
+        final long step = 7919;
+        for (int i = 0; i < count; i++) {
+            names[i] = new StringBuilder("u").append(i * step % size).toString();
+        }
+        return names;
+    }
+
+    private static Client newClient(String name) {
+        final Client c = new Client();
+        c.setName(name);
+        c.setIp("127.0.0.1");
+        c.setPort("10000");
+        return c;
+    }
+}
@@ -0,0 +1,288 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Historico local das mensagens enviadas e recebidas, para que a conversa nao se perca ao fechar o cliente sem
+ * precisar guarda-la inteira no StyledDocument.
+ * <p>
+ * As mensagens vao para um log so de acrescimo, LOG_FILE, cada uma como [tamanho: 4 bytes][instante em ms: 8 bytes]
+ * [enviada: 1 byte][contato: 2 bytes de tamanho + UTF-8][texto em UTF-8]. A posicao de cada mensagem no log vai para
+ * dois indices mapeados em memoria: o geral (INDEX_FILE) e o do contato ("c_contato.idx"), cada um com
+ * [quantidade: 8 bytes] seguida das posicoes, de 8 bytes cada. Assim uma pagina qualquer do historico eh lida com
+ * acesso direto ao log, sem percorre-lo, e abrir o historico custa o mesmo com qualquer tamanho.
+ * <p>
+ * O log e os indices sobrevivem a queda do processo, mas nao a do sistema: nao ha force() a cada mensagem. A
+ * quantidade de cada indice so eh gravada depois da posicao, entao uma queda no meio deixa no maximo uma mensagem no
+ * log fora dos indices.
+ */
+class ChatHistory {
+
+    private static final String LOG_FILE = "mensagens.log";
+
+    private static final String INDEX_FILE = "mensagens.idx";
+
+    private static final String CONTACT_INDEX_SUFFIX = ".idx";
+
+    //Posicoes acrescentadas ao mapeamento de um indice de cada vez que ele enche
+    private static final int INDEX_GROWTH = 64 * 1024;
+
+    private static final int RECORD_HEADER_LENGTH = 4;
+
+    //Limite de uma mensagem lida do log, para nao alocar um buffer enorme por causa de um tamanho corrompido
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    /**
+     * Uma mensagem do historico.
+     */
+    static class Entry {
+
+        private final long timestamp;
+
+        private final boolean sent;
+
+        private final String contact;
+
+        private final String text;
+
+        Entry(long timestamp, boolean sent, String contact, String text) {
+            this.timestamp = timestamp;
+            this.sent = sent;
+            this.contact = contact;
+            this.text = text;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Se a mensagem foi enviada por este cliente, em vez de recebida.
+         */
+        boolean isSent() {
+            return sent;
+        }
+
+        /**
+         * Contato ou grupo com quem a mensagem foi trocada.
+         */
+        String getContact() {
+            return contact;
+        }
+
+        /**
+         * Texto como foi mostrado na area de mensagens.
+         */
+        String getText() {
+            return text;
+        }
+    }
+
+    private final Path directory;
+
+    private final FileChannel log;
+
+    private final OffsetIndex index;
+
+    //Indices dos contatos, abertos na primeira mensagem com cada um
+    private final Map<String, OffsetIndex> contactIndexes = new HashMap<>();
+
+    //Protege o log e os indices, usados pela thread do Swing, pela do servidor e pela dos contatos
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private ChatHistory(Path directory, FileChannel log, OffsetIndex index) {
+        this.directory = directory;
+        this.log = log;
+        this.index = index;
+    }
+
+    /**
+     * Abre (ou cria) o historico guardado em directory.
+     */
+    static ChatHistory open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        final FileChannel log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final OffsetIndex index = new OffsetIndex(directory.resolve(INDEX_FILE));
+        //Descarta uma mensagem que ficou no log sem entrar no indice, para que o log termine na ultima indexada
+        final long count = index.size();
+        if (count > 0) {
+            final long last = index.get(count - 1);
+            final ByteBuffer length = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            log.read(length, last);
+            log.truncate(last + RECORD_HEADER_LENGTH + length.getInt(0));
+        }
+        return new ChatHistory(directory, log, index);
+    }
+
+    /**
+     * Acrescenta uma mensagem trocada com contact (um contato ou grupo) ao historico.
+     */
+    void append(String contact, boolean sent, String text) throws IOException {
+        final byte[] contactBytes = contact.getBytes(StandardCharsets.UTF_8);
+        final byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        final int length = 8 + 1 + 2 + contactBytes.length + textBytes.length;
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        record.putInt(length).putLong(System.currentTimeMillis()).put((byte) (sent ? 1 : 0));
+        record.putShort((short) contactBytes.length).put(contactBytes).put(textBytes).flip();
+        lock.lock();
+        try {
+            final long position = log.size();
+            while (record.hasRemaining()) {
+                log.write(record, position + record.position());
+            }
+            index.append(position);
+            contactIndex(contact, true).append(position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Numero de mensagens no historico.
+     */
+    long size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ate count mensagens, em ordem, terminando antes da mensagem de numero end (0 eh a mais antiga).
+     */
+    List<Entry> page(long end, int count) throws IOException {
+        lock.lock();
+        try {
+            return read(index, end, count);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * As ultimas count mensagens trocadas com contact, em ordem.
+     */
+    List<Entry> contactTail(String contact, int count) throws IOException {
+        lock.lock();
+        try {
+            final OffsetIndex contactIndex = contactIndex(contact, false);
+            return contactIndex != null ? read(contactIndex, contactIndex.size(), count) : new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Entry> read(OffsetIndex offsets, long end, int count) throws IOException {
+        end = Math.min(end, offsets.size());
+        final long start = Math.max(0, end - count);
+        final List<Entry> entries = new ArrayList<>((int) (end - start));
+        final ByteBuffer length = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        for (long i = start; i < end; i++) {
+            final long position = offsets.get(i);
+            length.clear();
+            log.read(length, position);
+            final int recordLength = length.getInt(0);
+            if (recordLength < 11 || recordLength > MAX_RECORD_LENGTH) {
+                throw new IOException("Mensagem invalida no historico, na posicao " + position);
+            }
+            final ByteBuffer record = ByteBuffer.allocate(recordLength);
+            while (record.hasRemaining()) {
+                if (log.read(record, position + RECORD_HEADER_LENGTH + record.position()) < 0) {
+                    throw new IOException("Historico terminou no meio de uma mensagem");
+                }
+            }
+            record.flip();
+            final long timestamp = record.getLong();
+            final boolean sent = record.get() != 0;
+            final int contactLength = record.getShort() & 0xFFFF;
+            final String contact = new String(record.array(), record.position(), contactLength,
+                    StandardCharsets.UTF_8);
+            record.position(record.position() + contactLength);
+            final String text = new String(record.array(), record.position(), record.remaining(),
+                    StandardCharsets.UTF_8);
+            entries.add(new Entry(timestamp, sent, contact, text));
+        }
+        return entries;
+    }
+
+    /**
+     * Indice do contato, aberto do disco na primeira vez. Retorna null se ele nao existe e create eh false.
+     */
+    private OffsetIndex contactIndex(String contact, boolean create) throws IOException {
+        OffsetIndex contactIndex = contactIndexes.get(contact);
+        if (contactIndex == null) {
+            //O nome vem da rede, mas nao deve virar um caminho como ".."
+            final Path file = directory.resolve("c_" + URLEncoder.encode(contact, StandardCharsets.UTF_8)
+                    + CONTACT_INDEX_SUFFIX);
+            if (!create && !Files.exists(file)) {
+                return null;
+            }
+            contactIndex = new OffsetIndex(file);
+            contactIndexes.put(contact, contactIndex);
+        }
+        return contactIndex;
+    }
+
+    /**
+     * Indice mapeado em memoria: [quantidade: 8 bytes] seguida das posicoes das mensagens no log. O mapeamento cresce
+     * INDEX_GROWTH posicoes de cada vez.
+     */
+    private static class OffsetIndex {
+
+        private final Path file;
+
+        private MappedByteBuffer map;
+
+        private long count;
+
+        OffsetIndex(Path file) throws IOException {
+            this.file = file;
+            final long existing = Files.exists(file) ? Files.size(file) : 0;
+            map(Math.max(existing, 8 + 8L * INDEX_GROWTH));
+            count = map.getLong(0);
+            if (count < 0 || 8 + 8 * count > map.capacity()) {
+                throw new IOException("Indice corrompido: " + file);
+            }
+        }
+
+        private void map(long bytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+        }
+
+        long size() {
+            return count;
+        }
+
+        long get(long i) {
+            return map.getLong((int) (8 + 8 * i));
+        }
+
+        void append(long position) throws IOException {
+            if (8 + 8 * (count + 1) > map.capacity()) {
+                map(map.capacity() + 8L * INDEX_GROWTH);
+            }
+            map.putLong((int) (8 + 8 * count), position);
+            count++;
+            map.putLong(0, count);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package br.usp.redes;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Conexoes P2P com os contatos: uma conexao TCP por contato, reaproveitada por todas as mensagens enviadas a ele, em
+ * vez de um Socket novo (e nunca fechado) por mensagem.
+ * <p>
+ * send apenas enfileira a mensagem, entao a thread do Swing nunca espera um connect(). Cada conexao tem uma thread
+ * propria que conecta na primeira mensagem, escreve de uma vez todas as mensagens que estiverem na fila e, se a
+ * escrita falhar, reconecta e tenta mais uma vez. A conexao eh fechada quando o contato fica offline (close), muda de
+ * endereco ou passa IDLE_MILLIS sem mensagens; a proxima mensagem abre uma nova.
+ */
+class ContactConnections {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final long IDLE_MILLIS = 60000;
+
+    /**
+     * Recebe as mensagens que nao puderam ser entregues.
+     */
+    interface Listener {
+
+        void sendFailed(Contact contact, List<String> messages, IOException cause);
+    }
+
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+
+    private final Listener listener;
+
+    ContactConnections(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Enfileira uma linha para o contato, abrindo a conexao se preciso. Nao bloqueia.
+     */
+    void send(Contact contact, String message) {
+        while (true) {
+            final Connection connection = connections.compute(contact.getName(), (name, existing) -> {
+                if (existing != null && existing.isTo(contact)) {
+                    return existing;
+                }
+                if (existing != null) {
+                    //O contato reconectou com outro endereco
+                    existing.close();
+                }
+                return new Connection(contact);
+            });
+            if (connection.offer(message)) {
+                return;
+            }
+            //A conexao fechou entre o compute e o offer; tenta com uma nova
+            connections.remove(contact.getName(), connection);
+        }
+    }
+
+    /**
+     * Fecha a conexao com o contato, que ficou offline. Mensagens ainda na fila sao entregues ao listener.
+     */
+    void close(String contactName) {
+        final Connection connection = connections.remove(contactName);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Fecha as conexoes com quem nao esta em online, usado quando a lista completa de contatos chega (CLIST).
+     */
+    void retain(Collection<Contact> online) {
+        final Set<String> names = new HashSet<>();
+        for (Contact contact : online) {
+            names.add(contact.getName());
+        }
+        for (String name : new ArrayList<>(connections.keySet())) {
+            if (!names.contains(name)) {
+                close(name);
+            }
+        }
+    }
+
+    /**
+     * Conexao com um contato, com sua fila de mensagens e a thread que a esvazia.
+     */
+    private class Connection implements Runnable {
+
+        private final Contact contact;
+
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+        //Protege closed e writer, para que nenhuma mensagem entre na fila depois que a thread decidiu terminar
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private boolean closed;
+
+        private Thread writer;
+
+        //Usados apenas pela thread writer
+        private Socket socket;
+
+        private Writer out;
+
+        Connection(Contact contact) {
+            this.contact = contact;
+        }
+
+        boolean isTo(Contact other) {
+            return contact.getIp().equals(other.getIp()) && contact.getPort().equals(other.getPort());
+        }
+
+        /**
+         * Enfileira a mensagem, iniciando a thread na primeira. Retorna false se a conexao ja fechou.
+         */
+        boolean offer(String message) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return false;
+                }
+                queue.add(message);
+                if (writer == null) {
+                    writer = new Thread(this, "contact-writer-" + contact.getName());
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            final Thread thread;
+            lock.lock();
+            try {
+                closed = true;
+                thread = writer;
+            } finally {
+                lock.unlock();
+            }
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        public void run() {
+            final List<String> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    final String message = queue.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        if (closeIfIdle()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(message);
+                    queue.drainTo(batch);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                //Fechada por close
+            } finally {
+                disconnect();
+                batch.addAll(queue);
+                if (!batch.isEmpty()) {
+                    listener.sendFailed(contact, batch, new IOException(contact.getName() + " ficou offline"));
+                }
+            }
+        }
+
+        private boolean closeIfIdle() {
+            lock.lock();
+            try {
+                if (!queue.isEmpty()) {
+                    return false;
+                }
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+            connections.remove(contact.getName(), this);
+            return true;
+        }
+
+        /**
+         * Escreve as mensagens com um unico flush, conectando se preciso. Se falhar, reconecta e tenta mais uma vez;
+         * se falhar de novo, entrega as mensagens ao listener.
+         */
+        private void write(List<String> messages) {
+            IOException failure = null;
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    if (socket == null) {
+                        connect();
+                    }
+                    for (String message : messages) {
+                        out.write(message);
+                        out.write('\n');
+                    }
+                    out.flush();
+                    return;
+                } catch (IOException e) {
+                    failure = e;
+                    disconnect();
+                }
+            }
+            listener.sendFailed(contact, new ArrayList<>(messages), failure);
+        }
+
+        private void connect() throws IOException {
+            final Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(contact.getIp(), Integer.parseInt(contact.getPort())),
+                        CONNECT_TIMEOUT_MILLIS);
+                s.setTcpNoDelay(true);
+                out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
+                socket = s;
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                socket = null;
+                out = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package br.usp.redes;
+
+import javax.swing.AbstractListModel;
+import javax.swing.ComboBoxModel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Modelo da lista de contatos online, no lugar de uma List copiada para um DefaultComboBoxModel a cada mudanca.
+ * <p>
+ * Os contatos ficam em um array ordenado pelo nome, sem diferenciar maiusculas, e em um HashMap do nome para o
+ * contato. Saber se um contato esta online eh O(1), achar a posicao dele eh uma busca binaria, e cada CONAT ou CONIN
+ * desloca o array com um System.arraycopy e avisa a JComboBox apenas do item que entrou, saiu ou mudou, em vez de
+ * trocar o modelo inteiro.
+ * <p>
+ * O filtro mostra apenas os contatos cujo nome comeca com um prefixo. Como o array esta ordenado, eles formam um
+ * intervalo continuo [filterStart, filterEnd), achado com duas buscas binarias, sem copiar nada.
+ * <p>
+ * Assim como os componentes do Swing, deve ser usado apenas na Event Dispatch Thread.
+ */
+//Herda Serializable do AbstractListModel, mas nunca eh serializado
+@SuppressWarnings("serial")
+class ContactListModel extends AbstractListModel<Contact> implements ComboBoxModel<Contact> {
+
+    //Lotes maiores que isso (e que uma fracao da lista) reconstroem o array de uma vez
+    private static final int INCREMENTAL_BATCH_LIMIT = 64;
+
+    private static final Comparator<String> NAME_ORDER = (a, b) -> {
+        final int order = a.compareToIgnoreCase(b);
+        return order != 0 ? order : a.compareTo(b);
+    };
+
+    private final HashMap<String, Contact> byName = new HashMap<>();
+
+    //Contatos em NAME_ORDER nas posicoes [0, size)
+    private Contact[] contacts = new Contact[16];
+
+    private int size;
+
+    private String filter = "";
+
+    //Intervalo de contacts mostrado com o filtro atual
+    private int filterStart;
+
+    private int filterEnd;
+
+    private Contact selected;
+
+    public int getSize() {
+        return filterEnd - filterStart;
+    }
+
+    public Contact getElementAt(int index) {
+        return contacts[filterStart + index];
+    }
+
+    public Object getSelectedItem() {
+        return selected;
+    }
+
+    public void setSelectedItem(Object item) {
+        if (item != selected && (item == null || item instanceof Contact)) {
+            selected = (Contact) item;
+            fireContentsChanged(this, -1, -1);
+        }
+    }
+
+    /**
+     * Numero de contatos online, com ou sem filtro.
+     */
+    int onlineCount() {
+        return size;
+    }
+
+    boolean contains(String name) {
+        return byName.containsKey(name);
+    }
+
+    /**
+     * Troca todos os contatos pelos da lista completa (CLIST), mantendo a selecao se o contato continuar online.
+     */
+    void setContacts(Collection<Contact> online) {
+        byName.clear();
+        for (Contact contact : online) {
+            byName.put(contact.getName(), contact);
+        }
+        rebuild();
+    }
+
+    /**
+     * Acrescenta o contato que ficou online ou, se ele ja estava na lista, troca pelo endereco novo.
+     */
+    void add(Contact contact) {
+        final Contact previous = byName.put(contact.getName(), contact);
+        final int index = indexOf(contact.getName());
+        if (previous != null) {
+            contacts[index] = contact;
+            if (selected == previous) {
+                selected = contact;
+            }
+            if (index >= filterStart && index < filterEnd) {
+                fireContentsChanged(this, index - filterStart, index - filterStart);
+            }
+            return;
+        }
+        final int insertion = -index - 1;
+        if (size == contacts.length) {
+            contacts = Arrays.copyOf(contacts, size * 2);
+        }
+        System.arraycopy(contacts, insertion, contacts, insertion + 1, size - insertion);
+        contacts[insertion] = contact;
+        size++;
+        if (matchesFilter(contact.getName())) {
+            filterEnd++;
+            fireIntervalAdded(this, insertion - filterStart, insertion - filterStart);
+        } else if (insertion <= filterStart) {
+            //Um nome sem o prefixo que fica antes do intervalo o desloca
+            filterStart++;
+            filterEnd++;
+        }
+    }
+
+    /**
+     * Remove o contato que ficou offline. Se ele estava selecionado, seleciona o seguinte, como a JComboBox faz.
+     */
+    void remove(String name) {
+        if (byName.remove(name) == null) {
+            return;
+        }
+        final int index = indexOf(name);
+        final Contact removed = contacts[index];
+        System.arraycopy(contacts, index + 1, contacts, index, size - index - 1);
+        contacts[--size] = null;
+        final boolean visible = index >= filterStart && index < filterEnd;
+        if (visible) {
+            filterEnd--;
+        } else if (index < filterStart) {
+            filterStart--;
+            filterEnd--;
+        }
+        if (removed == selected) {
+            final int next = Math.min(index, filterEnd - 1);
+            selected = next >= filterStart ? contacts[next] : null;
+            fireContentsChanged(this, -1, -1);
+        }
+        if (visible) {
+            fireIntervalRemoved(this, index - filterStart, index - filterStart);
+        }
+    }
+
+    /**
+     * Aplica um lote de mudancas de presenca (CONBA ou RESYN). Lotes pequenos sao aplicados item por item; os grandes
+     * reconstroem o array de uma vez, com um unico aviso a JComboBox.
+     */
+    void apply(Collection<Contact> online, Collection<String> offline) {
+        if (online.size() + offline.size() <= Math.max(INCREMENTAL_BATCH_LIMIT, size / 8)) {
+            for (String name : offline) {
+                remove(name);
+            }
+            for (Contact contact : online) {
+                add(contact);
+            }
+            return;
+        }
+        for (String name : offline) {
+            byName.remove(name);
+        }
+        for (Contact contact : online) {
+            byName.put(contact.getName(), contact);
+        }
+        rebuild();
+    }
+
+    /**
+     * Mostra apenas os contatos cujo nome comeca com prefix, sem diferenciar maiusculas. "" mostra todos.
+     */
+    void setFilter(String prefix) {
+        if (prefix.equals(filter)) {
+            return;
+        }
+        filter = prefix;
+        final int oldSize = getSize();
+        updateFilterRange();
+        fireChanged(oldSize);
+    }
+
+    String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Refaz o array a partir do byName e avisa a JComboBox que todo o conteudo mudou.
+     */
+    private void rebuild() {
+        final int oldSize = getSize();
+        size = byName.size();
+        contacts = byName.values().toArray(new Contact[Math.max(16, size)]);
+        Arrays.sort(contacts, 0, size, (a, b) -> NAME_ORDER.compare(a.getName(), b.getName()));
+        updateFilterRange();
+        fireChanged(oldSize);
+        //O contato selecionado pode ter mudado de endereco ou ficado offline
+        if (selected != null && selected != byName.get(selected.getName())) {
+            selected = byName.get(selected.getName());
+            fireContentsChanged(this, -1, -1);
+        }
+    }
+
+    /**
+     * Avisa que o conteudo mostrado, que tinha oldSize itens, foi trocado.
+     */
+    private void fireChanged(int oldSize) {
+        final int newSize = getSize();
+        if (newSize < oldSize) {
+            fireIntervalRemoved(this, newSize, oldSize - 1);
+        } else if (newSize > oldSize) {
+            fireIntervalAdded(this, oldSize, newSize - 1);
+        }
+        if (Math.min(oldSize, newSize) > 0) {
+            fireContentsChanged(this, 0, Math.min(oldSize, newSize) - 1);
+        }
+    }
+
+    private void updateFilterRange() {
+        if (filter.isEmpty()) {
+            filterStart = 0;
+            filterEnd = size;
+            return;
+        }
+        //Os nomes com o prefixo vem logo depois dos nomes menores que ele, e antes dos maiores que nao o tem
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (contacts[middle].getName().compareToIgnoreCase(filter) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        filterStart = low;
+        high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (matchesFilter(contacts[middle].getName())) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        filterEnd = low;
+    }
+
+    private boolean matchesFilter(String name) {
+        return name.regionMatches(true, 0, filter, 0, filter.length());
+    }
+
+    /**
+     * Posicao do contato em contacts, ou (-(posicao de insercao) - 1) se ele nao esta la.
+     */
+    private int indexOf(String name) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int order = NAME_ORDER.compare(contacts[middle].getName(), name);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,236 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Recebe as mensagens dos contatos em um unico loop com Selector, em vez de uma thread ContactHandler por conexao.
+ * <p>
+ * Cada contato mantem sua conexao aberta (veja ContactConnections) e envia varias mensagens por ela, uma por linha
+ * terminada por "\n". O loop aceita as conexoes, le o que chegar em cada uma e entrega ao Listener cada linha completa;
+ * uma linha maior que MAX_MESSAGE_LENGTH fecha a conexao.
+ * <p>
+ * Uma conexao cuja primeira linha comeca com FileTransfers.HEADER traz um arquivo: ela sai do Selector, volta ao modo
+ * bloqueante e passa para o FileTransfers, que a atende em outra thread.
+ */
+class ContactListener {
+
+    private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
+    private static final Charset TEXT_CHARSET = Charset.defaultCharset();
+
+    /**
+     * Recebe as mensagens lidas, na thread do loop.
+     */
+    interface Listener {
+
+        void message(String message) throws Exception;
+    }
+
+    private final Selector selector;
+
+    private final ServerSocketChannel channel;
+
+    private final Listener listener;
+
+    private final FileTransfers files;
+
+    //Conexoes de arquivo cujas chaves foram canceladas, passadas ao FileTransfers no proximo selectNow do loop, que
+    //as tira do Selector
+    private final List<Session> handoffs = new ArrayList<>();
+
+    /**
+     * Abre o canal de escuta em uma porta livre. O loop so comeca a aceitar conexoes em run().
+     */
+    ContactListener(Listener listener, FileTransfers files) throws IOException {
+        this.listener = listener;
+        this.files = files;
+        this.selector = Selector.open();
+        this.channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(0));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    /**
+     * Atende as conexoes dos contatos ate o programa terminar.
+     */
+    void run() throws IOException {
+        try {
+            while (true) {
+                if (handoffs.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                    handOff();
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        final Session session = (Session) key.attachment();
+                        try {
+                            session.read();
+                        } catch (IOException e) {
+                            session.close();
+                        }
+                    }
+                }
+            }
+        } finally {
+            channel.close();
+            selector.close();
+        }
+    }
+
+    /**
+     * Passa ao FileTransfers as conexoes de arquivo, ja fora do Selector.
+     */
+    private void handOff() {
+        for (Session session : handoffs) {
+            try {
+                session.channel.configureBlocking(true);
+                files.receive(session.channel, session.fileHeader);
+            } catch (IOException e) {
+                session.close();
+            }
+        }
+        handoffs.clear();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel contact;
+        while ((contact = channel.accept()) != null) {
+            contact.configureBlocking(false);
+            final Session session = new Session(contact);
+            session.key = contact.register(selector, SelectionKey.OP_READ, session);
+        }
+    }
+
+    /**
+     * Conexao aberta por um contato.
+     */
+    private class Session {
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        //Bytes recebidos e ainda nao processados, de uma linha incompleta. Cresce ate MAX_MESSAGE_LENGTH
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+        //Se ja chegou a primeira linha, a unica que pode comecar uma transferencia de arquivo
+        private boolean firstLineRead;
+
+        //Primeira linha de uma conexao de arquivo
+        private String fileHeader;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Le o que estiver disponivel no canal e entrega cada linha completa ao listener.
+         */
+        void read() throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_MESSAGE_LENGTH) {
+                    close();
+                    return;
+                }
+                final ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_MESSAGE_LENGTH));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+            final int read = channel.read(buffer);
+            buffer.flip();
+            int start = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    if (!firstLineRead && isFileHeader(i)) {
+                        //Quem envia espera o "OFFSET", entao nada mais pode ter chegado depois do cabecalho
+                        if (i + 1 == buffer.limit() && read >= 0) {
+                            fileHeader = new String(buffer.array(), 0, i, StandardCharsets.UTF_8);
+                            key.cancel();
+                            handoffs.add(this);
+                        } else {
+                            close();
+                        }
+                        return;
+                    }
+                    firstLineRead = true;
+                    deliver(start, i);
+                    start = i + 1;
+                }
+            }
+            buffer.position(start);
+            buffer.compact();
+            if (read < 0) {
+                //Uma ultima linha sem "\n" tambem eh entregue, como fazia o BufferedReader
+                if (buffer.position() > 0) {
+                    deliver(0, buffer.position());
+                }
+                close();
+            }
+        }
+
+        private boolean isFileHeader(int end) {
+            final byte[] header = FileTransfers.HEADER.getBytes(StandardCharsets.UTF_8);
+            if (end < header.length) {
+                return false;
+            }
+            for (int i = 0; i < header.length; i++) {
+                if (buffer.get(i) != header[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void deliver(int start, int end) {
+            //Remove o "\r" de quem envia com println no Windows
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            final byte[] bytes = new byte[end - start];
+            final ByteBuffer line = buffer.duplicate();
+            line.limit(end).position(start);
+            line.get(bytes);
+            final String message = new String(bytes, TEXT_CHARSET);
+            try {
+                listener.message(message);
+            } catch (Exception e) {
+                Log.warn("erro ao tratar a mensagem de um contato", "contato", Main.senderOf(message), "erro", e);
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Transferencia de arquivos P2P entre contatos, em uma conexao propria para cada arquivo, aberta na mesma porta em que
+ * o contato recebe as mensagens (veja ContactListener).
+ * <p>
+ * Protocolo: quem envia manda a linha "FILEX remetente id tamanho nome" e quem recebe responde "OFFSET n", com os bytes
+ * que ja tem do arquivo. O id vem do caminho, tamanho e data de modificacao do arquivo, entao enviar o mesmo arquivo de
+ * novo retoma de onde parou. A partir de n, o arquivo vai em pedacos de ate CHUNK_SIZE bytes, cada um precedido de
+ * [tamanho: 4 bytes][CRC32C: 4 bytes]. Ao final, quem recebe responde "DONE", ou "FAIL motivo" e fecha a conexao.
+ * <p>
+ * Os pedacos vao do arquivo ao socket com FileChannel.transferTo e do socket ao arquivo com transferFrom, sem passar
+ * pelo heap; o CRC eh calculado relendo o pedaco, ja no page cache, em um buffer direto de CHECKSUM_BUFFER_SIZE. Quem
+ * recebe guarda o arquivo incompleto como "id.part" e, se um pedaco chega corrompido ou a conexao cai, o corta no fim
+ * do ultimo pedaco conferido. Quem envia tenta de novo ate MAX_ATTEMPTS vezes, retomando desse ponto.
+ * <p>
+ * O CRC de cada pedaco conferido fica em "id.crc". Ao retomar, inclusive depois de o programa cair no meio de um
+ * pedaco, quem recebe confere de novo o ultimo pedaco guardado e anuncia no OFFSET apenas o fim dos pedacos conferidos.
+ * <p>
+ * Quem recebe so aceita arquivos de ate maxSize bytes, e apenas depois que o Authorizer, que pergunta ao usuario,
+ * autorizou aquele arquivo; um arquivo recusado recebe "FAIL recusado ..." em vez do OFFSET, e quem envia desiste sem
+ * tentar de novo. Uma conexao que passa READ_TIMEOUT_MILLIS sem trazer dados eh fechada.
+ * <p>
+ * Cada transferencia roda em uma thread propria, fora da thread do Swing e do loop do ContactListener, entao as
+ * mensagens continuam chegando durante ela.
+ */
+class FileTransfers {
+
+    /**
+     * Inicio da primeira linha de uma conexao de transferencia de arquivo.
+     */
+    static final String HEADER = "FILEX ";
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final int CHUNK_HEADER_LENGTH = 8;
+
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final long RETRY_MILLIS = 1000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    //Sem receber nada por esse tempo, quem recebe fecha a conexao
+    private static final long READ_TIMEOUT_MILLIS = 30_000;
+
+    //Maximo lido do socket por chamada a transferFrom, para que o tempo sem leitura seja renovado durante um pedaco
+    private static final int READ_STEP = 256 * 1024;
+
+    private static final String PART_SUFFIX = ".part";
+
+    private static final String CHECKSUMS_SUFFIX = ".crc";
+
+    /**
+     * Inicio da resposta a um arquivo recusado. Tentar de novo teria a mesma resposta, entao quem envia desiste.
+     */
+    private static final String REFUSED = "FAIL recusado";
+
+    /**
+     * Recebe os avisos do andamento das transferencias, de qualquer thread.
+     */
+    interface Listener {
+
+        void status(String message);
+    }
+
+    /**
+     * Decide se um arquivo oferecido por um contato deve ser recebido. Chamado na thread da transferencia, que espera
+     * a resposta.
+     */
+    interface Authorizer {
+
+        boolean accept(String sender, String name, long size);
+    }
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    private final Listener listener;
+
+    private final Authorizer authorizer;
+
+    private final ExecutorService transfers = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "file-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //Ids dos arquivos sendo recebidos, para que duas conexoes nao gravem no mesmo ".part"
+    private final Set<String> receiving = ConcurrentHashMap.newKeySet();
+
+    //Ids dos arquivos que o authorizer aceitou, para nao perguntar de novo a cada tentativa de quem envia
+    private final Set<String> authorized = ConcurrentHashMap.newKeySet();
+
+    //Confere periodicamente o tempo sem leitura de cada recebimento
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "file-transfer-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Arquivos recebidos, de ate maxSize bytes e aceitos pelo authorizer, sao gravados em directory.
+     */
+    FileTransfers(Path directory, long maxSize, Listener listener, Authorizer authorizer) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.listener = listener;
+        this.authorizer = authorizer;
+    }
+
+    /**
+     * Envia o arquivo ao contato em outra thread. Nao bloqueia.
+     */
+    void send(Contact contact, Path file, String senderName) {
+        transfers.execute(() -> {
+            try {
+                sendFile(contact, file, senderName);
+            } catch (InterruptedException ignored) {
+            }
+        });
+    }
+
+    private void sendFile(Contact contact, Path file, String senderName) throws InterruptedException {
+        final String name = file.getFileName().toString();
+        final long size;
+        final String id;
+        try {
+            size = Files.size(file);
+            id = UUID.nameUUIDFromBytes((file.toAbsolutePath() + "/" + size + "/" + Files.getLastModifiedTime(file))
+                    .getBytes(StandardCharsets.UTF_8)).toString();
+        } catch (IOException e) {
+            listener.status("ERRO: Nao foi possivel ler " + file + ": " + e.getMessage());
+            return;
+        }
+        final long start = System.nanoTime();
+        IOException failure = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                listener.status("Retomando o envio de " + name + " para " + contact.getName() + " ("
+                        + failure.getMessage() + ")");
+                Thread.sleep(RETRY_MILLIS << (attempt - 1));
+            }
+            try (SocketChannel channel = SocketChannel.open();
+                 FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.socket().connect(new InetSocketAddress(contact.getIp(), Integer.parseInt(contact.getPort())),
+                        CONNECT_TIMEOUT_MILLIS);
+                writeLine(channel, HEADER + senderName + " " + id + " " + size + " " + name);
+                final String offsetLine = readLine(channel);
+                if (offsetLine.startsWith(REFUSED)) {
+                    listener.status("ERRO: " + name + " nao foi enviado para " + contact.getName() + ": "
+                            + offsetLine.substring("FAIL ".length()));
+                    return;
+                }
+                if (!offsetLine.startsWith("OFFSET ")) {
+                    throw new IOException(offsetLine);
+                }
+                final long offset = Long.parseLong(offsetLine.substring("OFFSET ".length()));
+                if (offset < 0 || offset > size) {
+                    //Erro de protocolo: nada seria enviado e o DONE nunca viria. Tentar de novo teria a mesma resposta
+                    listener.status("ERRO: " + name + " nao foi enviado para " + contact.getName() + ": OFFSET "
+                            + offset + " invalido para " + size + " bytes");
+                    return;
+                }
+                if (attempt == 0) {
+                    listener.status("Enviando " + name + " (" + megabytes(size) + ") para " + contact.getName()
+                            + (offset > 0 ? ", a partir de " + megabytes(offset) : ""));
+                }
+                sendChunks(in, channel, offset, size);
+                final String result = readLine(channel);
+                if (!result.equals("DONE")) {
+                    throw new IOException(result);
+                }
+                listener.status(name + " enviado para " + contact.getName() + rate(size - offset, start));
+                return;
+            } catch (IOException | NumberFormatException e) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+            }
+        }
+        listener.status("ERRO: " + name + " nao foi enviado para " + contact.getName() + ": " + failure.getMessage());
+    }
+
+    /**
+     * Envia o arquivo a partir de offset, em pedacos de CHUNK_SIZE com o CRC de cada um.
+     */
+    private static void sendChunks(FileChannel in, SocketChannel out, long offset, long size) throws IOException {
+        final ByteBuffer checksumBuffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+        final ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_LENGTH);
+        for (long position = offset; position < size; ) {
+            final int length = (int) Math.min(CHUNK_SIZE, size - position);
+            header.clear();
+            header.putInt(length).putInt(checksum(in, position, length, checksumBuffer)).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            for (long sent = 0; sent < length; ) {
+                final long transferred = in.transferTo(position + sent, length - sent, out);
+                if (transferred == 0 && position + sent >= in.size()) {
+                    throw new IOException("o arquivo diminuiu durante o envio");
+                }
+                sent += transferred;
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Trata uma conexao cuja primeira linha foi header, entregue pelo ContactListener em modo bloqueante. Recebe o
+     * arquivo em outra thread e fecha a conexao ao final.
+     */
+    void receive(SocketChannel channel, String header) {
+        transfers.execute(() -> {
+            try (SocketChannel c = channel) {
+                receiveFile(c, header);
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    private void receiveFile(SocketChannel channel, String header) throws IOException {
+        //"FILEX remetente id tamanho nome"
+        final String[] fields = header.split(" ", 5);
+        final long size;
+        try {
+            size = fields.length == 5 ? Long.parseLong(fields[3]) : -1;
+        } catch (NumberFormatException e) {
+            writeLine(channel, "FAIL cabecalho invalido");
+            return;
+        }
+        final String sender = fields.length == 5 ? fields[1] : null;
+        final String id = fields.length == 5 ? fields[2] : null;
+        final String name = fields.length == 5 ? safeName(fields[4]) : null;
+        if (size < 0 || name == null || !id.matches("[0-9a-f-]{1,64}")) {
+            writeLine(channel, "FAIL cabecalho invalido");
+            return;
+        }
+        if (size > maxSize) {
+            writeLine(channel, REFUSED + ", maior que " + megabytes(maxSize));
+            listener.status(name + " (" + megabytes(size) + ") de " + sender + " recusado: o limite eh "
+                    + megabytes(maxSize));
+            return;
+        }
+        if (!receiving.add(id)) {
+            writeLine(channel, "FAIL recebimento em andamento");
+            return;
+        }
+        long verified = 0;
+        final ReadTimeout timeout = new ReadTimeout(channel);
+        ScheduledFuture<?> timeoutCheck = null;
+        try {
+            if (!authorized.contains(id)) {
+                if (!authorizer.accept(sender, name, size)) {
+                    writeLine(channel, REFUSED + " por quem recebe");
+                    listener.status(name + " de " + sender + " recusado");
+                    return;
+                }
+                authorized.add(id);
+            }
+            Files.createDirectories(directory);
+            final Path part = directory.resolve(id + PART_SUFFIX);
+            final Path checksumsFile = directory.resolve(id + CHECKSUMS_SUFFIX);
+            final long start = System.nanoTime();
+            final long offset;
+            try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+                 FileChannel checksums = FileChannel.open(checksumsFile, StandardOpenOption.CREATE,
+                         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final ByteBuffer checksumBuffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+                verified = resumePosition(out, checksums, size, checksumBuffer);
+                offset = verified;
+                //O tempo esperando o authorizer nao conta
+                timeout.read();
+                timeoutCheck = timeouts.scheduleWithFixedDelay(timeout, READ_TIMEOUT_MILLIS / 4,
+                        READ_TIMEOUT_MILLIS / 4, TimeUnit.MILLISECONDS);
+                writeLine(channel, "OFFSET " + offset);
+                listener.status("Recebendo " + name + " (" + megabytes(size) + ") de " + sender
+                        + (offset > 0 ? ", a partir de " + megabytes(offset) : ""));
+                final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_LENGTH);
+                final ByteBuffer checksum = ByteBuffer.allocate(4);
+                try {
+                    while (verified < size) {
+                        final int length = receiveChunk(channel, out, verified, size, chunkHeader, checksumBuffer,
+                                timeout);
+                        checksum.clear();
+                        checksum.putInt(0, chunkHeader.getInt(4));
+                        writeFully(checksums, checksum, verified / CHUNK_SIZE * 4);
+                        verified += length;
+                    }
+                } finally {
+                    //Descarta o que veio depois do ultimo pedaco conferido
+                    out.truncate(verified);
+                }
+            }
+            final Path target = availableName(name);
+            Files.move(part, target);
+            Files.deleteIfExists(checksumsFile);
+            authorized.remove(id);
+            writeLine(channel, "DONE");
+            listener.status(name + " recebido de " + sender + " em " + target.toAbsolutePath()
+                    + rate(size - offset, start));
+        } catch (IOException e) {
+            listener.status("Recebimento de " + name + " de " + sender + " interrompido em " + megabytes(verified)
+                    + ": " + (timeout.expired ? "nada recebido por " + READ_TIMEOUT_MILLIS / 1000 + " s"
+                    : e.getMessage()));
+            throw e;
+        } finally {
+            if (timeoutCheck != null) {
+                timeoutCheck.cancel(false);
+            }
+            receiving.remove(id);
+        }
+    }
+
+    /**
+     * Posicao de onde retomar um recebimento: o fim do ultimo pedaco cujo CRC esta em checksums e que esta inteiro no
+     * arquivo. O CRC desse ultimo pedaco eh conferido de novo, ja que o programa pode ter caido antes de ele chegar ao
+     * disco; se nao bater, o pedaco eh descartado. O arquivo e os CRCs sao cortados nessa posicao.
+     */
+    private static long resumePosition(FileChannel out, FileChannel checksums, long size, ByteBuffer checksumBuffer)
+            throws IOException {
+        //Pedacos inteiros no arquivo. O ultimo pedaco do arquivo pode ser menor que CHUNK_SIZE
+        final long complete = out.size() >= size ? (size + CHUNK_SIZE - 1) / CHUNK_SIZE : out.size() / CHUNK_SIZE;
+        long chunks = Math.min(checksums.size() / 4, complete);
+        if (chunks > 0) {
+            final long position = (chunks - 1) * CHUNK_SIZE;
+            final ByteBuffer stored = ByteBuffer.allocate(4);
+            while (stored.hasRemaining()) {
+                if (checksums.read(stored, (chunks - 1) * 4 + stored.position()) < 0) {
+                    throw new IOException("arquivo de CRCs menor que o esperado");
+                }
+            }
+            if (checksum(out, position, (int) Math.min(CHUNK_SIZE, size - position), checksumBuffer)
+                    != stored.getInt(0)) {
+                chunks--;
+            }
+        }
+        final long position = Math.min(chunks * CHUNK_SIZE, size);
+        out.truncate(position);
+        checksums.truncate(chunks * 4);
+        return position;
+    }
+
+    /**
+     * Recebe um pedaco, gravando-o no arquivo em position, e confere o CRC. Retorna o tamanho dele.
+     */
+    private static int receiveChunk(SocketChannel in, FileChannel out, long position, long size, ByteBuffer header,
+                                    ByteBuffer checksumBuffer, ReadTimeout timeout) throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            if (in.read(header) < 0) {
+                throw new IOException("conexao fechada");
+            }
+            timeout.read();
+        }
+        final int length = header.getInt(0);
+        //Os pedacos comecam sempre em multiplos de CHUNK_SIZE, para que o CRC guardado de cada um valha ao retomar
+        if (length != Math.min(CHUNK_SIZE, size - position)) {
+            throw new IOException("pedaco invalido, com " + length + " bytes");
+        }
+        for (long received = 0; received < length; ) {
+            final long transferred = out.transferFrom(in, position + received,
+                    Math.min(READ_STEP, length - received));
+            if (transferred == 0) {
+                //Em modo bloqueante, transferFrom so nao transfere nada quando a conexao fechou
+                throw new IOException("conexao fechada");
+            }
+            timeout.read();
+            received += transferred;
+        }
+        if (checksum(out, position, length, checksumBuffer) != header.getInt(4)) {
+            writeLine(in, "FAIL checksum");
+            throw new IOException("checksum invalido");
+        }
+        return length;
+    }
+
+    /**
+     * CRC32C dos length bytes do arquivo a partir de position, lidos no buffer direto.
+     */
+    private static int checksum(FileChannel file, long position, int length, ByteBuffer buffer) throws IOException {
+        final CRC32C crc = new CRC32C();
+        for (long read = 0; read < length; ) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - read));
+            final int n = file.read(buffer, position + read);
+            if (n < 0) {
+                throw new IOException("arquivo menor que o esperado");
+            }
+            buffer.flip();
+            crc.update(buffer);
+            read += n;
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Nome do arquivo recebido, sem diretorios, ou null se nao sobrar um nome valido.
+     */
+    private static String safeName(String name) {
+        final int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        final String file = name.substring(slash + 1).trim();
+        return file.isEmpty() || file.equals(".") || file.equals("..") ? null : file;
+    }
+
+    /**
+     * Caminho para o arquivo recebido que nao sobrescreve um arquivo existente: "nome", "nome (1)", "nome (2)"...
+     */
+    private Path availableName(String name) {
+        Path target = directory.resolve(name);
+        for (int i = 1; Files.exists(target); i++) {
+            final int dot = name.lastIndexOf('.');
+            target = directory.resolve(dot > 0
+                    ? name.substring(0, dot) + " (" + i + ")" + name.substring(dot)
+                    : name + " (" + i + ")");
+        }
+        return target;
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            file.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Le uma linha de controle do protocolo, byte a byte: sao poucas e curtas.
+     */
+    private static String readLine(SocketChannel channel) throws IOException {
+        final ByteBuffer one = ByteBuffer.allocate(1);
+        final ByteBuffer line = ByteBuffer.allocate(1024);
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new IOException("conexao fechada");
+            }
+            if (one.get(0) == '\n') {
+                return new String(line.array(), 0, line.position(), StandardCharsets.UTF_8);
+            }
+            if (!line.hasRemaining()) {
+                throw new IOException("linha muito longa");
+            }
+            line.put(one.get(0));
+        }
+    }
+
+    static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String rate(long bytes, long startNanos) {
+        final double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        return String.format(Locale.ROOT, " (%.1f MB/s)", bytes / (1024.0 * 1024.0) / seconds);
+    }
+
+    /**
+     * Fecha a conexao de um recebimento que passou READ_TIMEOUT_MILLIS sem ler nada, o que interrompe a leitura
+     * bloqueada nela. Executado periodicamente pelo timeouts.
+     */
+    private static class ReadTimeout implements Runnable {
+
+        private final SocketChannel channel;
+
+        private volatile long lastRead = System.nanoTime();
+
+        private volatile boolean expired;
+
+        ReadTimeout(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() {
+            lastRead = System.nanoTime();
+        }
+
+        public void run() {
+            if (System.nanoTime() - lastRead > TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MILLIS)) {
+                expired = true;
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Le as mensagens do servidor direto de um ByteBuffer: linhas de texto terminadas por "\n" e, depois que o modo
+ * binario eh aceito no WHORU (capacidade "BIN"), frames [opcode: 1 byte][tamanho do conteudo: 4 bytes][conteudo].
+ * <p>
+ * Os campos de um frame sao lidos um a um do buffer: textos como [tamanho: 2 bytes][UTF-8], portas como 2 bytes sem
+ * sinal e contagens como 4 bytes. Um contato eh [nome][ip][porta]. Nenhuma linha intermediaria eh montada e dividida
+ * em String[]; so sao criadas as Strings dos campos de cada Contact.
+ */
+public class FrameReader {
+
+    static final byte CLIST = 1;
+    static final byte CONAT = 2;
+    static final byte CONIN = 3;
+    static final byte CONBA = 4;
+    static final byte KEEPA = 5;
+    static final byte KEPTA = 6;
+    static final byte RESYN = 7;
+    static final byte GROUP = 8;
+    static final byte GRPMS = 9;
+    static final byte OFFMS = 10;
+    static final byte MAILM = 11;
+    static final byte MAILA = 12;
+
+    private static final int HEADER_LENGTH = 5;
+
+    //Limite de uma mensagem, para nao alocar um buffer enorme por causa de um tamanho corrompido
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+    private static final Charset TEXT_CHARSET = Charset.defaultCharset();
+
+    /**
+     * Recebe as mensagens decodificadas de um frame.
+     */
+    public interface Listener {
+
+        void contactList(List<Contact> online) throws Exception;
+
+        void contactActive(Contact contact) throws Exception;
+
+        void contactInactive(String contactName) throws Exception;
+
+        void presenceBatch(List<Contact> online, List<String> offline) throws Exception;
+
+        void resync(List<Contact> online, List<String> offline) throws Exception;
+
+        /**
+         * KEPTA, com a versao da presenca "epoca:sequencia" se o servidor a enviou, ou null.
+         */
+        void keptAlive(String presenceVersion) throws Exception;
+
+        /**
+         * Mensagem de um membro do grupo, repassada pelo servidor.
+         */
+        void groupMessage(String group, String sender, String text) throws Exception;
+
+        /**
+         * Mensagem guardada na caixa postal do servidor enquanto este cliente estava offline, enviada no instante
+         * timestamp (em ms). Deve ser confirmada com mailAckFrame(sequence).
+         */
+        void mail(long sequence, long timestamp, String sender, String text) throws Exception;
+    }
+
+    private final ReadableByteChannel input;
+
+    //Bytes recebidos e ainda nao processados. Cresce quando uma mensagem nao cabe nele
+    private ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+    public FrameReader(InputStream input) {
+        this.input = Channels.newChannel(input);
+        buffer.limit(0);
+    }
+
+    /**
+     * Frame KEEPA, que o cliente manda no lugar da linha "KEEPA" no modo binario.
+     */
+    public static byte[] keepAliveFrame() {
+        return new byte[]{KEEPA, 0, 0, 0, 0};
+    }
+
+    /**
+     * Frame GROUP, que pede ao servidor para repassar o texto aos membros do grupo no modo binario.
+     */
+    public static byte[] groupMessageFrame(String group, String text) {
+        return textsFrame(GROUP, group, text);
+    }
+
+    /**
+     * Frame OFFMS, que pede ao servidor para guardar o texto na caixa postal do destinatario no modo binario.
+     */
+    public static byte[] offlineMessageFrame(String recipient, String text) {
+        return textsFrame(OFFMS, recipient, text);
+    }
+
+    /**
+     * Frame com o conteudo [texto][texto].
+     */
+    private static byte[] textsFrame(byte opcode, String first, String second) {
+        final byte[] firstBytes = first.getBytes(StandardCharsets.UTF_8);
+        final byte[] secondBytes = second.getBytes(StandardCharsets.UTF_8);
+        final int length = 4 + firstBytes.length + secondBytes.length;
+        final ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length).put(opcode).putInt(length);
+        frame.putShort((short) firstBytes.length).put(firstBytes);
+        frame.putShort((short) secondBytes.length).put(secondBytes);
+        return frame.array();
+    }
+
+    /**
+     * Frame MAILA, que confirma ao servidor as mensagens da caixa postal ate a sequencia no modo binario.
+     */
+    public static byte[] mailAckFrame(long sequence) {
+        return ByteBuffer.allocate(HEADER_LENGTH + 8).put(MAILA).putInt(8).putLong(sequence).array();
+    }
+
+    /**
+     * Le a proxima linha de texto, sem o "\n" (e "\r") final. Retorna null se o servidor fechou a conexao.
+     */
+    public String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            final int start = buffer.position();
+            for (int i = start + scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    final int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    final String line = new String(buffer.array(), start, end - start, TEXT_CHARSET);
+                    buffer.position(i + 1);
+                    return line;
+                }
+            }
+            scanned = buffer.remaining();
+            if (!fill(scanned + 1)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Bloqueia ate chegar o proximo byte e diz se ele comeca um frame, em vez de uma linha de texto. Usado logo
+     * depois de aceitar o modo binario, quando o servidor pode tanto registrar o cliente (e mandar o CLIST como
+     * frame) quanto recusa-lo com texto.
+     */
+    public boolean nextIsFrame() throws IOException {
+        return fill(1) && buffer.get(buffer.position()) < ' ';
+    }
+
+    /**
+     * Le o proximo frame e o entrega ao listener. Retorna false se o servidor fechou a conexao.
+     */
+    public boolean readFrame(Listener listener) throws Exception {
+        if (!fill(HEADER_LENGTH)) {
+            return false;
+        }
+        final byte opcode = buffer.get();
+        final int length = buffer.getInt();
+        if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+            throw new IOException("Frame invalido, com " + length + " bytes");
+        }
+        if (!fill(length)) {
+            return false;
+        }
+        final int end = buffer.position() + length;
+        switch (opcode) {
+            case CLIST:
+                listener.contactList(readContacts());
+                break;
+            case CONAT:
+                listener.contactActive(readContact());
+                break;
+            case CONIN:
+                listener.contactInactive(readString());
+                break;
+            case CONBA:
+            case RESYN:
+                final List<Contact> online = readContacts();
+                final List<String> offline = new ArrayList<>();
+                for (int i = buffer.getInt(); i > 0; i--) {
+                    offline.add(readString());
+                }
+                if (opcode == CONBA) {
+                    listener.presenceBatch(online, offline);
+                } else {
+                    listener.resync(online, offline);
+                }
+                break;
+            case KEPTA:
+                listener.keptAlive(length >= 16 ? buffer.getLong() + ":" + buffer.getLong() : null);
+                break;
+            case GRPMS:
+                listener.groupMessage(readString(), readString(), readString());
+                break;
+            case MAILM:
+                final long sequence = buffer.getLong();
+                final long timestamp = buffer.getLong();
+                listener.mail(sequence, timestamp, readString(), readString());
+                break;
+            default:
+                //Opcode desconhecido, de uma versao mais nova do servidor
+                break;
+        }
+        buffer.position(end);
+        return true;
+    }
+
+    private List<Contact> readContacts() {
+        final int count = buffer.getInt();
+        final List<Contact> contacts = new ArrayList<>(Math.min(count, buffer.remaining()));
+        for (int i = 0; i < count; i++) {
+            contacts.add(readContact());
+        }
+        return contacts;
+    }
+
+    private Contact readContact() {
+        final Contact contact = new Contact();
+        contact.setName(readString());
+        contact.setIp(readString());
+        contact.setPort(String.valueOf(buffer.getShort() & 0xFFFF));
+        return contact;
+    }
+
+    private String readString() {
+        final int length = buffer.getShort() & 0xFFFF;
+        final String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Bloqueia ate haver pelo menos needed bytes no buffer, aumentando-o se preciso. Retorna false se o servidor
+     * fechou a conexao antes disso.
+     */
+    private boolean fill(int needed) throws IOException {
+        if (needed > MAX_MESSAGE_LENGTH + HEADER_LENGTH) {
+            throw new IOException("Mensagem do servidor maior que " + MAX_MESSAGE_LENGTH + " bytes");
+        }
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+        if (buffer.capacity() < needed) {
+            final ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        try {
+            while (buffer.position() < needed) {
+                if (input.read(buffer) < 0) {
+                    return false;
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+        return true;
+    }
+}
@@ -1,8 +1,9 @@
 package br.usp.redes;
 
 import javax.swing.*;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
 import javax.swing.plaf.ColorUIResource;
-import javax.swing.text.BadLocationException;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
@@ -11,14 +12,24 @@ import java.awt.event.WindowEvent;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.lang.reflect.InvocationTargetException;
 import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * <p>
@@ -26,8 +37,8 @@ import java.util.concurrent.TimeUnit;
  */
 public class Main {
 
-    //Lista dos contatos online
-    private static List<Contact> onlineContacts;
+    //Lista dos contatos online, usada apenas na Event Dispatch Thread
+    private static final ContactListModel contactModel = new ContactListModel();
 
     //Nome desse cliente
     private static String clientName;
@@ -48,6 +59,9 @@ public class Main {
 
     static StyledDocument doc;
 
+    //Insere no doc, na Event Dispatch Thread, as linhas recebidas de qualquer thread
+    static MessagePane messagePane;
+
     static JScrollPane scrollPane;
     static JScrollBar scrollPaneBar;
     static UIDefaults defs = UIManager.getDefaults();
@@ -55,34 +69,90 @@ public class Main {
 
     static Style notificationStyle, helpStyle;
 
+    //Listas de presenca maiores que isso sao mostradas apenas com o numero de contatos
+    private static final int CONTACTS_LISTED = 50;
+
+    //Intervalo maximo entre teclas digitadas na lista de contatos para que elas formem um unico filtro
+    private static final long TYPE_AHEAD_MILLIS = 1000;
+
+    //Filtro digitado na lista de contatos e quando foi a ultima tecla. Usados apenas na Event Dispatch Thread
+    private static String typedPrefix = "";
+
+    private static long lastTypedMillis;
+
+    //Diretorio onde ficam os arquivos recebidos dos contatos
+    private static final String RECEIVED_FILES_DIRECTORY = "recebidos";
+
+    //Diretorio onde fica o historico de mensagens, com um subdiretorio para cada nome de usuario
+    private static final String HISTORY_DIRECTORY = "historico";
+
+    //Mensagens do historico carregadas de cada vez: ao conectar e ao rolar ate o topo da area de mensagens
+    private static final int HISTORY_PAGE = 50;
+
+    //Historico local das mensagens, aberto no primeiro login, quando o nome deste cliente eh conhecido
+    private static volatile ChatHistory history;
+
+    //Numero, no historico, da mensagem mais antiga ja mostrada, e se uma pagina esta sendo carregada. Usados apenas
+    //na Event Dispatch Thread
+    private static long oldestShown;
+
+    private static boolean loadingHistory;
+
+    //Conexoes P2P abertas com os contatos, reaproveitadas entre mensagens
+    static final ContactConnections contactConnections = new ContactConnections(Main::messagesNotDelivered);
+
+    //Tamanho maximo, em MB, dos arquivos recebidos se "--max-file-mb" nao for informado
+    private static final long DEFAULT_MAX_FILE_MB = 1024;
+
+    //Transferencias de arquivos com os contatos, cada uma em uma conexao e thread proprias. Criado em main()
+    static FileTransfers fileTransfers;
+
+    /**
+     * Inicia o cliente. Aceita as opcoes "--log-level=debug|info|warn|error" (por padrao, info), "--log-file=caminho"
+     * (por padrao, o log vai para o console; veja Log) e "--max-file-mb=N", o tamanho maximo dos arquivos recebidos
+     * (por padrao, DEFAULT_MAX_FILE_MB).
+     */
+    public static void main(String[] args) throws IOException {
+        Log.Level logLevel = Log.Level.INFO;
+        String logFile = null;
+        long maxFileMegabytes = DEFAULT_MAX_FILE_MB;
+        for (String arg : args) {
+            if (arg.startsWith("--log-level=")) {
+                logLevel = Log.Level.valueOf(arg.substring("--log-level=".length()).toUpperCase());
+            } else if (arg.startsWith("--log-file=")) {
+                logFile = arg.substring("--log-file=".length());
+            } else if (arg.startsWith("--max-file-mb=")) {
+                maxFileMegabytes = Long.parseLong(arg.substring("--max-file-mb=".length()));
+            } else {
+                throw new IllegalArgumentException("Opcao desconhecida: " + arg);
+            }
+        }
+        Log.configure(logLevel, logFile);
 
-    public static void main(String[] args) throws IOException, BadLocationException {
+        fileTransfers = new FileTransfers(Paths.get(RECEIVED_FILES_DIRECTORY), maxFileMegabytes * 1024 * 1024,
+                status -> messagePane.append(status + "\n", notificationStyle), Main::acceptFile);
         defineInterface();
 
-        //Cria o socket que escuta conexoes de outros contatos
-        ServerSocket listener = new ServerSocket(0);
-        clientMessagesIp = listener.getInetAddress().getHostAddress();
-        clientMessagesPort = String.valueOf(listener.getLocalPort());
+        //Cria o canal que escuta conexoes de outros contatos, com mensagens ou arquivos
+        ContactListener listener = new ContactListener(
+                message -> showMessage(senderOf(message), false, message), fileTransfers);
+        clientMessagesIp = listener.getLocalAddress().getAddress().getHostAddress();
+        clientMessagesPort = String.valueOf(listener.getLocalAddress().getPort());
         System.out.println("Cliente ira escutar outros clientes em " + clientMessagesIp + ":" + clientMessagesPort);
 
         //Cria o socket para conexao com o servidor
         ServerHandler serverHandler = new ServerHandler();
         serverHandler.start();
 
-        try {
-            System.out.println("Cliente escutando outros clientes...");
-            while (true) {
-                new ContactHandler(listener.accept()).start();
-            }
-        } finally {
-            listener.close();
-        }
+        System.out.println("Cliente escutando outros clientes...");
+        listener.run();
     }
 
     private static void defineInterface() {
         // Define estilos para textos
         defs.put("TextPane.background", new ColorUIResource(Color.white));
         doc = messagesArea.getStyledDocument();
+        messagePane = new MessagePane(doc);
         messagesStyle = messagesArea.addStyle("publicMessage", null);
         notificationStyle = messagesArea.addStyle("notification", null);
         helpStyle = messagesArea.addStyle("help", null);
@@ -97,8 +167,26 @@ public class Main {
         scrollPaneBar = scrollPane.getVerticalScrollBar();
         frame.getContentPane().add(scrollPane, BorderLayout.CENTER);
 
-        contactListSelection = new JComboBox<>();
+        contactListSelection = new JComboBox<>(contactModel);
         contactListSelection.setSize(20, 80);
+        //Com um prototipo, a largura nao eh medida item por item, o que travaria a janela com milhares de contatos
+        final Contact prototype = new Contact();
+        prototype.setName("XXXXXXXXXXXXXXXX");
+        contactListSelection.setPrototypeDisplayValue(prototype);
+        //Digitar com a lista em foco filtra os contatos pelo comeco do nome, ate ela fechar
+        contactListSelection.setKeySelectionManager((key, model) -> typeAhead(key));
+        contactListSelection.addPopupMenuListener(new PopupMenuListener() {
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+            }
+
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {
+                typedPrefix = "";
+                SwingUtilities.invokeLater(() -> contactModel.setFilter(""));
+            }
+
+            public void popupMenuCanceled(PopupMenuEvent e) {
+            }
+        });
         inputField.setEditable(false);
         controlsPanel.add(contactListSelection, BorderLayout.EAST);
         controlsPanel.add(inputField, BorderLayout.WEST);
@@ -111,51 +199,288 @@ public class Main {
             String command = inputField.getText();
             Contact recipient = (Contact) contactListSelection.getSelectedItem();
 
-            try {
-                Socket socket = new Socket(recipient.getIp(), Integer.valueOf(recipient.getPort()));
-                //Fluxo que envia mensagens ao contato
-                PrintWriter contactOut = new PrintWriter(socket.getOutputStream(), true);
-                contactOut.println(clientName + ": " + command);
-                doc.insertString(doc.getLength(), clientName + ": " + command + "\n", notificationStyle);
-            } catch (IOException | BadLocationException e1) {
-                e1.printStackTrace();
+            if (command.startsWith("/historico ")) {
+                //Ultimas mensagens trocadas com um contato ou grupo: "/historico contato"
+                showContactHistory(command.substring("/historico ".length()).trim());
+            } else if (command.startsWith("/arquivo ")) {
+                //Arquivo para o contato selecionado: "/arquivo caminho"
+                if (recipient == null) {
+                    messagePane.append("Nenhum contato online.\n", helpStyle);
+                    return;
+                }
+                final Path file = Paths.get(command.substring("/arquivo ".length()).trim());
+                if (!Files.isRegularFile(file)) {
+                    messagePane.append("Arquivo nao encontrado: " + file + "\n", helpStyle);
+                    return;
+                }
+                fileTransfers.send(recipient, file, clientName);
+            } else if (command.startsWith("/recado ")) {
+                //Mensagem para um contato offline, guardada na caixa postal do servidor: "/recado contato texto"
+                final String[] parts = command.substring("/recado ".length()).trim().split(" ", 2);
+                if (parts.length < 2) {
+                    messagePane.append("Use /recado contato mensagem para falar com um contato offline.\n", helpStyle);
+                    return;
+                }
+                final String offlineContact = parts[0];
+                final String text = parts[1];
+                //Mostrada e guardada no historico apenas se o servidor a recebeu; senao o erro ja foi mostrado
+                if (ServerHandler.sendOfflineMessage(offlineContact, text)) {
+                    showMessage(offlineContact, true, clientName + " (para " + offlineContact + "): " + text);
+                }
+            } else if (command.startsWith("/grupo ")) {
+                //Mensagem de grupo, repassada pelo servidor aos membros: "/grupo #grupo texto"
+                final String[] parts = command.substring("/grupo ".length()).trim().split(" ", 2);
+                if (parts.length < 2) {
+                    messagePane.append("Use /grupo #grupo mensagem para falar em um grupo.\n", helpStyle);
+                    return;
+                }
+                final String group = parts[0].startsWith("#") ? parts[0] : "#" + parts[0];
+                final String text = parts[1];
+                //Mostrada e guardada no historico apenas se o servidor a recebeu; senao o erro ja foi mostrado
+                if (ServerHandler.sendGroupMessage(group, text)) {
+                    showMessage(group, true, "[" + group + "] " + clientName + ": " + text);
+                }
+            } else if (recipient == null) {
+                messagePane.append("Nenhum contato online.\n", helpStyle);
+                return;
+            } else {
+                //Apenas enfileira: a conexao com o contato eh aberta e usada pela thread dele em ContactConnections
+                contactConnections.send(recipient, clientName + ": " + command);
+                showMessage(recipient.getName(), true, clientName + ": " + command);
             }
 
             scrollPaneBar.setValue(scrollPaneBar.getMaximum());
             inputField.setText("");
         });
 
+        //Ao rolar ate o topo, carrega as mensagens anteriores do historico
+        scrollPaneBar.addAdjustmentListener(e -> {
+            if (e.getValue() == scrollPaneBar.getMinimum()
+                    && scrollPaneBar.getMaximum() > scrollPaneBar.getVisibleAmount()) {
+                loadOlderHistory();
+            }
+        });
+
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         frame.setVisible(true);
     }
 
-    private static void updateContactActive(String contactData) throws BadLocationException {
-        final String contactName = contactData.split("/")[0];
-        Contact contact = MessageParser.parseContactsFromMessage(contactData).get(0);
-        onlineContacts.add(contact);
-        contactListSelection.addItem(contact);
+    /**
+     * Mostra uma mensagem trocada com contact (um contato ou grupo) e a grava no historico.
+     */
+    private static void showMessage(String contact, boolean sent, String text) {
+        messagePane.append(text + "\n", sent ? notificationStyle : messagesStyle);
+        final ChatHistory h = history;
+        if (h != null) {
+            try {
+                h.append(contact, sent, text);
+            } catch (IOException e) {
+                Log.error("erro ao gravar o historico", "erro", e);
+            }
+        }
+    }
+
+    /**
+     * Remetente de uma mensagem P2P, que chega como "nome: texto".
+     */
+    static String senderOf(String message) {
+        final int colon = message.indexOf(": ");
+        return colon > 0 ? message.substring(0, colon) : "";
+    }
+
+    /**
+     * Abre o historico do cliente e mostra as ultimas mensagens acima do que ja esta na area de mensagens. Chamado no
+     * primeiro login.
+     */
+    private static void openHistory() {
+        final ChatHistory h;
+        final long size;
+        try {
+            h = ChatHistory.open(Paths.get(HISTORY_DIRECTORY, URLEncoder.encode(clientName, StandardCharsets.UTF_8)));
+            //Lido antes de publicar o historico: as mensagens gravadas depois disso ja estao na area de mensagens
+            size = h.size();
+        } catch (IOException e) {
+            messagePane.append("ERRO: Nao foi possivel abrir o historico: " + e.getMessage() + "\n", notificationStyle);
+            return;
+        }
+        history = h;
+        SwingUtilities.invokeLater(() -> {
+            oldestShown = size;
+            loadOlderHistory();
+            SwingUtilities.invokeLater(() -> scrollPaneBar.setValue(scrollPaneBar.getMaximum()));
+        });
+    }
+
+    /**
+     * Insere no topo da area de mensagens ate HISTORY_PAGE mensagens anteriores a mais antiga mostrada, mantendo
+     * visivel o que estava na tela. Para quando o historico acaba ou a area de mensagens chega a MessagePane.MAX_LINES
+     * linhas. Executado na Event Dispatch Thread.
+     */
+    private static void loadOlderHistory() {
+        if (history == null || oldestShown == 0 || loadingHistory) {
+            return;
+        }
+        final List<ChatHistory.Entry> entries;
+        try {
+            entries = history.page(oldestShown, HISTORY_PAGE);
+        } catch (IOException e) {
+            Log.error("erro ao ler o historico", "erro", e);
+            return;
+        }
+        final List<MessagePane.Line> lines = new ArrayList<>(entries.size());
+        for (ChatHistory.Entry entry : entries) {
+            lines.add(new MessagePane.Line(entry.getText() + "\n", entry.isSent() ? notificationStyle : messagesStyle));
+        }
+        final int fromBottom = scrollPaneBar.getMaximum() - scrollPaneBar.getValue();
+        loadingHistory = true;
+        final int inserted = messagePane.prepend(lines);
+        //Se nem todas couberam, a area de mensagens esta cheia e nao carrega mais nada
+        oldestShown = inserted == lines.size() ? oldestShown - inserted : 0;
+        SwingUtilities.invokeLater(() -> {
+            scrollPaneBar.setValue(scrollPaneBar.getMaximum() - fromBottom);
+            loadingHistory = false;
+        });
+    }
+
+    /**
+     * Mostra as ultimas mensagens trocadas com o contato ou grupo, lidas do indice dele no historico.
+     */
+    private static void showContactHistory(String contact) {
+        if (history == null) {
+            messagePane.append("O historico so fica disponivel depois de conectar.\n", helpStyle);
+            return;
+        }
+        try {
+            final List<ChatHistory.Entry> entries = history.contactTail(contact, HISTORY_PAGE);
+            messagePane.append("Ultimas " + entries.size() + " mensagens com " + contact + ":\n", helpStyle);
+            final SimpleDateFormat format = new SimpleDateFormat("dd/MM HH:mm");
+            for (ChatHistory.Entry entry : entries) {
+                messagePane.append("[" + format.format(new Date(entry.getTimestamp())) + "] " + entry.getText() + "\n",
+                        entry.isSent() ? notificationStyle : messagesStyle);
+            }
+        } catch (IOException e) {
+            messagePane.append("ERRO: Nao foi possivel ler o historico: " + e.getMessage() + "\n", notificationStyle);
+        }
+    }
+
+    /**
+     * Chamado por ContactConnections quando mensagens nao puderam ser entregues ao contato por P2P. Se o servidor
+     * aceitou "MAIL", elas sao guardadas na caixa postal do contato, para que ele as receba quando estiver online.
+     */
+    private static void messagesNotDelivered(Contact contact, List<String> messages, IOException e) {
+        if (!ServerHandler.mailAvailable()) {
+            messagePane.append("ERRO: " + messages.size() + " mensagem(ns) nao entregue(s) a " + contact.getName()
+                    + ": " + e.getMessage() + "\n", notificationStyle);
+            return;
+        }
+        final String prefix = clientName + ": ";
+        int stored = 0;
+        for (String message : messages) {
+            if (ServerHandler.sendOfflineMessage(contact.getName(),
+                    message.startsWith(prefix) ? message.substring(prefix.length()) : message)) {
+                stored++;
+            }
+        }
+        if (stored > 0) {
+            messagePane.append(stored + " mensagem(ns) guardada(s) no servidor para " + contact.getName()
+                    + ": " + e.getMessage() + "\n", notificationStyle);
+        }
+    }
+
+    /**
+     * Filtra a lista de contatos pelo que foi digitado nela em menos de TYPE_AHEAD_MILLIS entre uma tecla e outra, e
+     * seleciona o primeiro contato que sobra. Backspace apaga a ultima letra do filtro.
+     */
+    private static int typeAhead(char key) {
+        final long now = System.currentTimeMillis();
+        if (key == '\b') {
+            typedPrefix = typedPrefix.isEmpty() ? "" : typedPrefix.substring(0, typedPrefix.length() - 1);
+        } else if (!Character.isISOControl(key)) {
+            typedPrefix = now - lastTypedMillis > TYPE_AHEAD_MILLIS ? String.valueOf(key) : typedPrefix + key;
+        }
+        lastTypedMillis = now;
+        contactModel.setFilter(typedPrefix);
+        if (contactModel.getSize() == 0) {
+            return -1;
+        }
+        contactListSelection.showPopup();
+        return 0;
+    }
+
+    /**
+     * Troca a lista de contatos online pela lista completa recebida no CLIST. Como os outros update*, executado na
+     * Event Dispatch Thread.
+     */
+    private static void updateContactList(List<Contact> contacts) {
+        contactConnections.retain(contacts);
+        contactModel.setContacts(contacts);
+        if (contacts.isEmpty()) {
+            //Se nao tinver recebido nenhum contato online
+            messagePane.append("Nenhum contato online.\n", notificationStyle);
+        } else if (contacts.size() <= CONTACTS_LISTED) {
+            messagePane.append("Contatos online:" + contacts + "\n", notificationStyle);
+        } else {
+            messagePane.append(contacts.size() + " contatos online.\n", notificationStyle);
+        }
+        //Mesmo sem contatos online, ainda da para falar nos grupos
         inputField.setEditable(true);
+    }
+
+    private static void updateContactActive(Contact contact) {
+        //Se o contato ja estava na lista, eh substituido pelo endereco novo
+        contactModel.add(contact);
 
-        doc.insertString(doc.getLength(), contactName + " esta online.\n", notificationStyle);
+        messagePane.append(contact.getName() + " esta online.\n", notificationStyle);
     }
 
-    private static void updateContactInactive(String contactName) throws BadLocationException {
-        Contact toRemove = new Contact();
-        toRemove.setName(contactName);
-        contactListSelection.removeItem(toRemove);
-        onlineContacts.remove(toRemove);
-        if (onlineContacts.size() == 0) {
-            inputField.setEditable(false);
+    private static void updateContactInactive(String contactName) {
+        contactModel.remove(contactName);
+        contactConnections.close(contactName);
+
+        messagePane.append(contactName + " esta offline.\n", notificationStyle);
+    }
+
+    /**
+     * Aplica um lote de mudancas de presenca (mensagem CONBA). Veja ContactListModel.apply.
+     */
+    private static void updateContactsBatch(List<Contact> online, List<String> offline) {
+        for (String contactName : offline) {
+            contactConnections.close(contactName);
         }
+        contactModel.apply(online, offline);
 
-        doc.insertString(doc.getLength(), contactName + " esta offline.\n", notificationStyle);
+        if (!online.isEmpty()) {
+            messagePane.append((online.size() <= CONTACTS_LISTED ? online.toString() : online.size() + " contatos")
+                    + " online.\n", notificationStyle);
+        }
+        if (!offline.isEmpty()) {
+            messagePane.append((offline.size() <= CONTACTS_LISTED ? offline.toString() : offline.size() + " contatos")
+                    + " offline.\n", notificationStyle);
+        }
+    }
+
+    /**
+     * Pergunta ao usuario, na Event Dispatch Thread, se deve receber o arquivo oferecido. Arquivos de quem nao esta na
+     * lista de contatos online sao recusados sem perguntar.
+     */
+    private static boolean acceptFile(String sender, String name, long size) {
+        final boolean[] accepted = new boolean[1];
+        try {
+            SwingUtilities.invokeAndWait(() -> accepted[0] = contactModel.contains(sender)
+                    && JOptionPane.showConfirmDialog(frame, sender + " quer enviar " + name + " ("
+                    + FileTransfers.megabytes(size) + "). Receber o arquivo?", "Arquivo recebido",
+                    JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION);
+        } catch (InterruptedException | InvocationTargetException e) {
+            return false;
+        }
+        return accepted[0];
     }
 
     /**
      * Mostra uma caixa de dialogo perguntando endereco do servidor
      */
     private static String getServerAddress() {
-        return JOptionPane.showInputDialog(frame, "Endereco IP do servidor:", "Bem vindo!",
+        return JOptionPane.showInputDialog(frame, "Endereco IP do servidor (ip ou ip:porta):", "Bem vindo!",
                 JOptionPane.QUESTION_MESSAGE);
     }
 
@@ -170,10 +495,16 @@ public class Main {
     /**
      * Mostra conteudo de ajuda com comandos disponiveis para o usuario
      */
-    private static void printHelp() throws BadLocationException {
-        doc.insertString(doc.getLength(), "= = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =\n", helpStyle);
-        doc.insertString(doc.getLength(), "Selecione um contato, digite a mensagem e aperte Enter.\n", helpStyle);
-        doc.insertString(doc.getLength(), "= = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =\n", helpStyle);
+    private static void printHelp() {
+        messagePane.append("= = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =\n", helpStyle);
+        messagePane.append("Selecione um contato, digite a mensagem e aperte Enter.\n", helpStyle);
+        messagePane.append("Para falar em um grupo, digite /grupo #grupo mensagem.\n", helpStyle);
+        messagePane.append("Para deixar uma mensagem a um contato offline, digite /recado contato mensagem.\n",
+                helpStyle);
+        messagePane.append("Para enviar um arquivo ao contato selecionado, digite /arquivo caminho.\n", helpStyle);
+        messagePane.append("Para ver as ultimas mensagens com um contato, digite /historico contato.\n", helpStyle);
+        messagePane.append("Role ate o topo para ver as mensagens anteriores.\n", helpStyle);
+        messagePane.append("= = = = = = = = = = = = = = = = = = = = = = = = = = = = = = =\n", helpStyle);
     }
 
     //Classe que gerencia a conexao com o servidor
@@ -182,79 +513,100 @@ public class Main {
         //Objeto para ficar executando o Keep Alive
         private static ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
 
-        //Fluxo que recebe mensagens do servidor
-        static BufferedReader serverIn;
+        //Fluxo que recebe mensagens do servidor, em linhas de texto ou frames binarios
+        static FrameReader serverIn;
 
         //Fluxo que envia mensagens ao servidor
         static PrintWriter serverOut;
 
+        //Fluxo de bytes por baixo de serverOut, usado para mandar frames no modo binario
+        static OutputStream serverOutput;
+
+        //Se o Keep Alive ja foi iniciado, pelo primeiro CLIST
+        private static boolean keepAliveStarted;
+
+        //Se este cliente aceitou o modo binario oferecido no WHORU
+        private static boolean binaryAccepted;
+
+        //Se este cliente aceitou a caixa postal oferecida no WHORU
+        private static volatile boolean mailAccepted;
+
+        //Maior sequencia recebida da caixa postal. Mensagens entregues de novo, sem confirmacao, sao ignoradas
+        private static long lastMailSequence;
+
+        //Se as mensagens com o servidor ja sao frames binarios, o que acontece a partir do CLIST quando aceito
+        private static volatile boolean binary;
+
+        private static String serverAddress;
+
+        private static final int DEFAULT_SERVER_PORT = 9001;
+
+        //Nome ja digitado, repetido sem perguntar quando o servidor redireciona este cliente com MOVED ou quando ele
+        //reconecta
+        private static String movedName;
+
+        //Endereco digitado pelo usuario, usado ao reconectar. Num cluster, o servidor redireciona ao no certo
+        private static String initialAddress;
+
+        //Espera antes de tentar reconectar, dobrando a cada tentativa sem sucesso ate RECONNECT_MAX_MILLIS
+        private static final long RECONNECT_MIN_MILLIS = 1000;
+
+        private static final long RECONNECT_MAX_MILLIS = 30000;
+
+        //Se o servidor ja registrou este cliente na conexao atual. So entao o Keep Alive eh enviado
+        private static volatile boolean loggedIn;
+
+        //Se o usuario desistiu de informar o nome, encerrando o programa
+        private static boolean quit;
+
+        //Versao da presenca recebida no ultimo KEPTA, informada ao servidor ao reconectar para receber apenas o que
+        //mudou (RESYN) em vez do CLIST
+        private static volatile String presenceVersion;
+
         /**
          * Conecta ao servidor e entra no loop de processamento
          */
         public void run() {
 
             try {
-                String serverAddress = getServerAddress();
+                serverAddress = getServerAddress();
                 if (serverAddress == null) {
                     frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
                     return;
                 }
-                Socket socket = new Socket(serverAddress, 9001);
-                serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                serverOut = new PrintWriter(socket.getOutputStream(), true);
-
-                // Processa todas as mensagens do servidor, de acordo com o protocolo
+                initialAddress = serverAddress;
+                final FrameReader.Listener frames = new ServerFrames();
+                long reconnectMillis = RECONNECT_MIN_MILLIS;
                 while (true) {
-                    String line = serverIn.readLine();
-                    System.out.println("Received:" + line);
-
-                    if (line == null || line.startsWith("null")) {
-                        //Servidor nao respondendo KEPTA.
-                        doc.insertString(doc.getLength(), "ERRO: Servidor desconectou. Favor reiniciar o programa\n",
-                                notificationStyle);
-                        contactListSelection.removeAll();
-                        inputField.setEditable(false);
+                    String moved;
+                    try {
+                        moved = serve(connect(serverAddress), frames);
+                    } catch (IOException e) {
+                        title.setText("Tentando conectar ao servidor " + initialAddress + "...");
+                        moved = null;
+                    }
+                    if (quit) {
                         return;
+                    }
+                    //Repete o nome sem pergunta-lo de novo
+                    movedName = clientName;
+                    if (moved != null) {
+                        //Conecta ao servidor do cluster indicado
+                        serverAddress = moved;
+                        continue;
+                    }
 
-                    } else if (line.startsWith("WHORU")) {
-                        //Servidor perguntando Who Are You
-                        clientName = getClientName();
-                        if (clientName == null) {
-                            frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
-                            return;
-                        }
-                        serverOut.println(clientName + "/" + clientMessagesIp + ":" + clientMessagesPort);
-
-                    } else if (line.startsWith("CLIST")) {
-                        //Conexao com servidor bem sucedida.
-                        //Inicializa interface cliente.
-                        title.setText("Conectado como " + clientName + " no servidor " + serverAddress);
-                        final String[] contactsMsg = line.split(" ");
-                        if (contactsMsg.length > 1) {
-                            //Se tiver recebido pelo menos algum contato
-                            onlineContacts = MessageParser.parseContactsFromMessage(contactsMsg[1]);
-                            for (Contact contact : onlineContacts) {
-                                contactListSelection.addItem(contact);
-                            }
-                            doc.insertString(doc.getLength(), "Contatos online:" + onlineContacts + "\n", notificationStyle);
-                        } else {
-                            //Se nao tinver recebido nenhum contato online
-                            onlineContacts = new ArrayList<>();
-                            doc.insertString(doc.getLength(), "Nenhum contato online.\n", notificationStyle);
-                        }
-
-                        //Comeca a enviar mensagens de Keep Alive
-                        ses.scheduleAtFixedRate(() -> serverOut.println("KEEPA"), 0, 1, TimeUnit.SECONDS);
-
-                        inputField.setEditable(true);
-                        printHelp();
-
-                    } else if (line.startsWith("CONAT")) {
-                        updateContactActive(line.split(" ")[1]);
-
-                    } else if (line.startsWith("CONIN")) {
-                        updateContactInactive(line.split(" ")[1]);
+                    //O servidor caiu ou nao respondeu: tenta de novo depois de uma espera aleatoria, para que os
+                    //clientes de um servidor reiniciado nao reconectem todos ao mesmo tempo
+                    if (loggedIn) {
+                        serverDisconnected();
+                        reconnectMillis = RECONNECT_MIN_MILLIS;
                     }
+                    loggedIn = false;
+                    final long wait = reconnectMillis / 2 + ThreadLocalRandom.current().nextLong(reconnectMillis / 2);
+                    Thread.sleep(wait);
+                    reconnectMillis = Math.min(reconnectMillis * 2, RECONNECT_MAX_MILLIS);
+                    serverAddress = initialAddress;
                 }
             } catch (Exception ignored) {
             } finally {
@@ -264,42 +616,309 @@ public class Main {
 
         }
 
-    }
+        /**
+         * Conversa com o servidor na conexao ate ela terminar. Retorna o endereco recebido em "MOVED host:porta", caso
+         * o servidor redirecione este cliente para outro no do cluster, ou null.
+         */
+        private static String serve(Socket socket, FrameReader.Listener frames) throws Exception {
+            serverIn = new FrameReader(socket.getInputStream());
+            serverOutput = socket.getOutputStream();
+            serverOut = new PrintWriter(serverOutput, true);
+            binary = false;
 
-    //Classe que recebe conexoes de outros clientes/contatos
-    private static class ContactHandler extends Thread {
+            // Processa todas as mensagens do servidor, de acordo com o protocolo
+            while (true) {
+                if (binaryAccepted && !binary && serverIn.nextIsFrame()) {
+                    //O servidor registrou este cliente e passou para o modo binario
+                    binary = true;
+                }
+                if (binary) {
+                    if (!serverIn.readFrame(frames)) {
+                        return null;
+                    }
+                    continue;
+                }
 
-        private Socket socket;
+                String line = serverIn.readLine();
+                //Cada linha, KEPTA inclusive, so eh logada com --log-level=debug
+                Log.debug("recebido do servidor", "linha", line);
+
+                if (line == null || line.startsWith("null")) {
+                    //Servidor nao respondendo KEPTA.
+                    return null;
+
+                } else if (line.startsWith("WHORU")) {
+                    //Servidor perguntando Who Are You
+                    clientName = movedName != null ? movedName : getClientName();
+                    movedName = null;
+                    if (clientName == null) {
+                        quit = true;
+                        frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
+                        return null;
+                    }
+                    String capabilities = MessageParser.acceptedCapabilities(line);
+                    binaryAccepted = capabilities.contains(MessageParser.BINARY_CAPABILITY);
+                    mailAccepted = capabilities.contains(MessageParser.MAIL_CAPABILITY);
+                    if (presenceVersion != null && capabilities.contains(MessageParser.RESYNC_CAPABILITY)) {
+                        capabilities += " SINCE=" + presenceVersion;
+                    }
+                    serverOut.println(clientName + "/" + clientMessagesIp + ":" + clientMessagesPort
+                            + capabilities);
 
-        //Fluxo de entrada de dados. Recebe do cliente
-        private BufferedReader in;
+                } else if (line.startsWith("MOVED")) {
+                    //Este nome pertence a outro servidor do cluster
+                    socket.close();
+                    return line.substring("MOVED ".length());
+
+                } else if (line.startsWith("CLIST")) {
+                    //Conexao com servidor bem sucedida, ou lista completa reenviada pelo servidor quando ele
+                    //descarta avisos de presenca que este cliente nao deu conta de receber.
+                    //Inicializa (ou reinicializa) interface cliente.
+                    final String[] contactsMsg = line.split(" ");
+                    connected(contactsMsg.length > 1
+                            ? MessageParser.parseContactsFromMessage(contactsMsg[1])
+                            : new ArrayList<>());
+
+                } else if (line.startsWith("CONAT")) {
+                    final Contact contact = MessageParser.parseContactsFromMessage(line.split(" ")[1]).get(0);
+                    SwingUtilities.invokeLater(() -> updateContactActive(contact));
+
+                } else if (line.startsWith("CONIN")) {
+                    final String contactName = line.split(" ")[1];
+                    SwingUtilities.invokeLater(() -> updateContactInactive(contactName));
+
+                } else if (line.startsWith("CONBA")) {
+                    final List<Contact> online = new ArrayList<>();
+                    final List<String> offline = new ArrayList<>();
+                    MessageParser.parsePresenceBatch(line.substring("CONBA ".length()), online, offline);
+                    SwingUtilities.invokeLater(() -> updateContactsBatch(online, offline));
+
+                } else if (line.startsWith("RESYN")) {
+                    //Reconexao aceita com a versao da presenca: so vem o que mudou desde ela
+                    final List<Contact> online = new ArrayList<>();
+                    final List<String> offline = new ArrayList<>();
+                    MessageParser.parsePresenceBatch(line.substring("RESYN".length()).trim(), online, offline);
+                    resynced(online, offline);
+
+                } else if (line.startsWith("KEPTA ")) {
+                    presenceVersion = line.substring("KEPTA ".length());
+
+                } else if (line.startsWith("GRPMS ")) {
+                    //"GRPMS #grupo remetente texto"
+                    final String[] groupMsg = line.split(" ", 4);
+                    if (groupMsg.length == 4) {
+                        groupMessageReceived(groupMsg[1], groupMsg[2], groupMsg[3]);
+                    }
 
-        public ContactHandler(Socket socket) {
-            this.socket = socket;
+                } else if (line.startsWith("MAILM ")) {
+                    //"MAILM sequencia remetente instante texto"
+                    final String[] mail = line.split(" ", 5);
+                    if (mail.length == 5) {
+                        mailReceived(Long.parseLong(mail[1]), Long.parseLong(mail[3]), mail[2], mail[4]);
+                    }
+                }
+            }
         }
 
-        public void run() {
-            try {
-                // Create character streams for the socket.
-                while (true) {
-                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    final String message = in.readLine();
+        /**
+         * Conecta ao endereco "ip" ou "ip:porta" do servidor, usando DEFAULT_SERVER_PORT se a porta nao for informada.
+         */
+        private static Socket connect(String address) throws IOException {
+            final int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                return new Socket(address, DEFAULT_SERVER_PORT);
+            }
+            return new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
 
-                    if (message != null) {
-                        doc.insertString(doc.getLength(), message + "\n", messagesStyle);
-                        break;
+        /**
+         * Trata o CLIST, recebido quando o servidor aceita este cliente ou quando reenvia a lista completa.
+         */
+        private static void connected(List<Contact> contacts) {
+            title.setText("Conectado como " + clientName + " no servidor " + serverAddress);
+            loggedIn = true;
+            SwingUtilities.invokeLater(() -> updateContactList(contacts));
+
+            if (!keepAliveStarted) {
+                //Comeca a enviar mensagens de Keep Alive
+                ses.scheduleAtFixedRate(ServerHandler::sendKeepAlive, 0, 1, TimeUnit.SECONDS);
+                keepAliveStarted = true;
+                printHelp();
+                openHistory();
+            }
+        }
+
+        /**
+         * Trata o RESYN, recebido quando o servidor aceita a versao da presenca informada ao reconectar. A lista de
+         * contatos continua valendo, e so muda o que veio no RESYN.
+         */
+        private static void resynced(List<Contact> online, List<String> offline) {
+            title.setText("Conectado como " + clientName + " no servidor " + serverAddress);
+            loggedIn = true;
+            messagePane.append("Reconectado ao servidor.\n", notificationStyle);
+            SwingUtilities.invokeLater(() -> {
+                //Os contatos que ja estavam offline para este cliente nao sao repetidos
+                final List<String> wentOffline = new ArrayList<>();
+                for (String contactName : offline) {
+                    if (contactModel.contains(contactName)) {
+                        wentOffline.add(contactName);
                     }
                 }
+                if (!online.isEmpty() || !wentOffline.isEmpty()) {
+                    updateContactsBatch(online, wentOffline);
+                }
+            });
+        }
 
-            } catch (IOException | BadLocationException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    socket.close();
-                } catch (IOException ignored) {
+        private static void sendKeepAlive() {
+            if (!loggedIn) {
+                //Reconectando: o servidor ainda espera a resposta ao WHORU
+                return;
+            }
+            if (!binary) {
+                serverOut.println("KEEPA");
+                return;
+            }
+            try {
+                serverOutput.write(FrameReader.keepAliveFrame());
+                serverOutput.flush();
+            } catch (IOException ignored) {
+                //A leitura percebe que o servidor desconectou
+            }
+        }
+
+        /**
+         * Pede ao servidor para repassar o texto aos membros do grupo. Retorna false, depois de mostrar o erro, se a
+         * mensagem nao chegou a ser enviada ao servidor.
+         */
+        static boolean sendGroupMessage(String group, String text) {
+            if (!loggedIn) {
+                messagePane.append("ERRO: Sem conexao com o servidor, mensagem para " + group + " nao enviada.\n",
+                        notificationStyle);
+                return false;
+            }
+            try {
+                sendToServer("GROUP " + group + " " + text, () -> FrameReader.groupMessageFrame(group, text));
+                return true;
+            } catch (IOException e) {
+                messagePane.append("ERRO: mensagem para " + group + " nao enviada: " + e.getMessage() + "\n",
+                        notificationStyle);
+                return false;
+            }
+        }
+
+        private static void groupMessageReceived(String group, String sender, String text) {
+            showMessage(group, false, "[" + group + "] " + sender + ": " + text);
+        }
+
+        /**
+         * Se o servidor guarda mensagens para contatos offline na conexao atual.
+         */
+        static boolean mailAvailable() {
+            return loggedIn && mailAccepted;
+        }
+
+        /**
+         * Pede ao servidor para guardar o texto na caixa postal do contato, que o recebe quando estiver online. Retorna
+         * false, depois de mostrar o erro, se a mensagem nao chegou a ser enviada ao servidor.
+         */
+        static boolean sendOfflineMessage(String recipient, String text) {
+            if (!mailAvailable()) {
+                messagePane.append("ERRO: O servidor nao esta guardando mensagens, mensagem para " + recipient
+                        + " nao enviada.\n", notificationStyle);
+                return false;
+            }
+            try {
+                sendToServer("OFFMS " + recipient + " " + text,
+                        () -> FrameReader.offlineMessageFrame(recipient, text));
+                return true;
+            } catch (IOException e) {
+                messagePane.append("ERRO: mensagem para " + recipient + " nao enviada: " + e.getMessage() + "\n",
+                        notificationStyle);
+                return false;
+            }
+        }
+
+        /**
+         * Mostra a mensagem que ficou na caixa postal do servidor, com o instante em que foi enviada, e confirma o
+         * recebimento para que o servidor a apague.
+         */
+        private static void mailReceived(long sequence, long timestamp, String sender, String text) {
+            if (sequence > lastMailSequence) {
+                lastMailSequence = sequence;
+                final String sent = new SimpleDateFormat("dd/MM HH:mm").format(new Date(timestamp));
+                showMessage(sender, false, "[" + sent + "] " + sender + ": " + text);
+            }
+            try {
+                sendToServer("MAILA " + sequence, () -> FrameReader.mailAckFrame(sequence));
+            } catch (IOException ignored) {
+                //Sem confirmacao, o servidor entrega a mensagem de novo no proximo login
+            }
+        }
+
+        /**
+         * Manda ao servidor a linha, ou o frame equivalente no modo binario.
+         */
+        private static void sendToServer(String line, Supplier<byte[]> frame) throws IOException {
+            if (!binary) {
+                serverOut.println(line);
+                //O PrintWriter nao lanca a falha de escrita, apenas a guarda
+                if (serverOut.checkError()) {
+                    throw new IOException("conexao com o servidor fechada");
                 }
+                return;
+            }
+            serverOutput.write(frame.get());
+            serverOutput.flush();
+        }
+
+        /**
+         * Avisa que o servidor caiu. A lista de contatos eh mantida, pois as conversas P2P continuam funcionando, e eh
+         * atualizada quando a reconexao conseguir.
+         */
+        private static void serverDisconnected() {
+            title.setText("Reconectando ao servidor " + initialAddress + "...");
+            messagePane.append("ERRO: Servidor desconectou. Tentando reconectar...\n", notificationStyle);
+        }
+
+        /**
+         * Trata os frames recebidos do servidor no modo binario.
+         */
+        private static class ServerFrames implements FrameReader.Listener {
+
+            public void contactList(List<Contact> online) {
+                connected(online);
             }
 
+            public void contactActive(Contact contact) {
+                SwingUtilities.invokeLater(() -> updateContactActive(contact));
+            }
+
+            public void contactInactive(String contactName) {
+                SwingUtilities.invokeLater(() -> updateContactInactive(contactName));
+            }
+
+            public void presenceBatch(List<Contact> online, List<String> offline) {
+                SwingUtilities.invokeLater(() -> updateContactsBatch(online, offline));
+            }
+
+            public void resync(List<Contact> online, List<String> offline) {
+                resynced(online, offline);
+            }
+
+            public void keptAlive(String version) {
+                if (version != null) {
+                    presenceVersion = version;
+                }
+            }
+
+            public void groupMessage(String group, String sender, String text) {
+                groupMessageReceived(group, sender, text);
+            }
+
+            public void mail(long sequence, long timestamp, String sender, String text) {
+                mailReceived(sequence, timestamp, sender, text);
+            }
         }
 
     }
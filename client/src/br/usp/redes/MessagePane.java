@@ -0,0 +1,135 @@
+package br.usp.redes;
+
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Style;
+import javax.swing.text.StyledDocument;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Area de mensagens da janela. Qualquer thread pode chamar append; o texto entra em uma fila sem lock e um Timer do
+ * Swing o insere no documento na Event Dispatch Thread, de uma vez para tudo que chegou em FRAME_MILLIS.
+ * <p>
+ * O documento guarda apenas as ultimas MAX_LINES linhas: o tamanho de cada linha fica em um anel de ints e as mais
+ * antigas sao removidas do inicio do documento a cada insercao. Assim a memoria e o custo de inserir nao crescem com
+ * o tempo de uso.
+ * <p>
+ * Linhas mais antigas, do historico, podem ser inseridas no inicio com prepend enquanto o documento tem menos de
+ * MAX_LINES linhas.
+ */
+class MessagePane {
+
+    static final int MAX_LINES = 2000;
+
+    private static final int FRAME_MILLIS = 16;
+
+    private final StyledDocument doc;
+
+    //Textos recebidos de qualquer thread e ainda nao inseridos
+    private final Queue<Line> pending = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Timer timer;
+
+    //Tamanho de cada linha do documento, a partir da mais antiga em first. Usados apenas na Event Dispatch Thread
+    private final int[] lineLengths = new int[MAX_LINES];
+
+    private int first;
+
+    private int lines;
+
+    MessagePane(StyledDocument doc) {
+        this.doc = doc;
+        this.timer = new Timer(FRAME_MILLIS, e -> flush());
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Acrescenta uma linha, terminada por "\n", ao final da area de mensagens. Nao bloqueia.
+     */
+    void append(String text, Style style) {
+        pending.add(new Line(text, style));
+        if (flushScheduled.compareAndSet(false, true)) {
+            timer.start();
+        }
+    }
+
+    /**
+     * Insere as linhas, em ordem, no inicio do documento, acima das que ja estao nele. Se nao couberem todas em
+     * MAX_LINES, sao inseridas apenas as ultimas. Retorna quantas foram inseridas. Executado na Event Dispatch Thread.
+     */
+    int prepend(List<Line> older) {
+        final int count = Math.min(older.size(), MAX_LINES - lines);
+        int offset = 0;
+        try {
+            for (int i = older.size() - count; i < older.size(); i++) {
+                final Line l = older.get(i);
+                doc.insertString(offset, l.text, l.style);
+                offset += l.text.length();
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        first = (first - count + MAX_LINES) % MAX_LINES;
+        for (int i = 0; i < count; i++) {
+            lineLengths[(first + i) % MAX_LINES] = older.get(older.size() - count + i).text.length();
+        }
+        lines += count;
+        return count;
+    }
+
+    /**
+     * Insere as linhas pendentes e remove as que passaram de MAX_LINES. Executado na Event Dispatch Thread.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        //Das linhas que chegaram, so as ultimas MAX_LINES ficariam no documento
+        final ArrayDeque<Line> batch = new ArrayDeque<>();
+        Line line;
+        while ((line = pending.poll()) != null) {
+            if (batch.size() == MAX_LINES) {
+                batch.removeFirst();
+            }
+            batch.addLast(line);
+        }
+
+        int removed = 0;
+        try {
+            for (Line l : batch) {
+                doc.insertString(doc.getLength(), l.text, l.style);
+                if (lines == MAX_LINES) {
+                    removed += lineLengths[first];
+                    first = (first + 1) % MAX_LINES;
+                    lines--;
+                }
+                lineLengths[(first + lines) % MAX_LINES] = l.text.length();
+                lines++;
+            }
+            if (removed > 0) {
+                doc.remove(0, removed);
+            }
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Uma linha da area de mensagens, terminada por "\n", com seu estilo.
+     */
+    static class Line {
+
+        private final String text;
+
+        private final Style style;
+
+        Line(String text, Style style) {
+            this.text = text;
+            this.style = style;
+        }
+    }
+}
@@ -5,6 +5,26 @@ import java.util.List;
 
 public class MessageParser {
 
+    //Capacidade do protocolo: receber mudancas de presenca em lote (CONBA)
+    static final String BATCH_CAPABILITY = "BATCH";
+
+    //Capacidade do protocolo: trocar mensagens com o servidor em frames binarios (FrameReader) depois do registro
+    static final String BINARY_CAPABILITY = "BIN";
+
+    //Capacidade do protocolo: ser redirecionado com "MOVED host:porta" ao servidor do cluster ao qual o nome pertence
+    static final String MOVED_CAPABILITY = "MOVED";
+
+    //Capacidade do protocolo: receber a versao da presenca no KEPTA e, ao reconectar com "SINCE=versao", apenas o que
+    //mudou desde ela (RESYN) em vez do CLIST
+    static final String RESYNC_CAPABILITY = "RESYNC";
+
+    //Capacidade do protocolo: mandar e receber mensagens de grupo repassadas pelo servidor (GROUP/GRPMS)
+    static final String GROUP_CAPABILITY = "GROUP";
+
+    //Capacidade do protocolo: guardar mensagens para contatos offline na caixa postal do servidor (OFFMS) e receber
+    //as guardadas para este cliente (MAILM), confirmando-as (MAILA)
+    static final String MAIL_CAPABILITY = "MAIL";
+
     public static List<Contact> parseContactsFromMessage(String message) {
         List<Contact> contacts = new LinkedList<>();
 
@@ -26,4 +46,42 @@ public class MessageParser {
 
         return contacts;
     }
+
+    /**
+     * Monta o sufixo da resposta ao WHORU com as capacidades que o servidor ofereceu e que este cliente suporta.
+     * Exemplo: para "WHORU BATCH BIN", retorna " BATCH BIN". Servidores antigos nao oferecem nada e recebem so "nome/ip:porta".
+     */
+    public static String acceptedCapabilities(String whoruMessage) {
+        final StringBuilder accepted = new StringBuilder();
+        final String[] offered = whoruMessage.split(" ");
+        for (int i = 1; i < offered.length; i++) {
+            if (offered[i].equals(BATCH_CAPABILITY) || offered[i].equals(BINARY_CAPABILITY)
+                    || offered[i].equals(MOVED_CAPABILITY) || offered[i].equals(RESYNC_CAPABILITY)
+                    || offered[i].equals(GROUP_CAPABILITY) || offered[i].equals(MAIL_CAPABILITY)) {
+                accepted.append(" ").append(offered[i]);
+            }
+        }
+        return accepted.toString();
+    }
+
+    /**
+     * Interpreta um lote de mudancas de presenca "+nome/ip:porta;-nome" (mensagem CONBA). Os contatos que ficaram
+     * online sao adicionados a online, e os nomes dos que ficaram offline a offline.
+     */
+    public static void parsePresenceBatch(String message, List<Contact> online, List<String> offline) {
+        final StringBuilder onlineData = new StringBuilder();
+        for (String entry : message.split(";")) {
+            if (entry.startsWith("+")) {
+                if (onlineData.length() > 0) {
+                    onlineData.append(";");
+                }
+                onlineData.append(entry, 1, entry.length());
+            } else if (entry.startsWith("-")) {
+                offline.add(entry.substring(1));
+            }
+        }
+        if (onlineData.length() > 0) {
+            online.addAll(parseContactsFromMessage(onlineData.toString()));
+        }
+    }
 }
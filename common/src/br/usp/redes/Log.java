@@ -0,0 +1,424 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log assincrono, no lugar do System.out.println nos caminhos de cada conexao, onde todas as threads disputavam o
+ * stdout. Quem loga apenas preenche um registro de um ring buffer, sem lock: o nivel eh conferido antes de qualquer
+ * coisa, e a mensagem e os campos (pares de chave e valor) sao guardados como referencias, sem montar a linha. Uma
+ * unica thread, "log", formata os registros e os grava em lotes no System.out ou, com configure, em um arquivo que eh
+ * rodado ao passar de MAX_FILE_BYTES ("arquivo.1" eh o anterior, ate "arquivo.5"). O System.out eh lido a cada lote,
+ * entao um System.setOut, como o dos Benchmarks, tambem vale para o log.
+ * <p>
+ * Cada registro vira uma linha "2024-01-31 12:00:00.123 INFO  [thread] mensagem chave=valor chave=valor". Valores com
+ * espacos ficam entre aspas.
+ * <p>
+ * Se o ring buffer encher, porque a thread do log nao da conta, os registros novos sao descartados, em vez de fazer
+ * quem loga esperar, e o numero de descartados eh logado em seguida.
+ * <p>
+ * Fica no modulo common, usado pelo servidor e pelo cliente.
+ */
+class Log {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    //Registros no ring buffer. Potencia de 2, para achar a posicao de uma sequencia com uma mascara
+    private static final int CAPACITY = 8192;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private static final int MAX_FIELDS = 2;
+
+    private static final long MAX_FILE_BYTES = 16 * 1024 * 1024;
+
+    private static final int ROTATED_FILES = 5;
+
+    //Espera da thread do log quando o ring buffer esta vazio: comeca curta logo depois de um lote e dobra ate o maximo
+    //enquanto nada chega. Quem loga nao a acorda, para nao pagar uma chamada ao sistema por registro
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private static final Record[] ring = new Record[CAPACITY];
+
+    //Proxima sequencia a ser reservada por quem loga
+    private static final AtomicLong claimed = new AtomicLong();
+
+    //Proxima sequencia a ser gravada pela thread do log. Os slots das sequencias anteriores estao livres
+    private static volatile long consumed;
+
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    //Arquivo do log, ou null para o console
+    private static volatile Path file;
+
+    private static volatile boolean stopping;
+
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Record();
+        }
+        writer = new Thread(new Writer(), "log");
+        writer.setDaemon(true);
+        writer.start();
+        //Grava o que ainda estiver no ring buffer quando o programa termina
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopping = true;
+            LockSupport.unpark(writer);
+            try {
+                writer.join(1000);
+            } catch (InterruptedException ignored) {
+            }
+        }, "log-stop"));
+    }
+
+    /**
+     * Registro de um slot do ring buffer. Os campos sao preenchidos por quem reservou a sequencia e so sao lidos pela
+     * thread do log depois que sequence eh publicada.
+     */
+    private static class Record {
+
+        volatile long sequence = -1;
+
+        long millis;
+
+        Level level;
+
+        String thread;
+
+        String message;
+
+        int fieldCount;
+
+        final Object[] fields = new Object[2 * MAX_FIELDS];
+    }
+
+    /**
+     * Muda o nivel minimo dos registros e para onde eles vao: o arquivo fileName, ou o console se ele for null.
+     */
+    static void configure(Level level, String fileName) {
+        threshold = level.ordinal();
+        file = fileName != null ? Paths.get(fileName) : null;
+    }
+
+    /**
+     * Se registros desse nivel sao gravados. Para evitar calcular um valor caro de um campo quando nao for preciso.
+     */
+    static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message, 0, null, null, null, null);
+    }
+
+    static void debug(String message, String key, Object value) {
+        log(Level.DEBUG, message, 1, key, value, null, null);
+    }
+
+    static void debug(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.DEBUG, message, 2, key1, value1, key2, value2);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message, 0, null, null, null, null);
+    }
+
+    static void info(String message, String key, Object value) {
+        log(Level.INFO, message, 1, key, value, null, null);
+    }
+
+    static void info(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.INFO, message, 2, key1, value1, key2, value2);
+    }
+
+    static void warn(String message) {
+        log(Level.WARN, message, 0, null, null, null, null);
+    }
+
+    static void warn(String message, String key, Object value) {
+        log(Level.WARN, message, 1, key, value, null, null);
+    }
+
+    static void warn(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.WARN, message, 2, key1, value1, key2, value2);
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message, 0, null, null, null, null);
+    }
+
+    static void error(String message, String key, Object value) {
+        log(Level.ERROR, message, 1, key, value, null, null);
+    }
+
+    static void error(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.ERROR, message, 2, key1, value1, key2, value2);
+    }
+
+    private static void log(Level level, String message, int fieldCount, String key1, Object value1, String key2,
+                            Object value2) {
+        if (level.ordinal() < threshold) {
+            return;
+        }
+        //Reserva uma sequencia cujo slot a thread do log ja liberou
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        final Record record = ring[(int) sequence & MASK];
+        record.millis = System.currentTimeMillis();
+        record.level = level;
+        record.thread = Thread.currentThread().getName();
+        record.message = message;
+        record.fieldCount = fieldCount;
+        record.fields[0] = key1;
+        record.fields[1] = value1;
+        record.fields[2] = key2;
+        record.fields[3] = value2;
+        record.sequence = sequence;
+    }
+
+    /**
+     * Thread do log: formata os registros em ordem de sequencia e grava cada lote de uma vez, em pedacos de ate
+     * OUTPUT_BUFFER_SIZE bytes.
+     */
+    private static class Writer implements Runnable {
+
+        private static final DateTimeFormatter SECOND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                .withZone(ZoneId.systemDefault());
+
+        private final StringBuilder line = new StringBuilder(256);
+
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+
+        //Arquivo aberto e o caminho dele, ou null quando o log vai para o System.out
+        private FileChannel channel;
+
+        private Path current;
+
+        //Se channel e current ja correspondem ao file pedido em configure
+        private boolean outputSelected;
+
+        private long fileBytes;
+
+        //Segundo formatado mais recente, reaproveitado pelos registros do mesmo segundo
+        private long second = -1;
+
+        private String secondText;
+
+        private long reportedDrops;
+
+        private long parkNanos = MIN_PARK_NANOS;
+
+        public void run() {
+            while (true) {
+                try {
+                    final boolean drained = drain();
+                    flush();
+                    if (drained) {
+                        parkNanos = MIN_PARK_NANOS;
+                    } else {
+                        if (stopping) {
+                            return;
+                        }
+                        LockSupport.parkNanos(parkNanos);
+                        parkNanos = Math.min(2 * parkNanos, MAX_PARK_NANOS);
+                    }
+                } catch (IOException e) {
+                    //Sem onde gravar, sobra o erro padrao. O arquivo eh reaberto no proximo lote
+                    System.err.println("Erro ao gravar o log: " + e);
+                    buffer.clear();
+                    closeFile();
+                    LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                }
+            }
+        }
+
+        /**
+         * Formata todos os registros publicados. Retorna false se nao havia nenhum.
+         */
+        private boolean drain() throws IOException {
+            selectOutput();
+            long next = consumed;
+            final long first = next;
+            while (true) {
+                final Record record = ring[(int) next & MASK];
+                if (record.sequence != next) {
+                    break;
+                }
+                format(record);
+                record.thread = null;
+                record.message = null;
+                Arrays.fill(record.fields, null);
+                //Libera o slot para quem loga
+                consumed = ++next;
+                encode();
+            }
+            final long drops = dropped.get();
+            if (drops != reportedDrops) {
+                line.setLength(0);
+                appendTime(System.currentTimeMillis());
+                line.append(" WARN  [log] registros descartados com o log cheio quantidade=")
+                        .append(drops - reportedDrops).append('\n');
+                reportedDrops = drops;
+                encode();
+            }
+            return next != first;
+        }
+
+        private void format(Record record) {
+            line.setLength(0);
+            appendTime(record.millis);
+            line.append(' ').append(record.level.name());
+            for (int i = record.level.name().length(); i < 5; i++) {
+                line.append(' ');
+            }
+            line.append(" [").append(record.thread).append("] ").append(record.message);
+            for (int i = 0; i < record.fieldCount; i++) {
+                line.append(' ').append((String) record.fields[2 * i]).append('=');
+                final String value = String.valueOf(record.fields[2 * i + 1]);
+                if (value.indexOf(' ') >= 0 || value.isEmpty()) {
+                    line.append('"').append(value).append('"');
+                } else {
+                    line.append(value);
+                }
+            }
+            line.append('\n');
+        }
+
+        private void appendTime(long millis) {
+            if (millis / 1000 != second) {
+                second = millis / 1000;
+                secondText = SECOND_FORMAT.format(Instant.ofEpochSecond(second));
+            }
+            final int fraction = (int) (millis % 1000);
+            line.append(secondText).append('.');
+            if (fraction < 100) {
+                line.append('0');
+            }
+            if (fraction < 10) {
+                line.append('0');
+            }
+            line.append(fraction);
+        }
+
+        private void encode() throws IOException {
+            final CharBuffer chars = CharBuffer.wrap(line);
+            encoder.reset();
+            while (encoder.encode(chars, buffer, true).isOverflow()) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                return;
+            }
+            if (channel == null) {
+                final PrintStream console = System.out;
+                console.write(buffer.array(), buffer.position(), buffer.remaining());
+                console.flush();
+            } else {
+                fileBytes += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            buffer.clear();
+            if (channel != null && fileBytes >= MAX_FILE_BYTES) {
+                rotate();
+            }
+        }
+
+        /**
+         * Passa a gravar onde configure pediu, caso tenha mudado.
+         */
+        private void selectOutput() throws IOException {
+            final Path requested = file;
+            if (outputSelected && Objects.equals(requested, current)) {
+                return;
+            }
+            if (outputSelected) {
+                flush();
+                closeFile();
+            }
+            if (requested != null) {
+                channel = FileChannel.open(requested, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                fileBytes = channel.size();
+            }
+            current = requested;
+            outputSelected = true;
+        }
+
+        /**
+         * Renomeia o arquivo para "arquivo.1", deslocando os anteriores, e comeca um novo.
+         */
+        private void rotate() throws IOException {
+            final Path rotated = current;
+            closeFile();
+            for (int i = ROTATED_FILES - 1; i >= 1; i--) {
+                final Path older = sibling(rotated, i);
+                if (Files.exists(older)) {
+                    Files.move(older, sibling(rotated, i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(rotated, sibling(rotated, 1), StandardCopyOption.REPLACE_EXISTING);
+            selectOutput();
+        }
+
+        private Path sibling(Path path, int index) {
+            return path.resolveSibling(path.getFileName() + "." + index);
+        }
+
+        private void closeFile() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            channel = null;
+            current = null;
+            outputSelected = false;
+        }
+    }
+}
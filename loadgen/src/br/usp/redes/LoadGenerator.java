@@ -0,0 +1,605 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Gerador de carga sem interface grafica: simula milhares de clientes de chat contra um servidor ja em execucao, todos
+ * em uma unica thread com Selector, e reporta as latencias vistas por eles.
+ * <p>
+ * Os clientes simulados se chamam prefixo0, prefixo1, ..., como no arquivo gerado por --generate, que deve ser o
+ * --clients-file do servidor. Cada sessao responde ao WHORU, manda KEEPA a cada --keepalive-ms e interpreta as
+ * mensagens do servidor com o MessageParser do cliente. Opcionalmente, sessoes aleatorias saem e voltam (--churn,
+ * em logouts por segundo) e trocam mensagens P2P (--p2p, em mensagens por segundo) atraves de um listener deste
+ * processo, cujo endereco todas as sessoes anunciam.
+ * <p>
+ * A cada --report-s segundos imprime uma linha "chave=valor" com o intervalo, e no fim uma com o total:
+ * <ul>
+ * <li>loginMs: da conexao ate o CLIST;</li>
+ * <li>conatMs/coninMs: do envio do login (ou do fechamento da conexao) de um cliente ate cada contato dele receber o
+ * CONAT (ou CONIN), inclusive dentro de um CONBA;</li>
+ * <li>p2pMs: do envio de uma mensagem P2P ate ela chegar no listener;</li>
+ * <li>serverDisconnects: sessoes fechadas pelo servidor, e nao pelo gerador; loginFailures: logins recusados.</li>
+ * </ul>
+ * Uso:
+ * <pre>
+ * java -cp loadgen.jar:client.jar br.usp.redes.LoadGenerator --generate=clients-load.txt --sessions=10000
+ * java -cp server.jar br.usp.redes.Main --mode=nio --clients-file=clients-load.txt
+ * java -cp loadgen.jar:client.jar br.usp.redes.LoadGenerator --sessions=10000 --churn=50 --p2p=200 --duration=60
+ * </pre>
+ */
+public class LoadGenerator {
+
+    //Logins em andamento ao mesmo tempo, para nao estourar o backlog padrao (50) do socket do servidor
+    private static final int MAX_PENDING_LOGINS = 50;
+
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    private static final Charset TEXT_CHARSET = Charset.defaultCharset();
+
+    private String host = "127.0.0.1";
+
+    private int port = 9001;
+
+    private int sessions = 1000;
+
+    private int contacts = 5;
+
+    private String prefix = "u";
+
+    private String generate;
+
+    private int keepAliveMillis = 1000;
+
+    private double churnPerSecond;
+
+    private int offlineMillis = 1000;
+
+    private double p2pPerSecond;
+
+    private int durationSeconds = 60;
+
+    private int reportSeconds = 5;
+
+    //Capacidades anunciadas na resposta ao WHORU. O gerador so entende o modo texto, entao BIN nunca eh aceito
+    private String capabilities = "";
+
+    private final Random random = new Random();
+
+    private Selector selector;
+
+    private String p2pAddress;
+
+    //Sessoes que ja receberam o CLIST, para escolher quem sai e quem manda mensagens
+    private final List<Session> online = new ArrayList<>();
+
+    //Ids esperando para reconectar, em ordem de horario
+    private final ArrayDeque<long[]> reconnects = new ArrayDeque<>();
+
+    private int pendingLogins;
+
+    //Horario (System.nanoTime) do ultimo login enviado e do ultimo logout de cada id
+    private long[] loginSentAt;
+
+    private long[] logoutAt;
+
+    private final Stats interval = new Stats();
+
+    private final Stats total = new Stats();
+
+    public static void main(String[] args) throws Exception {
+        final LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            final String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--host=")) {
+                generator.host = value;
+            } else if (arg.startsWith("--port=")) {
+                generator.port = Integer.parseInt(value);
+            } else if (arg.startsWith("--sessions=")) {
+                generator.sessions = Integer.parseInt(value);
+            } else if (arg.startsWith("--contacts=")) {
+                generator.contacts = Integer.parseInt(value);
+            } else if (arg.startsWith("--prefix=")) {
+                generator.prefix = value;
+            } else if (arg.startsWith("--generate=")) {
+                generator.generate = value;
+            } else if (arg.startsWith("--keepalive-ms=")) {
+                generator.keepAliveMillis = Integer.parseInt(value);
+            } else if (arg.startsWith("--churn=")) {
+                generator.churnPerSecond = Double.parseDouble(value);
+            } else if (arg.startsWith("--offline-ms=")) {
+                generator.offlineMillis = Integer.parseInt(value);
+            } else if (arg.startsWith("--p2p=")) {
+                generator.p2pPerSecond = Double.parseDouble(value);
+            } else if (arg.startsWith("--duration=")) {
+                generator.durationSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--report-s=")) {
+                generator.reportSeconds = Math.max(1, Integer.parseInt(value));
+            } else if (arg.startsWith("--capabilities=")) {
+                generator.capabilities = value.isEmpty() ? "" : " " + value.replace(',', ' ');
+            } else {
+                throw new IllegalArgumentException("Opcao invalida: " + arg);
+            }
+        }
+
+        if (generator.generate != null) {
+            generator.writeClientsFile();
+        } else {
+            generator.run();
+        }
+    }
+
+    /**
+     * Escreve o arquivo de clientes para o servidor: cada cliente i tem como contatos os --contacts seguintes a ele.
+     */
+    private void writeClientsFile() throws IOException {
+        try (PrintWriter writer = new PrintWriter(generate)) {
+            for (int i = 0; i < sessions; i++) {
+                final StringBuilder line = new StringBuilder(prefix).append(i);
+                for (int c = 1; c <= contacts; c++) {
+                    line.append(';').append(prefix).append((i + c) % sessions);
+                }
+                writer.println(line);
+            }
+        }
+        System.out.println(sessions + " clientes escritos em " + generate);
+    }
+
+    private void run() throws IOException {
+        selector = Selector.open();
+        final ServerSocketChannel p2pListener = ServerSocketChannel.open();
+        p2pListener.bind(new InetSocketAddress(0));
+        p2pListener.configureBlocking(false);
+        p2pListener.register(selector, SelectionKey.OP_ACCEPT, (Handler) key -> acceptP2P(p2pListener));
+        p2pAddress = "127.0.0.1:" + p2pListener.socket().getLocalPort();
+
+        loginSentAt = new long[sessions];
+        logoutAt = new long[sessions];
+        for (int i = 0; i < sessions; i++) {
+            reconnects.add(new long[]{0, i});
+        }
+
+        final long start = System.currentTimeMillis();
+        final long end = start + durationSeconds * 1000L;
+        long nextKeepAlive = start + keepAliveMillis;
+        long nextReport = start + reportSeconds * 1000L;
+        long lastTick = start;
+        double churnBudget = 0;
+        double p2pBudget = 0;
+        while (true) {
+            final long now = System.currentTimeMillis();
+            if (now >= end) {
+                break;
+            }
+            while (pendingLogins < MAX_PENDING_LOGINS && !reconnects.isEmpty() && reconnects.peek()[0] <= now) {
+                connect((int) reconnects.poll()[1]);
+            }
+
+            selector.select(10);
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    ((Handler) key.attachment()).ready(key);
+                }
+            }
+
+            final long afterSelect = System.currentTimeMillis();
+            final double elapsedSeconds = (afterSelect - lastTick) / 1000.0;
+            lastTick = afterSelect;
+            churnBudget += churnPerSecond * elapsedSeconds;
+            for (; churnBudget >= 1 && !online.isEmpty(); churnBudget--) {
+                logout(online.get(random.nextInt(online.size())), afterSelect);
+            }
+            p2pBudget += p2pPerSecond * elapsedSeconds;
+            for (; p2pBudget >= 1 && !online.isEmpty(); p2pBudget--) {
+                online.get(random.nextInt(online.size())).sendP2P();
+            }
+            if (afterSelect >= nextKeepAlive) {
+                for (Session session : online) {
+                    session.write("KEEPA");
+                }
+                nextKeepAlive = afterSelect + keepAliveMillis;
+            }
+            if (afterSelect >= nextReport) {
+                report("t=" + (afterSelect - start) / 1000 + "s", interval);
+                interval.reset();
+                nextReport = afterSelect + reportSeconds * 1000L;
+            }
+        }
+        report("total", total);
+    }
+
+    private void report(String label, Stats stats) {
+        System.out.println(label + " online=" + online.size() + " logins=" + stats.logins.size()
+                + " loginMs " + stats.logins.percentiles()
+                + " conat=" + stats.conat.size() + " conatMs " + stats.conat.percentiles()
+                + " conin=" + stats.conin.size() + " coninMs " + stats.conin.percentiles()
+                + " p2p=" + stats.p2p.size() + " p2pMs " + stats.p2p.percentiles()
+                + " serverDisconnects=" + stats.serverDisconnects + " loginFailures=" + stats.loginFailures);
+    }
+
+    private void connect(int id) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        final Session session = new Session(id, channel);
+        channel.connect(new InetSocketAddress(host, port));
+        session.key = channel.register(selector, SelectionKey.OP_CONNECT, session);
+        pendingLogins++;
+    }
+
+    /**
+     * Fecha a sessao como se o usuario tivesse saido, e agenda sua volta depois de --offline-ms.
+     */
+    private void logout(Session session, long now) {
+        logoutAt[session.id] = System.nanoTime();
+        session.close();
+        reconnects.add(new long[]{now + offlineMillis, session.id});
+    }
+
+    private void acceptP2P(ServerSocketChannel listener) throws IOException {
+        SocketChannel accepted;
+        while ((accepted = listener.accept()) != null) {
+            final SocketChannel channel = accepted;
+            channel.configureBlocking(false);
+            final LineReader reader = new LineReader(channel);
+            channel.register(selector, SelectionKey.OP_READ, (Handler) key -> {
+                try {
+                    reader.read(line -> {
+                        //"nome: nanoTime do envio"
+                        final int colon = line.lastIndexOf(' ');
+                        add(Stats.P2P, System.nanoTime() - Long.parseLong(line.substring(colon + 1)));
+                    });
+                } catch (IOException | NumberFormatException e) {
+                    key.cancel();
+                    channel.close();
+                }
+            });
+        }
+    }
+
+    private void add(int metric, long nanos) {
+        interval.get(metric).add(nanos);
+        total.get(metric).add(nanos);
+    }
+
+    private int idOf(String name) {
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            final int id = Integer.parseInt(name.substring(prefix.length()));
+            return id >= 0 && id < sessions ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Algo registrado no selector: uma sessao com o servidor, o listener P2P ou uma conexao P2P recebida.
+     */
+    private interface Handler {
+
+        void ready(SelectionKey key) throws IOException;
+    }
+
+    private interface LineListener {
+
+        void line(String line) throws IOException;
+    }
+
+    /**
+     * Separa em linhas o que chega em um canal.
+     */
+    private static class LineReader {
+
+        private final SocketChannel channel;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        LineReader(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Le o que estiver disponivel e entrega cada linha completa. Lanca IOException se o canal fechou.
+         */
+        void read(LineListener listener) throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Linha maior que " + MAX_LINE_LENGTH + " bytes");
+                }
+                final ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                buffer = larger.put(buffer);
+            }
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Conexao fechada");
+            }
+            buffer.flip();
+            int start = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    final int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    listener.line(new String(buffer.array(), start, end - start, TEXT_CHARSET));
+                    start = i + 1;
+                }
+            }
+            buffer.position(start);
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Um cliente simulado conectado ao servidor.
+     */
+    private class Session implements Handler, LineListener {
+
+        private final int id;
+
+        private final SocketChannel channel;
+
+        private final LineReader reader;
+
+        private SelectionKey key;
+
+        private final long connectedAt = System.nanoTime();
+
+        private boolean loggedIn;
+
+        private boolean closed;
+
+        //Contatos que o servidor disse estarem online, destinos das mensagens P2P
+        private final Set<String> onlineContacts = new HashSet<>();
+
+        //Conexao P2P aberta pela primeira mensagem enviada por esta sessao
+        private SocketChannel p2p;
+
+        Session(int id, SocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+            this.reader = new LineReader(channel);
+        }
+
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                } else if (key.isReadable()) {
+                    reader.read(this);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    //O servidor fechou a conexao, ou nao aceitou: tenta de novo depois de --offline-ms
+                    interval.serverDisconnects++;
+                    total.serverDisconnects++;
+                    logoutAt[id] = System.nanoTime();
+                    close();
+                    reconnects.add(new long[]{System.currentTimeMillis() + offlineMillis, id});
+                }
+            }
+        }
+
+        public void line(String line) throws IOException {
+            if (line.startsWith("WHORU")) {
+                loginSentAt[id] = System.nanoTime();
+                write(prefix + id + "/" + p2pAddress + capabilities);
+            } else if (line.startsWith("CLIST")) {
+                if (!loggedIn) {
+                    loggedIn = true;
+                    pendingLogins--;
+                    online.add(this);
+                    add(Stats.LOGIN, System.nanoTime() - connectedAt);
+                }
+                onlineContacts.clear();
+                if (line.length() > "CLIST ".length()) {
+                    for (Contact contact : MessageParser.parseContactsFromMessage(line.substring(6))) {
+                        onlineContacts.add(contact.getName());
+                    }
+                }
+            } else if (line.startsWith("CONAT ")) {
+                for (Contact contact : MessageParser.parseContactsFromMessage(line.substring(6))) {
+                    contactOnline(contact.getName());
+                }
+            } else if (line.startsWith("CONIN ")) {
+                contactOffline(line.substring(6));
+            } else if (line.startsWith("CONBA ")) {
+                final List<Contact> on = new ArrayList<>();
+                final List<String> off = new ArrayList<>();
+                MessageParser.parsePresenceBatch(line.substring(6), on, off);
+                for (Contact contact : on) {
+                    contactOnline(contact.getName());
+                }
+                for (String name : off) {
+                    contactOffline(name);
+                }
+            } else if (line.startsWith("Denied")) {
+                interval.loginFailures++;
+                total.loginFailures++;
+                //O servidor pergunta de novo; o nome esta em uso ou nao existe, entao desiste desta sessao
+                close();
+            }
+        }
+
+        private void contactOnline(String name) {
+            onlineContacts.add(name);
+            final int contact = idOf(name);
+            if (contact >= 0 && loginSentAt[contact] > 0) {
+                add(Stats.CONAT, System.nanoTime() - loginSentAt[contact]);
+            }
+        }
+
+        private void contactOffline(String name) {
+            onlineContacts.remove(name);
+            final int contact = idOf(name);
+            if (contact >= 0 && logoutAt[contact] > 0) {
+                add(Stats.CONIN, System.nanoTime() - logoutAt[contact]);
+            }
+        }
+
+        /**
+         * Manda uma mensagem P2P a um contato online. Como todas as sessoes anunciam o listener deste processo, a
+         * conexao eh unica por sessao e reaproveitada.
+         */
+        void sendP2P() {
+            if (onlineContacts.isEmpty()) {
+                return;
+            }
+            try {
+                if (p2p == null) {
+                    final String[] address = p2pAddress.split(":");
+                    p2p = SocketChannel.open(new InetSocketAddress(address[0], Integer.parseInt(address[1])));
+                    p2p.configureBlocking(false);
+                }
+                writeFully(p2p, prefix + id + ": " + System.nanoTime());
+            } catch (IOException e) {
+                closeP2P();
+            }
+        }
+
+        void write(String line) {
+            try {
+                writeFully(channel, line);
+            } catch (IOException e) {
+                //A leitura percebe que o servidor desconectou
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (loggedIn) {
+                online.remove(this);
+            } else {
+                pendingLogins--;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            closeP2P();
+        }
+
+        private void closeP2P() {
+            if (p2p != null) {
+                try {
+                    p2p.close();
+                } catch (IOException ignored) {
+                }
+                p2p = null;
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, String line) throws IOException {
+        final ByteBuffer out = ByteBuffer.wrap((line + "\n").getBytes(TEXT_CHARSET));
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    /**
+     * Medidas de um intervalo ou do total.
+     */
+    private static class Stats {
+
+        static final int LOGIN = 0;
+        static final int CONAT = 1;
+        static final int CONIN = 2;
+        static final int P2P = 3;
+
+        private final Latencies logins = new Latencies();
+        private final Latencies conat = new Latencies();
+        private final Latencies conin = new Latencies();
+        private final Latencies p2p = new Latencies();
+
+        private long serverDisconnects;
+
+        private long loginFailures;
+
+        Latencies get(int metric) {
+            switch (metric) {
+                case LOGIN:
+                    return logins;
+                case CONAT:
+                    return conat;
+                case CONIN:
+                    return conin;
+                default:
+                    return p2p;
+            }
+        }
+
+        void reset() {
+            logins.reset();
+            conat.reset();
+            conin.reset();
+            p2p.reset();
+            serverDisconnects = 0;
+            loginFailures = 0;
+        }
+    }
+
+    /**
+     * Latencias em nanossegundos, guardadas em um array que cresce, para calcular os percentis.
+     */
+    private static class Latencies {
+
+        private long[] values = new long[1024];
+
+        private int size;
+
+        void add(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        /**
+         * "p50=x p99=y max=z", em milissegundos.
+         */
+        String percentiles() {
+            final long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return String.format("p50=%.2f p99=%.2f max=%.2f", percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    percentile(sorted, 1.0));
+        }
+
+        private static double percentile(long[] sortedNanos, double p) {
+            if (sortedNanos.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(p * sortedNanos.length) - 1;
+            return sortedNanos[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
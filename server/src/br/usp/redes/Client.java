@@ -1,10 +1,26 @@
 package br.usp.redes;
 
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Sessao de um cliente conectado: seu nome, o ip e a porta em que escuta outros clientes e a fila de mensagens de
+ * saida para ele.
+ */
 public class Client {
 
+    static final int LOCAL_NODE = -1;
+
     private String name;
     private String ip;
     private String port;
+    private OutboundQueue writer;
+    private Set<String> capabilities = Collections.emptySet();
+    //No do cluster em que o cliente esta conectado, ou LOCAL_NODE se eh neste servidor
+    private int node = LOCAL_NODE;
+    //Versao da presenca "epoca:sequencia" informada no login com SINCE=, ou null
+    private String presenceVersion;
+    private final PresenceCoalescer.Pending pendingPresence = new PresenceCoalescer.Pending();
 
     public String getName() {
         return name;
@@ -29,4 +45,57 @@ public class Client {
     public void setPort(String port) {
         this.port = port;
     }
+
+    public OutboundQueue getWriter() {
+        return writer;
+    }
+
+    public void setWriter(OutboundQueue writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Capacidades do protocolo anunciadas pelo cliente na resposta ao WHORU, como "BATCH".
+     */
+    public boolean hasCapability(String capability) {
+        return capabilities.contains(capability);
+    }
+
+    public void setCapabilities(Set<String> capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    public void setNode(int node) {
+        this.node = node;
+    }
+
+    /**
+     * Se o cliente esta conectado em outro no do cluster. Clientes remotos nao tem saida de mensagens neste servidor.
+     */
+    public boolean isRemote() {
+        return node != LOCAL_NODE;
+    }
+
+    public String getPresenceVersion() {
+        return presenceVersion;
+    }
+
+    public void setPresenceVersion(String presenceVersion) {
+        this.presenceVersion = presenceVersion;
+    }
+
+    PresenceCoalescer.Pending getPendingPresence() {
+        return pendingPresence;
+    }
+
+    /**
+     * Dados do cliente no formato usado pelo protocolo: "nome/ip:porta".
+     */
+    public String getContactData() {
+        return name + "/" + ip + ":" + port;
+    }
 }
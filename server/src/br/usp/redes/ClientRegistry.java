@@ -0,0 +1,45 @@
+package br.usp.redes;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro dos clientes conectados ao servidor, indexados pelo nome. Cada cliente conectado tem um unico objeto
+ * Client com seu nome, ip, porta e saida de mensagens.
+ * <p>
+ * Usa um ConcurrentHashMap, entao login, busca e desconexao custam O(1) e nao precisam de uma trava global: o
+ * registro de um nome eh atomico (putIfAbsent) e a remocao so acontece se o nome ainda pertence a mesma sessao.
+ */
+class ClientRegistry {
+
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Registra o cliente. Retorna false caso ja exista um cliente conectado com o mesmo nome.
+     */
+    boolean register(Client c) {
+        return clients.putIfAbsent(c.getName(), c) == null;
+    }
+
+    /**
+     * Remove o cliente, caso ele ainda seja o registrado com seu nome. Retorna false caso nao estivesse registrado.
+     */
+    boolean unregister(Client c) {
+        return clients.remove(c.getName(), c);
+    }
+
+    /**
+     * Busca um cliente conectado pelo nome. Retorna null caso nao esteja conectado.
+     */
+    Client get(String name) {
+        return clients.get(name);
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    Collection<Client> online() {
+        return clients.values();
+    }
+}
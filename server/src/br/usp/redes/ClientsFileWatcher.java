@@ -0,0 +1,86 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Observa o arquivo de clientes e avisa quando ele muda, para que o servidor o recarregue sem reiniciar.
+ * <p>
+ * Editores costumam gravar um arquivo em varios passos (truncar e escrever, ou escrever um temporario e renomear),
+ * entao depois da primeira mudanca espera SETTLE_MILLIS sem nenhuma outra antes de avisar.
+ */
+class ClientsFileWatcher implements Runnable {
+
+    private static final long SETTLE_MILLIS = 300;
+
+    private final WatchService watchService;
+
+    private final Path fileName;
+
+    private final Runnable onChange;
+
+    private ClientsFileWatcher(WatchService watchService, Path fileName, Runnable onChange) {
+        this.watchService = watchService;
+        this.fileName = fileName;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Comeca a observar o arquivo em uma thread propria. onChange eh executado nessa thread a cada mudanca.
+     */
+    static void start(String filePath, Runnable onChange) throws IOException {
+        final Path file = Paths.get(filePath).toAbsolutePath();
+        final WatchService watchService = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        final Thread thread = new Thread(new ClientsFileWatcher(watchService, file.getFileName(), onChange),
+                "clients-file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                if (!isFileEvent(watchService.take())) {
+                    continue;
+                }
+                WatchKey key;
+                while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    isFileEvent(key);
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    Log.error("erro ao recarregar o arquivo de clientes", "erro", e);
+                }
+            }
+        } catch (InterruptedException | IllegalStateException e) {
+            Log.warn("parou de observar o arquivo de clientes", "erro", e);
+        }
+    }
+
+    /**
+     * Consome os eventos da chave e diz se algum deles eh do arquivo observado.
+     */
+    private boolean isFileEvent(WatchKey key) {
+        boolean found = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+                found = true;
+            }
+        }
+        if (!key.reset()) {
+            throw new IllegalStateException("O diretorio do arquivo de clientes nao existe mais");
+        }
+        return found;
+    }
+}
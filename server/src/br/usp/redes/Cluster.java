@@ -0,0 +1,298 @@
+package br.usp.redes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Liga este servidor aos outros nos de um cluster, para dividir os clientes entre varios processos.
+ * <p>
+ * Cada cliente pertence ao no de indice hash(nome) % numero de nos, ou, se ele estiver fora do ar, ao proximo no
+ * ativo. Um no que recebe o login de um cliente que pertence a outro responde "MOVED host:porta" aos clientes que
+ * aceitaram a capacidade "MOVED" no WHORU; os demais sao aceitos onde se conectaram. Como a presenca eh replicada,
+ * o cliente funciona em qualquer no, e a divisao apenas reparte a carga.
+ * <p>
+ * Cada no envia aos outros, por uma conexao TCP propria (peer link), uma linha de texto para cada cliente que conecta
+ * ou desconecta nele:
+ * <ul>
+ * <li>"HELLO id" ao conectar, seguido de "ONLINE nome/ip:porta" para cada cliente ja conectado e "SYNCED";</li>
+ * <li>"ONLINE nome/ip:porta" e "OFFLINE nome" a cada mudanca;</li>
+ * <li>"PING" a cada PING_MILLIS sem mudancas.</li>
+ * </ul>
+ * Quem recebe registra os clientes do outro no como clientes remotos (Client.getNode()), que aparecem nos CLIST e
+ * geram CONAT/CONIN para os clientes locais como qualquer outro. Se a conexao de um no cai, ou fica DEAD_AFTER_MILLIS
+ * sem receber nada, o no eh considerado fora do ar: seus clientes sao removidos, gerando CONIN, e o login dos
+ * clientes que pertenciam a ele passa ao proximo no ativo.
+ */
+class Cluster {
+
+    static final String MOVED_CAPABILITY = "MOVED";
+
+    private static final long PING_MILLIS = 1000;
+
+    private static final int DEAD_AFTER_MILLIS = 3500;
+
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final int nodeId;
+
+    //Endereco em que cada no atende clientes, e em que escuta os outros nos
+    private final String[] clientAddresses;
+
+    private final InetSocketAddress[] peerAddresses;
+
+    //Conexao de saida para cada outro no (null na posicao deste no)
+    private final PeerLink[] links;
+
+    //1 para os nos com uma conexao de entrada ativa, alem deste
+    private final AtomicIntegerArray alive;
+
+    //Conexao de entrada atual de cada no. Uma conexao antiga, substituida por uma reconexao, nao remove os clientes
+    //do no quando cai
+    private final AtomicReferenceArray<Socket> inbound;
+
+    private Cluster(int nodeId, String[] clientAddresses, InetSocketAddress[] peerAddresses) {
+        this.nodeId = nodeId;
+        this.clientAddresses = clientAddresses;
+        this.peerAddresses = peerAddresses;
+        this.links = new PeerLink[peerAddresses.length];
+        this.alive = new AtomicIntegerArray(peerAddresses.length);
+        this.inbound = new AtomicReferenceArray<>(peerAddresses.length);
+        alive.set(nodeId, 1);
+    }
+
+    /**
+     * Comeca a escutar os outros nos e a se conectar a eles. peers tem "host:portaClientes:portaCluster" de cada no,
+     * separados por virgula, na ordem dos ids.
+     */
+    static Cluster start(int nodeId, String peers) throws IOException {
+        final String[] entries = peers.split(",");
+        if (nodeId < 0 || nodeId >= entries.length) {
+            throw new IllegalArgumentException("--node-id deve estar entre 0 e " + (entries.length - 1));
+        }
+        final String[] clientAddresses = new String[entries.length];
+        final InetSocketAddress[] peerAddresses = new InetSocketAddress[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            final String[] parts = entries[i].trim().split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("No invalido em --peers: " + entries[i]);
+            }
+            clientAddresses[i] = parts[0] + ":" + Integer.parseInt(parts[1]);
+            peerAddresses[i] = new InetSocketAddress(parts[0], Integer.parseInt(parts[2]));
+        }
+
+        final Cluster cluster = new Cluster(nodeId, clientAddresses, peerAddresses);
+        final ServerSocket listener = new ServerSocket(peerAddresses[nodeId].getPort());
+        final Thread acceptor = new Thread(() -> cluster.accept(listener), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (int i = 0; i < entries.length; i++) {
+            if (i != nodeId) {
+                cluster.links[i] = cluster.new PeerLink(i);
+                cluster.links[i].start();
+            }
+        }
+        System.out.println("No " + nodeId + " de um cluster de " + entries.length
+                + ", escutando os outros nos na porta " + peerAddresses[nodeId].getPort());
+        return cluster;
+    }
+
+    int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Endereco "host:porta" do no ao qual o cliente pertence, ou null se ele pertence a este no.
+     */
+    String ownerAddress(String clientName) {
+        final int nodes = clientAddresses.length;
+        final int first = Math.floorMod(clientName.hashCode(), nodes);
+        for (int i = 0; i < nodes; i++) {
+            final int node = (first + i) % nodes;
+            if (alive.get(node) == 1) {
+                return node == nodeId ? null : clientAddresses[node];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Avisa aos outros nos que um cliente conectou neste no.
+     */
+    void announceOnline(Client c) {
+        broadcast("ONLINE " + c.getContactData());
+    }
+
+    /**
+     * Avisa aos outros nos que um cliente deste no desconectou.
+     */
+    void announceOffline(Client c) {
+        broadcast("OFFLINE " + c.getName());
+    }
+
+    private void broadcast(String line) {
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.send(line);
+            }
+        }
+    }
+
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                final Socket socket = listener.accept();
+                final Thread reader = new Thread(() -> receive(socket),
+                        "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                Log.error("erro ao aceitar conexao de outro no", "erro", e);
+            }
+        }
+    }
+
+    /**
+     * Le as mensagens de outro no ate a conexao cair ou ficar DEAD_AFTER_MILLIS em silencio, e entao remove os
+     * clientes dele.
+     */
+    private void receive(Socket socket) {
+        int peer = -1;
+        try (Socket s = socket) {
+            s.setSoTimeout(DEAD_AFTER_MILLIS);
+            final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                    StandardCharsets.UTF_8));
+            final String hello = in.readLine();
+            if (hello == null || !hello.startsWith("HELLO ")) {
+                return;
+            }
+            peer = Integer.parseInt(hello.substring("HELLO ".length()));
+            if (peer < 0 || peer >= peerAddresses.length || peer == nodeId) {
+                return;
+            }
+            final Socket previous = inbound.getAndSet(peer, s);
+            if (previous != null) {
+                previous.close();
+            }
+            alive.set(peer, 1);
+            Log.info("no conectado ao cluster", "no", peer);
+
+            //Clientes ja conhecidos do no que nao forem repetidos ate o SYNCED desconectaram enquanto a conexao caiu
+            Set<String> stale = new HashSet<>(Main.remoteClientNames(peer));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("ONLINE ")) {
+                    final Client c = Main.parseConnectionData(line.substring("ONLINE ".length()));
+                    if (c != null) {
+                        c.setNode(peer);
+                        if (stale != null) {
+                            stale.remove(c.getName());
+                        }
+                        Main.remoteClientOnline(c);
+                    }
+                } else if (line.startsWith("OFFLINE ")) {
+                    Main.remoteClientOffline(line.substring("OFFLINE ".length()), peer);
+                } else if (line.equals("SYNCED") && stale != null) {
+                    for (String name : stale) {
+                        Main.remoteClientOffline(name, peer);
+                    }
+                    stale = null;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            if (peer >= 0 && inbound.get(peer) == socket) {
+                Log.warn("conexao com o no caiu", "no", peer, "erro", e);
+            }
+        } finally {
+            if (peer >= 0 && peer < peerAddresses.length && inbound.compareAndSet(peer, socket, null)) {
+                alive.set(peer, 0);
+                Log.warn("no fora do cluster", "no", peer);
+                for (String name : Main.remoteClientNames(peer)) {
+                    Main.remoteClientOffline(name, peer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Conexao de saida para outro no, com sua fila de mensagens. Reconecta a cada RECONNECT_MILLIS enquanto o outro no
+     * estiver fora do ar; as mensagens geradas nesse meio tempo sao descartadas, pois a reconexao envia o estado
+     * completo.
+     */
+    private class PeerLink extends Thread {
+
+        private final int peer;
+
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+        private volatile boolean connected;
+
+        PeerLink(int peer) {
+            super("cluster-out-" + peer);
+            this.peer = peer;
+            setDaemon(true);
+        }
+
+        void send(String line) {
+            if (connected) {
+                queue.add(line);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(peerAddresses[peer], DEAD_AFTER_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    final Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                    queue.clear();
+                    connected = true;
+                    out.write("HELLO " + nodeId + "\n");
+                    for (Client c : Main.localClients()) {
+                        out.write("ONLINE " + c.getContactData() + "\n");
+                    }
+                    out.write("SYNCED\n");
+                    out.flush();
+                    while (true) {
+                        String line = queue.poll(PING_MILLIS, TimeUnit.MILLISECONDS);
+                        if (line == null) {
+                            line = "PING";
+                        }
+                        out.write(line);
+                        out.write('\n');
+                        //Junta em uma escrita as mensagens ja enfileiradas
+                        while ((line = queue.poll()) != null) {
+                            out.write(line);
+                            out.write('\n');
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    //Tenta de novo depois de RECONNECT_MILLIS
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
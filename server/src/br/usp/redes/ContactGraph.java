@@ -0,0 +1,705 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Grafo de contatos carregado do arquivo de clientes: os contatos de cada cliente e, no sentido inverso, os clientes
+ * que o tem como contato. A estrutura eh imutavel; mudancas (withChanges) geram um grafo novo, que mantem os ids ja
+ * existentes. So muda quem esta conectado, marcado por setOnline e setOffline.
+ * <p>
+ * Cada nome do arquivo tem um numero (id) de 0 a numero de nomes - 1, e o grafo inteiro eh guardado em arrays de
+ * int no formato CSR: os contatos do id estao em contacts[contactOffsets[id], contactOffsets[id + 1]), na ordem do
+ * arquivo, e os clientes que o tem como contato em watchers[watcherOffsets[id], watcherOffsets[id + 1]), em ordem
+ * crescente de id. Cada relacao custa 4 bytes em cada sentido, e percorrer as relacoes de um nome le uma unica
+ * regiao de memoria. Quem esta conectado fica em um bitset, consultado antes de buscar o Client de cada id.
+ */
+class ContactGraph {
+
+    //Nome de cada id
+    private final String[] names;
+
+    //Tabela de enderecamento aberto do nome para o id + 1 (0 nas posicoes livres). Tamanho potencia de 2
+    private final int[] index;
+
+    //Ids que tem uma linha propria no arquivo, e portanto podem se conectar
+    private final BitSet clients;
+
+    private final int clientCount;
+
+    private final int[] contactOffsets;
+
+    private final int[] contacts;
+
+    private final int[] watcherOffsets;
+
+    private final int[] watchers;
+
+    //Um bit por id, ligado enquanto ele esta conectado
+    private final AtomicLongArray onlineBits;
+
+    //Client conectado de cada id, ou null
+    private final AtomicReferenceArray<Client> sessions;
+
+    private ContactGraph(String[] names, int[] index, BitSet clients, int[] contactOffsets, int[] contacts,
+                         int[] watcherOffsets, int[] watchers) {
+        this.names = names;
+        this.index = index;
+        this.clients = clients;
+        this.clientCount = clients.cardinality();
+        this.contactOffsets = contactOffsets;
+        this.contacts = contacts;
+        this.watcherOffsets = watcherOffsets;
+        this.watchers = watchers;
+        this.onlineBits = new AtomicLongArray((names.length + 63) >>> 6);
+        this.sessions = new AtomicReferenceArray<>(names.length);
+    }
+
+    /**
+     * Cria o grafo a partir dos nomes e dos contatos, montando o indice dos nomes e o indice reverso.
+     */
+    private static ContactGraph of(String[] names, BitSet clients, int[] contactOffsets, int[] contacts) {
+        final int[] index = new int[Math.max(2, Integer.highestOneBit(Math.max(1, names.length) * 2 - 1) * 2)];
+        final int mask = index.length - 1;
+        for (int id = 0; id < names.length; id++) {
+            int slot = slot(names[id].hashCode(), index.length);
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = id + 1;
+        }
+
+        //Conta quantos clientes tem cada nome como contato, para montar o indice reverso ja no lugar certo
+        final int[] watcherOffsets = new int[names.length + 1];
+        for (int contact : contacts) {
+            watcherOffsets[contact + 1]++;
+        }
+        for (int id = 0; id < names.length; id++) {
+            watcherOffsets[id + 1] += watcherOffsets[id];
+        }
+        final int[] watchers = new int[contacts.length];
+        final int[] watcherFill = Arrays.copyOf(watcherOffsets, names.length);
+        //Percorrer os clientes em ordem crescente de id deixa os watchers de cada nome ordenados
+        for (int id = 0; id < names.length; id++) {
+            for (int i = contactOffsets[id]; i < contactOffsets[id + 1]; i++) {
+                watchers[watcherFill[contacts[i]]++] = id;
+            }
+        }
+        return new ContactGraph(names, index, clients, contactOffsets, contacts, watcherOffsets, watchers);
+    }
+
+    /**
+     * Posicao inicial de um hash em uma tabela com tableSize posicoes: os bits altos do hash multiplicado pela
+     * constante de Fibonacci, que espalham bem mesmo nomes parecidos como "user1", "user2".
+     */
+    private static int slot(int hash, int tableSize) {
+        return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(tableSize));
+    }
+
+    /**
+     * Id do nome, ou -1 se ele nao aparece no arquivo.
+     */
+    int idOf(String name) {
+        final int mask = index.length - 1;
+        int slot = slot(name.hashCode(), index.length);
+        int entry;
+        while ((entry = index[slot]) != 0) {
+            if (names[entry - 1].equals(name)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * Se o cliente esta no arquivo, e portanto pode se conectar.
+     */
+    boolean contains(String client) {
+        final int id = idOf(client);
+        return id >= 0 && clients.get(id);
+    }
+
+    /**
+     * Inicio e fim, em contactAt, dos contatos do id.
+     */
+    int contactsStart(int id) {
+        return contactOffsets[id];
+    }
+
+    int contactsEnd(int id) {
+        return contactOffsets[id + 1];
+    }
+
+    int contactAt(int position) {
+        return contacts[position];
+    }
+
+    /**
+     * Inicio e fim, em watcherAt, dos clientes que tem o id como contato, e que devem ser avisados quando ele conecta
+     * ou desconecta.
+     */
+    int watchersStart(int id) {
+        return watcherOffsets[id];
+    }
+
+    int watchersEnd(int id) {
+        return watcherOffsets[id + 1];
+    }
+
+    int watcherAt(int position) {
+        return watchers[position];
+    }
+
+    /**
+     * Marca o id como conectado pelo cliente.
+     */
+    void setOnline(int id, Client client) {
+        sessions.set(id, client);
+        updateOnlineBit(id);
+    }
+
+    /**
+     * Marca o id como desconectado, caso ele ainda esteja conectado pelo cliente.
+     */
+    void setOffline(int id, Client client) {
+        if (sessions.compareAndSet(id, client, null)) {
+            updateOnlineBit(id);
+        }
+    }
+
+    /**
+     * Acerta o bit do id com o valor atual de sessions. Um login novo com o mesmo nome pode acontecer entre o logout
+     * limpar sessions e limpar o bit; por isso o bit nao eh simplesmente ligado ou desligado, e sim recalculado a
+     * partir de sessions ate que uma leitura dos dois nao precise de mudanca, inclusive depois de cada troca feita.
+     */
+    private void updateOnlineBit(int id) {
+        final int word = id >>> 6;
+        final long bit = 1L << id;
+        while (true) {
+            final long bits = onlineBits.get(word);
+            final long updated = sessions.get(id) != null ? bits | bit : bits & ~bit;
+            if (updated == bits) {
+                return;
+            }
+            onlineBits.compareAndSet(word, bits, updated);
+        }
+    }
+
+    /**
+     * Client conectado com o id, ou null. Consulta primeiro o bitset, que cabe inteiro no cache mesmo com milhoes de
+     * nomes, e so entao o Client.
+     */
+    Client onlineClient(int id) {
+        if ((onlineBits.get(id >>> 6) & (1L << id)) == 0) {
+            return null;
+        }
+        return sessions.get(id);
+    }
+
+    /**
+     * Numero de clientes no arquivo.
+     */
+    int size() {
+        return clientCount;
+    }
+
+    /**
+     * Numero de relacoes de contato.
+     */
+    int edges() {
+        return contacts.length;
+    }
+
+    /**
+     * Mudanca em um grafo de contatos, como registrada no log do ContactStore.
+     */
+    static class Change {
+
+        enum Type {
+            /**
+             * Adiciona o cliente, sem contatos, caso ele ainda nao exista.
+             */
+            ADD_CLIENT,
+            /**
+             * Remove o cliente e seus contatos. Ele continua podendo ser contato de outros clientes.
+             */
+            REMOVE_CLIENT,
+            /**
+             * Adiciona o contato ao fim da lista do cliente, criando o cliente se preciso.
+             */
+            ADD_CONTACT,
+            /**
+             * Remove o contato da lista do cliente.
+             */
+            REMOVE_CONTACT
+        }
+
+        private final Type type;
+
+        private final String client;
+
+        //Null em ADD_CLIENT e REMOVE_CLIENT
+        private final String contact;
+
+        Change(Type type, String client, String contact) {
+            this.type = type;
+            this.client = client;
+            this.contact = contact;
+        }
+
+        Type getType() {
+            return type;
+        }
+
+        String getClient() {
+            return client;
+        }
+
+        String getContact() {
+            return contact;
+        }
+    }
+
+    /**
+     * Mudancas que transformam este grafo em target. As listas de contatos alteradas mantem a ordem dos contatos que
+     * continuam, e os contatos novos vao para o fim, na ordem de target.
+     */
+    List<Change> diff(ContactGraph target) {
+        final List<Change> changes = new ArrayList<>();
+        for (int id = clients.nextSetBit(0); id >= 0; id = clients.nextSetBit(id + 1)) {
+            final int targetId = target.idOf(names[id]);
+            if (targetId < 0 || !target.clients.get(targetId)) {
+                changes.add(new Change(Change.Type.REMOVE_CLIENT, names[id], null));
+            } else if (!sameContacts(id, target, targetId)) {
+                final Set<String> before = contactNames(id);
+                final Set<String> after = target.contactNames(targetId);
+                for (String contact : before) {
+                    if (!after.contains(contact)) {
+                        changes.add(new Change(Change.Type.REMOVE_CONTACT, names[id], contact));
+                    }
+                }
+                for (String contact : after) {
+                    if (!before.contains(contact)) {
+                        changes.add(new Change(Change.Type.ADD_CONTACT, names[id], contact));
+                    }
+                }
+            }
+        }
+        for (int id = target.clients.nextSetBit(0); id >= 0; id = target.clients.nextSetBit(id + 1)) {
+            if (!contains(target.names[id])) {
+                changes.add(new Change(Change.Type.ADD_CLIENT, target.names[id], null));
+                for (String contact : target.contactNames(id)) {
+                    changes.add(new Change(Change.Type.ADD_CONTACT, target.names[id], contact));
+                }
+            }
+        }
+        return changes;
+    }
+
+    private boolean sameContacts(int id, ContactGraph other, int otherId) {
+        if (contactsEnd(id) - contactsStart(id) != other.contactsEnd(otherId) - other.contactsStart(otherId)) {
+            return false;
+        }
+        for (int i = contactsStart(id), j = other.contactsStart(otherId); i < contactsEnd(id); i++, j++) {
+            if (!names[contacts[i]].equals(other.names[other.contacts[j]])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Nomes dos contatos do id, na ordem da lista.
+     */
+    Set<String> contactNames(int id) {
+        final Set<String> result = new LinkedHashSet<>();
+        for (int i = contactsStart(id); i < contactsEnd(id); i++) {
+            result.add(names[contacts[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Grafo com as mudancas aplicadas, na ordem. Os ids deste grafo continuam os mesmos no novo, e nomes novos ganham
+     * os ids seguintes; nomes que deixam de aparecer continuam com seu id. Quem esta conectado nao eh copiado.
+     * Custa O(nomes + relacoes), independente de quantas sao as mudancas.
+     */
+    ContactGraph withChanges(List<Change> changes) {
+        //Lista de contatos final de cada cliente alterado, ou null se ele foi removido
+        final Map<String, Set<String>> changed = new LinkedHashMap<>();
+        for (Change change : changes) {
+            if (change.type == Change.Type.REMOVE_CLIENT) {
+                changed.put(change.client, null);
+                continue;
+            }
+            Set<String> clientContacts = changed.get(change.client);
+            if (clientContacts == null) {
+                final int id = idOf(change.client);
+                if (change.type == Change.Type.REMOVE_CONTACT
+                        && (changed.containsKey(change.client) || id < 0 || !clients.get(id))) {
+                    continue;
+                }
+                clientContacts = !changed.containsKey(change.client) && id >= 0 && clients.get(id)
+                        ? contactNames(id) : new LinkedHashSet<>();
+                changed.put(change.client, clientContacts);
+            }
+            if (change.type == Change.Type.ADD_CONTACT && !change.contact.isEmpty()) {
+                clientContacts.add(change.contact);
+            } else if (change.type == Change.Type.REMOVE_CONTACT) {
+                clientContacts.remove(change.contact);
+            }
+        }
+
+        //Ids dos nomes novos
+        final List<String> newNames = new ArrayList<>();
+        final Map<String, Integer> newIds = new HashMap<>();
+        final Map<Integer, int[]> changedIds = new HashMap<>();
+        final BitSet changedMask = new BitSet();
+        for (Map.Entry<String, Set<String>> entry : changed.entrySet()) {
+            final int id = idOrNew(entry.getKey(), newNames, newIds);
+            changedMask.set(id);
+            if (entry.getValue() == null) {
+                changedIds.put(id, null);
+                continue;
+            }
+            final int[] ids = new int[entry.getValue().size()];
+            int i = 0;
+            for (String contact : entry.getValue()) {
+                ids[i++] = idOrNew(contact, newNames, newIds);
+            }
+            changedIds.put(id, ids);
+        }
+
+        final int nameCount = names.length + newNames.size();
+        final String[] updatedNames = Arrays.copyOf(names, nameCount);
+        for (int i = 0; i < newNames.size(); i++) {
+            updatedNames[names.length + i] = newNames.get(i);
+        }
+        final BitSet updatedClients = (BitSet) clients.clone();
+        final int[] updatedOffsets = new int[nameCount + 1];
+        for (int id = 0; id < nameCount; id++) {
+            int count;
+            if (changedMask.get(id)) {
+                final int[] ids = changedIds.get(id);
+                updatedClients.set(id, ids != null);
+                count = ids != null ? ids.length : 0;
+            } else {
+                count = id < names.length ? contactsEnd(id) - contactsStart(id) : 0;
+            }
+            updatedOffsets[id + 1] = updatedOffsets[id] + count;
+        }
+        final int[] updatedContacts = new int[updatedOffsets[nameCount]];
+        for (int id = 0; id < nameCount; id++) {
+            if (changedMask.get(id)) {
+                final int[] ids = changedIds.get(id);
+                if (ids != null) {
+                    System.arraycopy(ids, 0, updatedContacts, updatedOffsets[id], ids.length);
+                }
+            } else if (id < names.length) {
+                System.arraycopy(contacts, contactsStart(id), updatedContacts, updatedOffsets[id],
+                        contactsEnd(id) - contactsStart(id));
+            }
+        }
+        return of(updatedNames, updatedClients, updatedOffsets, updatedContacts);
+    }
+
+    private int idOrNew(String name, List<String> newNames, Map<String, Integer> newIds) {
+        final int id = idOf(name);
+        if (id >= 0) {
+            return id;
+        }
+        Integer newId = newIds.get(name);
+        if (newId == null) {
+            newId = names.length + newNames.size();
+            newNames.add(name);
+            newIds.put(name, newId);
+        }
+        return newId;
+    }
+
+    /**
+     * Escreve o grafo no formato lido por read, em little endian: contagens, bitset dos clientes, arrays de int
+     * (indice dos nomes, CSR dos contatos e dos watchers, inicio de cada nome) e por fim os nomes em UTF-8. Os arrays
+     * estao no formato usado em memoria, entao a leitura os copia inteiros, sem interpretar nada.
+     */
+    void write(WritableByteChannel channel) throws IOException {
+        final byte[][] encodedNames = new byte[names.length][];
+        final int[] nameOffsets = new int[names.length + 1];
+        for (int id = 0; id < names.length; id++) {
+            encodedNames[id] = names[id].getBytes(StandardCharsets.UTF_8);
+            nameOffsets[id + 1] = nameOffsets[id] + encodedNames[id].length;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(names.length).putInt(contacts.length).putInt(index.length).putInt(nameOffsets[names.length]);
+        final long[] clientBits = Arrays.copyOf(clients.toLongArray(), (names.length + 63) >>> 6);
+        for (long bits : clientBits) {
+            if (!buffer.hasRemaining()) {
+                flush(channel, buffer);
+            }
+            buffer.putLong(bits);
+        }
+        writeInts(channel, buffer, index);
+        writeInts(channel, buffer, contactOffsets);
+        writeInts(channel, buffer, contacts);
+        writeInts(channel, buffer, watcherOffsets);
+        writeInts(channel, buffer, watchers);
+        writeInts(channel, buffer, nameOffsets);
+        for (byte[] name : encodedNames) {
+            if (buffer.remaining() < name.length) {
+                flush(channel, buffer);
+            }
+            buffer.put(name);
+        }
+        flush(channel, buffer);
+    }
+
+    private static void writeInts(WritableByteChannel channel, ByteBuffer buffer, int[] values) throws IOException {
+        int written = 0;
+        while (written < values.length) {
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(channel, buffer);
+            }
+            final int count = Math.min(values.length - written, buffer.remaining() / Integer.BYTES);
+            buffer.asIntBuffer().put(values, written, count);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+            written += count;
+        }
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Le um grafo escrito por write, a partir da posicao atual do buffer (normalmente um arquivo mapeado em memoria).
+     */
+    static ContactGraph read(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        final int nameCount = buffer.getInt();
+        final int edgeCount = buffer.getInt();
+        final int indexLength = buffer.getInt();
+        final int nameBytesLength = buffer.getInt();
+        if (nameCount < 0 || edgeCount < 0 || Integer.bitCount(indexLength) != 1 || indexLength < nameCount
+                || nameBytesLength < 0) {
+            throw new IOException("Snapshot do grafo de contatos invalido");
+        }
+        final long[] clientBits = new long[(nameCount + 63) >>> 6];
+        final long expected = (long) clientBits.length * Long.BYTES
+                + (long) Integer.BYTES * (indexLength + 3L * (nameCount + 1) + 2L * edgeCount) + nameBytesLength;
+        if (buffer.remaining() < expected) {
+            throw new IOException("Snapshot do grafo de contatos incompleto");
+        }
+        buffer.asLongBuffer().get(clientBits);
+        buffer.position(buffer.position() + clientBits.length * Long.BYTES);
+        final int[] index = readInts(buffer, indexLength);
+        final int[] contactOffsets = readInts(buffer, nameCount + 1);
+        final int[] contacts = readInts(buffer, edgeCount);
+        final int[] watcherOffsets = readInts(buffer, nameCount + 1);
+        final int[] watchers = readInts(buffer, edgeCount);
+        final int[] nameOffsets = readInts(buffer, nameCount + 1);
+        final byte[] nameBytes = new byte[nameBytesLength];
+        buffer.get(nameBytes);
+
+        final String[] names = new String[nameCount];
+        for (int id = 0; id < nameCount; id++) {
+            names[id] = new String(nameBytes, nameOffsets[id], nameOffsets[id + 1] - nameOffsets[id],
+                    StandardCharsets.UTF_8);
+        }
+        return new ContactGraph(names, index, BitSet.valueOf(clientBits), contactOffsets, contacts, watcherOffsets,
+                watchers);
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        final int[] values = new int[count];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    /**
+     * Monta um ContactGraph a partir das linhas do arquivo, entregues um nome por vez: o primeiro de cada linha eh o
+     * cliente, e os seguintes seus contatos.
+     * <p>
+     * Durante a carga cada nome ganha um numero, atraves de uma tabela de enderecamento aberto indexada pelos bytes do
+     * nome, e o restante (contagem do indice reverso, montagem das listas) eh feito em arrays indexados por esse
+     * numero. Os bytes de cada nome ficam guardados em sequencia em um unico array, e cada posicao da tabela guarda
+     * hash, numero, inicio e tamanho lado a lado: reconhecer um nome ja visto nao cria String nenhuma e custa uma
+     * visita a tabela e uma aos bytes. A String so eh criada na primeira ocorrencia.
+     */
+    static class Builder {
+
+        private static final int SLOT_INTS = 4;
+
+        private final Charset charset;
+
+        //Nome de cada numero
+        private String[] names = new String[1024];
+
+        //Bytes de todos os nomes, em sequencia
+        private byte[] nameBytes = new byte[16 * 1024];
+
+        private int nameBytesLength;
+
+        private int nameCount;
+
+        //Tabela de enderecamento aberto (sondagem linear). Cada posicao ocupa SLOT_INTS ints: hash do nome, numero + 1
+        //(0 nas posicoes livres), inicio dos bytes em nameBytes e tamanho. Numero de posicoes sempre potencia de 2
+        private int[] slots = new int[2048 * SLOT_INTS];
+
+        //Contatos (numeros) de cada cliente, pelo numero do cliente; null para nomes que nao tem linha no arquivo
+        private int[][] contactIds = new int[1024][];
+
+        private int clientCount;
+
+        //Numeros dos nomes da linha sendo lida, reaproveitado entre as linhas
+        private int[] line = new int[16];
+
+        private int lineLength;
+
+        Builder(Charset charset) {
+            this.charset = charset;
+        }
+
+        /**
+         * Adiciona a linha atual o nome codificado em bytes[offset, offset + length).
+         */
+        void add(byte[] bytes, int offset, int length) {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, lineLength * 2);
+            }
+            line[lineLength++] = idOf(bytes, offset, length);
+        }
+
+        /**
+         * Termina a linha. Linhas vazias e nomes vazios (";;") sao ignorados; se um cliente aparecer em mais de uma
+         * linha, vale a ultima.
+         */
+        void endLine() {
+            if (lineLength > 0 && !names[line[0]].isEmpty()) {
+                int count = 0;
+                for (int i = 1; i < lineLength; i++) {
+                    if (!names[line[i]].isEmpty()) {
+                        line[++count] = line[i];
+                    }
+                }
+                if (contactIds[line[0]] == null) {
+                    clientCount++;
+                }
+                contactIds[line[0]] = Arrays.copyOfRange(line, 1, count + 1);
+            }
+            lineLength = 0;
+        }
+
+        /**
+         * Descarta os nomes ja recebidos da linha atual, que sera entregue de novo desde o inicio.
+         */
+        void discardLine() {
+            lineLength = 0;
+        }
+
+        private int idOf(byte[] bytes, int offset, int length) {
+            int hash = 0;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            final int mask = slots.length / SLOT_INTS - 1;
+            int slot = slot(hash, mask + 1);
+            int base;
+            while (slots[(base = slot * SLOT_INTS) + 1] != 0) {
+                if (slots[base] == hash && slots[base + 3] == length
+                        && bytesEqual(slots[base + 2], bytes, offset, length)) {
+                    return slots[base + 1] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (nameCount == names.length) {
+                names = Arrays.copyOf(names, nameCount * 2);
+                contactIds = Arrays.copyOf(contactIds, nameCount * 2);
+            }
+            if (nameBytesLength + length > nameBytes.length) {
+                nameBytes = Arrays.copyOf(nameBytes, Math.max(nameBytesLength + length, nameBytes.length * 2));
+            }
+            System.arraycopy(bytes, offset, nameBytes, nameBytesLength, length);
+            names[nameCount] = new String(bytes, offset, length, charset);
+            slots[base] = hash;
+            slots[base + 1] = nameCount + 1;
+            slots[base + 2] = nameBytesLength;
+            slots[base + 3] = length;
+            nameBytesLength += length;
+            if (++nameCount * 2 > mask + 1) {
+                rehash();
+            }
+            return nameCount - 1;
+        }
+
+        private boolean bytesEqual(int start, byte[] bytes, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                if (nameBytes[start + i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash() {
+            final int[] oldSlots = slots;
+            slots = new int[oldSlots.length * 2];
+            final int mask = slots.length / SLOT_INTS - 1;
+            for (int oldBase = 0; oldBase < oldSlots.length; oldBase += SLOT_INTS) {
+                if (oldSlots[oldBase + 1] != 0) {
+                    int slot = slot(oldSlots[oldBase], mask + 1);
+                    while (slots[slot * SLOT_INTS + 1] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    System.arraycopy(oldSlots, oldBase, slots, slot * SLOT_INTS, SLOT_INTS);
+                }
+            }
+        }
+
+        ContactGraph build() {
+            final BitSet clients = new BitSet(nameCount);
+            final int[] contactOffsets = new int[nameCount + 1];
+            for (int id = 0; id < nameCount; id++) {
+                int count = 0;
+                if (contactIds[id] != null) {
+                    clients.set(id);
+                    count = contactIds[id].length;
+                }
+                contactOffsets[id + 1] = contactOffsets[id] + count;
+            }
+            final int[] contacts = new int[contactOffsets[nameCount]];
+            for (int id = 0; id < nameCount; id++) {
+                if (contactIds[id] != null) {
+                    System.arraycopy(contactIds[id], 0, contacts, contactOffsets[id], contactIds[id].length);
+                }
+            }
+            return of(Arrays.copyOf(names, nameCount), clients, contactOffsets, contacts);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Armazenamento duravel do grafo de contatos em um diretorio, para que o servidor suba sem interpretar o arquivo de
+ * clientes de novo e para que mudancas no grafo sobrevivam a reinicios.
+ * <p>
+ * O diretorio tem um snapshot binario do grafo inteiro ("contacts.snapshot"), lido mapeado em memoria com copias em
+ * bloco dos arrays do ContactGraph, e logs de mudancas ("contacts-N.log") gravados apenas no fim. Cada snapshot tem
+ * uma geracao N e contem todas as mudancas dos logs anteriores a N; ao abrir, o snapshot eh lido e os logs de geracao
+ * N em diante sao reaplicados.
+ * <p>
+ * Quando o log passa de um quarto do tamanho do snapshot (e de MIN_COMPACT_LOG_BYTES), uma thread propria escreve
+ * um snapshot novo: o log atual eh fechado e as mudancas seguintes vao para o log da proxima geracao, de forma que a
+ * escrita do snapshot nao bloqueia as mudancas. O snapshot eh escrito em um arquivo temporario e renomeado, entao uma
+ * queda no meio nunca deixa um snapshot pela metade.
+ */
+class ContactStore {
+
+    private static final String SNAPSHOT_FILE = "contacts.snapshot";
+
+    private static final String LOG_PREFIX = "contacts-";
+
+    private static final String LOG_SUFFIX = ".log";
+
+    //"CGS1"
+    private static final int MAGIC = 0x43475331;
+
+    private static final int VERSION = 1;
+
+    private static final int SNAPSHOT_HEADER_LENGTH = 16;
+
+    //Cada lote de mudancas no log eh [tamanho: 4 bytes][CRC32 do conteudo: 4 bytes][mudancas]
+    private static final int BATCH_HEADER_LENGTH = 8;
+
+    private static final long MIN_COMPACT_LOG_BYTES = 1024 * 1024;
+
+    private final Path directory;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "contact-store-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile ContactGraph graph;
+
+    //Geracao do log atual
+    private long generation;
+
+    private FileChannel log;
+
+    private volatile long snapshotBytes;
+
+    private boolean compacting;
+
+    private ContactStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Abre o armazenamento no diretorio. Se ele ainda nao tem um snapshot, importa o arquivo de clientes.
+     */
+    static ContactStore open(Path directory, String clientsFile) throws IOException {
+        Files.createDirectories(directory);
+        final ContactStore store = new ContactStore(directory);
+        final Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        final TreeMap<Long, Path> logs = store.listLogs();
+
+        if (!Files.exists(snapshot)) {
+            for (Path stale : logs.values()) {
+                Files.delete(stale);
+            }
+            store.graph = FilesInterpreter.loadContactGraph(clientsFile);
+            store.generation = 1;
+            store.writeSnapshot(store.graph, store.generation);
+        } else {
+            final long snapshotGeneration = store.readSnapshot(snapshot);
+            store.generation = snapshotGeneration;
+            final List<ContactGraph.Change> changes = new ArrayList<>();
+            for (Long logGeneration : logs.keySet()) {
+                if (logGeneration < snapshotGeneration) {
+                    //Sobra de uma compactacao interrompida depois de renomear o snapshot
+                    Files.delete(logs.get(logGeneration));
+                } else {
+                    readLog(logs.get(logGeneration), changes);
+                    store.generation = logGeneration;
+                }
+            }
+            if (!changes.isEmpty()) {
+                store.graph = store.graph.withChanges(changes);
+            }
+        }
+
+        store.log = openLog(store.logPath(store.generation));
+        return store;
+    }
+
+    ContactGraph graph() {
+        return graph;
+    }
+
+    /**
+     * Momento da ultima gravacao no armazenamento, para comparar com o arquivo de clientes.
+     */
+    long lastModified() throws IOException {
+        return Math.max(Files.getLastModifiedTime(directory.resolve(SNAPSHOT_FILE)).toMillis(),
+                Files.getLastModifiedTime(logPath(generation)).toMillis());
+    }
+
+    /**
+     * Grava as mudancas no log, com fsync, e retorna o grafo com elas aplicadas. Um lote vazio so atualiza a data de
+     * modificacao do log (lastModified).
+     */
+    ContactGraph apply(List<ContactGraph.Change> changes) throws IOException {
+        final ByteBuffer batch = encode(changes);
+        lock.lock();
+        try {
+            while (batch.hasRemaining()) {
+                log.write(batch);
+            }
+            log.force(false);
+            if (!changes.isEmpty()) {
+                graph = graph.withChanges(changes);
+            }
+            if (!compacting && log.size() > Math.max(MIN_COMPACT_LOG_BYTES, snapshotBytes / 4)) {
+                compacting = true;
+                compactor.execute(this::compact);
+            }
+            return graph;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Escreve um snapshot do grafo atual e apaga os logs que ele tornou desnecessarios.
+     */
+    private void compact() {
+        final ContactGraph snapshotGraph;
+        final long snapshotGeneration;
+        lock.lock();
+        try {
+            snapshotGraph = graph;
+            snapshotGeneration = generation + 1;
+            log.close();
+            log = openLog(logPath(snapshotGeneration));
+            generation = snapshotGeneration;
+        } catch (IOException e) {
+            Log.error("nao foi possivel compactar o log de contatos", "erro", e);
+            compacting = false;
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            writeSnapshot(snapshotGraph, snapshotGeneration);
+            for (Long logGeneration : listLogs().headMap(snapshotGeneration).keySet()) {
+                Files.delete(logPath(logGeneration));
+            }
+        } catch (IOException e) {
+            Log.error("nao foi possivel compactar o log de contatos", "erro", e);
+        } finally {
+            lock.lock();
+            try {
+                compacting = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeSnapshot(ContactGraph snapshotGraph, long snapshotGeneration) throws IOException {
+        final Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        final Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(snapshotGeneration).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            snapshotGraph.write(channel);
+            channel.force(true);
+            snapshotBytes = channel.size();
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Le o snapshot para graph e retorna sua geracao.
+     */
+    private long readSnapshot(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            snapshotBytes = channel.size();
+            if (snapshotBytes > Integer.MAX_VALUE) {
+                throw new IOException(snapshot + " maior que " + Integer.MAX_VALUE + " bytes");
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, snapshotBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (snapshotBytes < SNAPSHOT_HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException(snapshot + " nao eh um snapshot de contatos valido");
+            }
+            final long snapshotGeneration = buffer.getLong();
+            graph = ContactGraph.read(buffer);
+            return snapshotGeneration;
+        }
+    }
+
+    /**
+     * Codifica um lote de mudancas: para cada uma, [tipo: 1 byte][cliente] e, para mudancas de contato, [contato],
+     * com os textos como [tamanho: 2 bytes][UTF-8].
+     */
+    private static ByteBuffer encode(List<ContactGraph.Change> changes) throws IOException {
+        final List<byte[]> encoded = new ArrayList<>();
+        int length = 0;
+        for (ContactGraph.Change change : changes) {
+            final byte[] client = encodeName(change.getClient());
+            encoded.add(client);
+            length += 1 + 2 + client.length;
+            if (change.getContact() != null) {
+                final byte[] contact = encodeName(change.getContact());
+                encoded.add(contact);
+                length += 2 + contact.length;
+            }
+        }
+
+        final ByteBuffer batch = ByteBuffer.allocate(BATCH_HEADER_LENGTH + length).order(ByteOrder.LITTLE_ENDIAN);
+        batch.position(BATCH_HEADER_LENGTH);
+        int next = 0;
+        for (ContactGraph.Change change : changes) {
+            batch.put((byte) change.getType().ordinal());
+            final byte[] client = encoded.get(next++);
+            batch.putShort((short) client.length).put(client);
+            if (change.getContact() != null) {
+                final byte[] contact = encoded.get(next++);
+                batch.putShort((short) contact.length).put(contact);
+            }
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(batch.array(), BATCH_HEADER_LENGTH, length);
+        batch.putInt(0, length).putInt(4, (int) crc.getValue());
+        batch.flip();
+        return batch;
+    }
+
+    private static byte[] encodeName(String name) throws IOException {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Nome com mais de " + 0xFFFF + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Le as mudancas do log para changes. Um lote incompleto ou corrompido no fim, de uma queda no meio da gravacao,
+     * eh descartado e cortado do arquivo. O log eh lido para o heap, e nao mapeado, para que o corte nao aconteca com
+     * um mapeamento do arquivo ainda valido; a compactacao o mantem pequeno perto do snapshot.
+     */
+    private static void readLog(Path logFile, List<ContactGraph.Change> changes) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(logFile + " maior que " + Integer.MAX_VALUE + " bytes");
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            final ContactGraph.Change.Type[] types = ContactGraph.Change.Type.values();
+            final CRC32 crc = new CRC32();
+            int valid = 0;
+            while (buffer.remaining() >= BATCH_HEADER_LENGTH) {
+                final int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                final ByteBuffer content = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+                content.limit(length);
+                crc.reset();
+                crc.update(content.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                while (content.hasRemaining()) {
+                    final ContactGraph.Change.Type type = types[content.get()];
+                    final String client = decodeName(content);
+                    final String contact = type == ContactGraph.Change.Type.ADD_CONTACT
+                            || type == ContactGraph.Change.Type.REMOVE_CONTACT ? decodeName(content) : null;
+                    changes.add(new ContactGraph.Change(type, client, contact));
+                }
+                buffer.position(buffer.position() + length);
+                valid = buffer.position();
+            }
+            if (valid < size) {
+                Log.warn("descartando bytes incompletos no fim do log de contatos", "arquivo", logFile, "bytes",
+                        size - valid);
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private static String decodeName(ByteBuffer content) {
+        final byte[] bytes = new byte[content.getShort() & 0xFFFF];
+        content.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static FileChannel openLog(Path logFile) throws IOException {
+        final FileChannel channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    private Path logPath(long logGeneration) {
+        return directory.resolve(LOG_PREFIX + logGeneration + LOG_SUFFIX);
+    }
+
+    /**
+     * Logs do diretorio, pela geracao.
+     */
+    private TreeMap<Long, Path> listLogs() throws IOException {
+        final TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    logs.put(Long.parseLong(name.substring(LOG_PREFIX.length(),
+                            name.length() - LOG_SUFFIX.length())), file);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return logs;
+    }
+}
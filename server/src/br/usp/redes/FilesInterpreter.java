@@ -1,49 +1,77 @@
 package br.usp.redes;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class FilesInterpreter {
 
-    public static List<String> getFileAsStringList(String filePath) {
-        final List<String> lines = new LinkedList<>();
+    //Tamanho de cada trecho do arquivo mapeado em memoria por vez
+    private static final int MAPPED_REGION_SIZE = 64 * 1024 * 1024;
 
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
+    private static final Charset CHARSET = Charset.defaultCharset();
 
-            String sCurrentLine;
-            while ((sCurrentLine = br.readLine()) != null) {
-                lines.add(sCurrentLine);
-            }
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-
-        return lines;
-    }
+    /**
+     * Carrega o arquivo de clientes, em que cada linha tem primeiro o nome do cliente, separado por ";" de seus
+     * contatos. Exemplo: "cliente;contato1;contato2;contato3"
+     * <p>
+     * O arquivo eh mapeado em memoria em trechos de MAPPED_REGION_SIZE e percorrido byte a byte, entregando os bytes de
+     * cada nome direto ao ContactGraph.Builder, sem guardar as linhas nem dividi-las em String[].
+     */
+    public static ContactGraph loadContactGraph(String filePath) throws IOException {
+        final ContactGraph.Builder builder = new ContactGraph.Builder(CHARSET);
+        byte[] name = new byte[64];
 
-    public static HashMap<String, List<String>> getClientsAndContacts() {
-        final HashMap<String, List<String>> map = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long regionStart = 0;
+            while (regionStart < size) {
+                final int regionLength = (int) Math.min(MAPPED_REGION_SIZE, size - regionStart);
+                final boolean lastRegion = regionStart + regionLength == size;
+                final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionLength);
 
-        final List<String> toParse = getFileAsStringList("clients.txt");
+                //Inicio da linha e do nome sendo lidos
+                int lineStart = 0;
+                int nameStart = 0;
+                //No ultimo trecho, o fim do arquivo termina a ultima linha mesmo sem "\n"
+                final int end = lastRegion ? regionLength + 1 : regionLength;
+                for (int i = 0; i < end; i++) {
+                    final byte b = i < regionLength ? region.get(i) : (byte) '\n';
+                    if (b != ';' && b != '\n') {
+                        continue;
+                    }
+                    int nameEnd = i;
+                    if (b == '\n' && nameEnd > nameStart && region.get(nameEnd - 1) == '\r') {
+                        nameEnd--;
+                    }
+                    if (nameEnd - nameStart > name.length) {
+                        name = new byte[Math.max(nameEnd - nameStart, name.length * 2)];
+                    }
+                    region.position(nameStart);
+                    region.get(name, 0, nameEnd - nameStart);
+                    builder.add(name, 0, nameEnd - nameStart);
+                    nameStart = i + 1;
+                    if (b == '\n') {
+                        builder.endLine();
+                        lineStart = i + 1;
+                    }
+                }
 
-        //Parseia as linhas no formato que primeiro vem o nome do cliente, separado por ";" de seus contatos.
-        //Exemplo: "cliente;contato1;contato2;contato3"
-        if (toParse != null) {
-            for (String s : toParse) {
-                final String[] clientAndContacts = s.split(";");
-                final List<String> contacts = new LinkedList<>();
-                contacts.addAll(Arrays.asList(clientAndContacts).subList(1, clientAndContacts.length));
-                map.put(clientAndContacts[0], contacts);
+                if (lastRegion) {
+                    break;
+                }
+                if (lineStart == 0) {
+                    throw new IOException("Linha maior que " + MAPPED_REGION_SIZE + " bytes em " + filePath);
+                }
+                //A linha incompleta no fim do trecho eh lida de novo no proximo
+                builder.discardLine();
+                regionStart += lineStart;
             }
         }
 
-        return map;
+        return builder.build();
     }
 }
@@ -0,0 +1,120 @@
+package br.usp.redes;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de valores nao negativos (latencias em nanossegundos, tamanhos), no estilo do HdrHistogram: os valores
+ * ate SUB_BUCKETS tem um balde cada, e cada potencia de 2 acima disso eh dividida em SUB_BUCKETS / 2 baldes, entao o
+ * erro de cada percentil fica abaixo de 2 / SUB_BUCKETS (cerca de 6%) em qualquer escala.
+ * <p>
+ * record() apenas incrementa contadores atomicos, sem trava e sem alocar, e pode ser chamado de qualquer thread. Os
+ * percentis sao calculados na leitura, a partir de uma copia dos contadores que pode misturar gravacoes concorrentes.
+ */
+class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    //Baldes suficientes para Long.MAX_VALUE
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 2) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            //Outra thread gravou um maximo ao mesmo tempo
+        }
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        //Mantem os SUB_BUCKET_BITS bits mais significativos do valor
+        final int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * Maior valor que cai no mesmo balde que os valores do indice.
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / HALF - 1;
+        final long mantissa = index - (long) shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Resumo do histograma no formato "count=N mean=X p50=X p90=X p99=X p999=X max=X", com os valores divididos por
+     * unit (por exemplo, 1000 para mostrar nanossegundos em microssegundos).
+     */
+    String summary(long unit) {
+        final long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        final double scale = unit;
+        return String.format(Locale.ROOT, "count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p999=%.1f max=%.1f",
+                count, count > 0 ? sum.get() / scale / count : 0.0,
+                percentile(snapshot, count, 0.50) / scale, percentile(snapshot, count, 0.90) / scale,
+                percentile(snapshot, count, 0.99) / scale, percentile(snapshot, count, 0.999) / scale,
+                max.get() / scale);
+    }
+
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Valor abaixo do qual estao a fracao p das gravacoes, ou 0 se nao houve nenhuma.
+     */
+    long percentile(double p) {
+        final long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        return percentile(snapshot, count, p);
+    }
+
+    private long percentile(long[] snapshot, long count, double p) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                //O maior valor do balde pode passar do maior valor gravado
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
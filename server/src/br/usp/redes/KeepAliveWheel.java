@@ -0,0 +1,152 @@
+package br.usp.redes;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timer unico (hashed timing wheel) que acompanha o prazo de keep alive de todas as sessoes do servidor.
+ * <p>
+ * Cada sessao registrada ganha uma Entry com o instante do ultimo KEEPA recebido. Receber um KEEPA apenas atualiza
+ * esse instante (touch), sem alocar nada e sem mexer na roda. A roda eh um vetor de baldes, e uma thread avanca um
+ * balde a cada tick. Ao visitar uma entrada, a thread verifica se o prazo (ultimo KEEPA + timeout) ja passou: se
+ * sim, executa a acao de expiracao; se nao, move a entrada para o balde do novo prazo. Assim sessoes ociosas custam
+ * uma visita por timeout, em vez de uma excecao de SO_TIMEOUT por segundo em cada thread.
+ * <p>
+ * Os baldes sao acessados apenas pela thread da roda. Novas entradas chegam por uma fila concorrente.
+ */
+class KeepAliveWheel {
+
+    private static final int WHEEL_SIZE = 64;
+
+    private final long timeoutNanos;
+
+    private final long tickNanos;
+
+    private final long startNanos;
+
+    private final ArrayDeque<Entry>[] wheel;
+
+    //Entradas registradas desde o ultimo tick, esperando para entrar na roda
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+
+    @SuppressWarnings("unchecked")
+    KeepAliveWheel(long timeoutMillis, long tickMillis) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.startNanos = System.nanoTime();
+        this.wheel = (ArrayDeque<Entry>[]) new ArrayDeque<?>[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+
+        final Thread worker = new Thread(this::run, "keepalive-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Comeca a acompanhar uma sessao. Se ela ficar mais que o timeout sem chamar touch(), onExpire eh executado pela
+     * thread da roda, e por isso deve ser rapido (por exemplo, fechar o socket).
+     */
+    Entry register(Runnable onExpire) {
+        final Entry entry = new Entry(onExpire);
+        added.add(entry);
+        return entry;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            final long tickDeadline = startNanos + (tick + 1) * tickNanos;
+            long sleep;
+            while ((sleep = tickDeadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+
+            Entry entry;
+            while ((entry = added.poll()) != null) {
+                place(entry, tick);
+            }
+            tick++;
+            processBucket(tick);
+        }
+    }
+
+    /**
+     * Visita as entradas do balde do tick. Entradas recolocadas no mesmo balde durante a visita vao para o final da
+     * fila e nao sao visitadas de novo neste tick.
+     */
+    private void processBucket(long tick) {
+        final ArrayDeque<Entry> bucket = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+        final long now = System.nanoTime();
+        for (int i = bucket.size(); i > 0; i--) {
+            final Entry entry = bucket.poll();
+            if (entry.cancelled) {
+                continue;
+            }
+            if (entry.remainingRounds > 0) {
+                entry.remainingRounds--;
+                bucket.add(entry);
+            } else if (now - (entry.lastSeen + timeoutNanos) >= 0) {
+                entry.cancelled = true;
+                try {
+                    entry.onExpire.run();
+                } catch (RuntimeException e) {
+                    Log.error("erro ao desconectar cliente sem KEEPA", "erro", e);
+                }
+            } else {
+                place(entry, tick);
+            }
+        }
+    }
+
+    /**
+     * Coloca a entrada no balde do tick em que seu prazo vence, sempre depois do tick ja processado.
+     */
+    private void place(Entry entry, long processedTick) {
+        final long expiresAt = entry.lastSeen + timeoutNanos;
+        final long expiresTick = Math.max(processedTick + 1, (expiresAt - startNanos + tickNanos - 1) / tickNanos);
+        entry.remainingRounds = (expiresTick - processedTick - 1) / WHEEL_SIZE;
+        wheel[(int) (expiresTick & (WHEEL_SIZE - 1))].add(entry);
+    }
+
+    /**
+     * Prazo de keep alive de uma sessao.
+     */
+    static class Entry {
+
+        private final Runnable onExpire;
+
+        private volatile long lastSeen = System.nanoTime();
+
+        private volatile boolean cancelled;
+
+        //Voltas completas da roda que ainda faltam ate o prazo. Acessado apenas pela thread da roda
+        private long remainingRounds;
+
+        private Entry(Runnable onExpire) {
+            this.onExpire = onExpire;
+        }
+
+        /**
+         * Registra que a sessao mandou KEEPA agora. Retorna os nanossegundos desde o KEEPA anterior, ou desde o
+         * registro no primeiro.
+         */
+        long touch() {
+            final long now = System.nanoTime();
+            final long gap = now - lastSeen;
+            lastSeen = now;
+            return gap;
+        }
+
+        /**
+         * Para de acompanhar a sessao, por exemplo quando ela desconecta por conta propria.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
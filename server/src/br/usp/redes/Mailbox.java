@@ -0,0 +1,397 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caixa postal do servidor para mensagens que nao puderam ser entregues por P2P: o contato estava offline ou a conexao
+ * com ele falhou. O cliente que aceitou a capacidade "MAIL" manda "OFFMS destinatario texto", a mensagem eh guardada
+ * na caixa do destinatario e entregue a ele como "MAILM sequencia remetente instante texto" quando ele estiver
+ * conectado, logo depois do CLIST. O destinatario confirma cada mensagem com "MAILA sequencia".
+ * <p>
+ * Cada caixa eh um diretorio com segmentos de SEGMENT_SIZE bytes ("sequencia.seg", com a sequencia da primeira
+ * mensagem), mapeados em memoria: as mensagens ficam no page cache do sistema, nao no heap. Cada mensagem eh gravada ja
+ * como frame MAILM do modo binario, entao a entrega a um cliente binario eh uma fatia do segmento colocada na fila de
+ * saida, sem copia; clientes de texto recebem a linha montada a partir do frame. A ultima sequencia confirmada fica no
+ * arquivo "acked", tambem mapeado, e os segmentos cujas mensagens foram todas confirmadas sao apagados.
+ * <p>
+ * As gravacoes nos segmentos sobrevivem a queda do processo, mas nao a do sistema: nao ha force() a cada mensagem.
+ * <p>
+ * No maximo DELIVERY_WINDOW mensagens sao entregues sem confirmacao; as seguintes vao a cada confirmacao, para nao
+ * encher a fila de saida. Uma mensagem entregue e nao confirmada eh entregue de novo no proximo login.
+ * <p>
+ * Uma caixa com todas as mensagens confirmadas eh fechada: os segmentos sao apagados e ela sai de boxes, para que os
+ * mapeamentos nao se acumulem com cada destinatario que ja recebeu uma mensagem offline. Fica apenas o "acked", para
+ * que as sequencias continuem de onde pararam quando a caixa for aberta de novo.
+ * <p>
+ * Uma caixa sem uso ha IDLE_MILLIS tambem eh fechada, mas sem apagar nada: ela sai de boxes e os mapeamentos ficam para
+ * o GC, e o proximo acesso a abre de novo do disco. Assim a caixa de quem nunca conecta, ou nunca confirma tudo, nao
+ * fica mapeada enquanto o servidor rodar. Uma confirmacao que chegar depois disso eh ignorada, e as mensagens entregues
+ * e nao confirmadas sao entregues de novo no proximo login.
+ */
+class Mailbox {
+
+    static final String MAIL_CAPABILITY = "MAIL";
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int DELIVERY_WINDOW = 256;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String ACKED_FILE = "acked";
+
+    private static final long IDLE_MILLIS = 60_000;
+
+    private final Path directory;
+
+    private final ConcurrentHashMap<String, UserMailbox> boxes = new ConcurrentHashMap<>();
+
+    //Serializa a abertura das caixas, para que cada uma seja aberta uma unica vez
+    private final ReentrantLock openLock = new ReentrantLock();
+
+    private Mailbox(Path directory) {
+        this.directory = directory;
+        final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mailbox-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictor.scheduleWithFixedDelay(this::closeIdle, IDLE_MILLIS / 4, IDLE_MILLIS / 4, TimeUnit.MILLISECONDS);
+    }
+
+    static Mailbox open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        return new Mailbox(directory);
+    }
+
+    /**
+     * Guarda a mensagem na caixa do destinatario. Retorna a sequencia dela.
+     */
+    long append(String recipient, String sender, String text) throws IOException {
+        final UserMailbox box = lockedBox(recipient, true);
+        try {
+            return box.append(sender, text);
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    /**
+     * Comeca a entregar as mensagens guardadas para o cliente, recem registrado, a partir da primeira nao confirmada.
+     */
+    void loggedIn(Client c) throws IOException {
+        final UserMailbox box = lockedBox(c.getName(), false);
+        if (box == null) {
+            return;
+        }
+        try {
+            box.delivered = box.acked;
+            box.deliverySegment = 0;
+            box.deliveryPosition = 0;
+            box.deliver(c);
+            closeIfDrained(c.getName(), box);
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    /**
+     * Entrega ao cliente conectado as mensagens que chegaram depois das ja entregues, dentro de DELIVERY_WINDOW.
+     */
+    void deliver(Client c) throws IOException {
+        final UserMailbox box = lockedBox(c.getName(), false);
+        if (box == null) {
+            return;
+        }
+        try {
+            box.deliver(c);
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    /**
+     * Registra que o cliente recebeu as mensagens ate a sequencia, apaga os segmentos que nao tem mais nenhuma
+     * mensagem pendente e entrega as seguintes.
+     */
+    void acknowledge(Client c, long sequence) throws IOException {
+        final UserMailbox box = lockedBox(c.getName(), false);
+        if (box == null) {
+            return;
+        }
+        try {
+            if (sequence <= box.acked || sequence > box.delivered) {
+                return;
+            }
+            box.setAcked(sequence);
+            box.reclaim();
+            box.deliver(c);
+            closeIfDrained(c.getName(), box);
+        } finally {
+            box.lock.unlock();
+        }
+    }
+
+    /**
+     * Caixa do cliente, aberta e com o lock ja adquirido, ou null se ela nao existe e create eh false. Uma caixa
+     * fechada por closeIfDrained ou closeIdle enquanto se esperava pelo lock eh trocada pela aberta de novo do disco.
+     */
+    private UserMailbox lockedBox(String name, boolean create) throws IOException {
+        while (true) {
+            final UserMailbox box = box(name, create);
+            if (box == null) {
+                return null;
+            }
+            box.lock.lock();
+            if (!box.closed) {
+                box.lastUsed = System.nanoTime();
+                return box;
+            }
+            box.lock.unlock();
+        }
+    }
+
+    /**
+     * Fecha a caixa, com o lock adquirido, se todas as mensagens dela foram confirmadas: apaga os segmentos e a tira
+     * de boxes. Ela so sai de boxes depois de apagar os segmentos, entao quem a abrir de novo le o diretorio ja limpo.
+     */
+    private void closeIfDrained(String name, UserMailbox box) throws IOException {
+        if (box.acked < box.nextSequence - 1) {
+            return;
+        }
+        box.closed = true;
+        for (Segment segment : box.segments) {
+            Files.deleteIfExists(segment.file);
+        }
+        box.segments.clear();
+        boxes.remove(name, box);
+    }
+
+    /**
+     * Fecha as caixas sem uso ha IDLE_MILLIS, sem apagar os segmentos. Caixas em uso no momento ficam para a proxima
+     * passada.
+     */
+    private void closeIdle() {
+        final long now = System.nanoTime();
+        for (Map.Entry<String, UserMailbox> entry : boxes.entrySet()) {
+            final UserMailbox box = entry.getValue();
+            if (!box.lock.tryLock()) {
+                continue;
+            }
+            try {
+                if (!box.closed && now - box.lastUsed > TimeUnit.MILLISECONDS.toNanos(IDLE_MILLIS)) {
+                    box.closed = true;
+                    box.segments.clear();
+                    boxes.remove(entry.getKey(), box);
+                }
+            } finally {
+                box.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Caixa do cliente, aberta do disco na primeira vez. Retorna null se ela nao existe e create eh false.
+     */
+    private UserMailbox box(String name, boolean create) throws IOException {
+        UserMailbox box = boxes.get(name);
+        if (box != null) {
+            return box;
+        }
+        //O nome vem do arquivo de clientes, mas nao deve virar um caminho como ".."
+        final Path boxDirectory = directory.resolve("u_" + URLEncoder.encode(name, StandardCharsets.UTF_8));
+        if (!create && !Files.isDirectory(boxDirectory)) {
+            return null;
+        }
+        openLock.lock();
+        try {
+            box = boxes.get(name);
+            if (box == null) {
+                box = new UserMailbox(boxDirectory);
+                boxes.put(name, box);
+            }
+            return box;
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    /**
+     * Segmento mapeado de uma caixa. As mensagens vao do inicio ate writePosition; o resto do arquivo eh zero.
+     */
+    private static class Segment {
+
+        private final Path file;
+
+        private final MappedByteBuffer map;
+
+        private int writePosition;
+
+        private long lastSequence;
+
+        Segment(Path file, long firstSequence) throws IOException {
+            this.file = file;
+            this.lastSequence = firstSequence - 1;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+            //Acha o fim das mensagens ja gravadas. Uma mensagem cortada pela queda do processo eh sobrescrita
+            while (writePosition < SEGMENT_SIZE - 5 && map.get(writePosition) == ProtocolCodec.MAILM) {
+                final int length = ProtocolCodec.frameLength(map, writePosition);
+                if (length <= 0 || writePosition + length > SEGMENT_SIZE) {
+                    break;
+                }
+                lastSequence = ProtocolCodec.mailSequence(map, writePosition);
+                writePosition += length;
+            }
+        }
+    }
+
+    /**
+     * Caixa de um cliente. Acessada apenas com lock.
+     */
+    private static class UserMailbox {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        //Se a caixa foi fechada por closeIfDrained ou closeIdle e nao pode mais ser usada
+        private boolean closed;
+
+        //Instante, em System.nanoTime(), do ultimo uso da caixa
+        private long lastUsed = System.nanoTime();
+
+        private final Path directory;
+
+        //Segmentos em ordem de sequencia, do mais antigo ao atual
+        private final List<Segment> segments = new ArrayList<>();
+
+        private final MappedByteBuffer ackedMap;
+
+        //Ultima sequencia confirmada pelo cliente
+        private long acked;
+
+        //Ultima sequencia entregue na sessao atual do cliente
+        private long delivered;
+
+        private long nextSequence;
+
+        //Posicao da proxima mensagem a entregar: indice do segmento e posicao nele
+        private int deliverySegment;
+
+        private int deliveryPosition;
+
+        UserMailbox(Path directory) throws IOException {
+            this.directory = directory;
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(directory.resolve(ACKED_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.ackedMap = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            }
+            this.acked = ackedMap.getLong(0);
+            this.delivered = acked;
+
+            final TreeMap<Long, Path> files = new TreeMap<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                for (Path file : stream) {
+                    final String name = file.getFileName().toString();
+                    files.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+            }
+            for (Map.Entry<Long, Path> file : files.entrySet()) {
+                segments.add(new Segment(file.getValue(), file.getKey()));
+            }
+            nextSequence = acked + 1;
+            if (!segments.isEmpty()) {
+                nextSequence = Math.max(nextSequence, segments.get(segments.size() - 1).lastSequence + 1);
+            }
+        }
+
+        long append(String sender, String text) throws IOException {
+            final byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+            final byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            final int length = ProtocolCodec.mailMessageLength(senderBytes, textBytes);
+            Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.writePosition + length > SEGMENT_SIZE) {
+                segment = new Segment(directory.resolve(String.format("%020d", nextSequence) + SEGMENT_SUFFIX),
+                        nextSequence);
+                segments.add(segment);
+            }
+            final long sequence = nextSequence++;
+            final ByteBuffer target = segment.map.duplicate();
+            target.position(segment.writePosition);
+            ProtocolCodec.putMailMessage(target, sequence, System.currentTimeMillis(), senderBytes, textBytes);
+            segment.writePosition += length;
+            segment.lastSequence = sequence;
+            return sequence;
+        }
+
+        void deliver(Client c) throws IOException {
+            final boolean binary = c.hasCapability(ProtocolCodec.BINARY_CAPABILITY);
+            while (deliverySegment < segments.size() && delivered < acked + DELIVERY_WINDOW) {
+                final Segment segment = segments.get(deliverySegment);
+                if (deliveryPosition >= segment.writePosition) {
+                    if (deliverySegment == segments.size() - 1) {
+                        return;
+                    }
+                    deliverySegment++;
+                    deliveryPosition = 0;
+                    continue;
+                }
+                final int length = ProtocolCodec.frameLength(segment.map, deliveryPosition);
+                final long sequence = ProtocolCodec.mailSequence(segment.map, deliveryPosition);
+                if (sequence > delivered) {
+                    final ByteBuffer frame = segment.map.duplicate();
+                    frame.limit(deliveryPosition + length).position(deliveryPosition);
+                    c.getWriter().send(binary ? frame.slice() : ProtocolCodec.mailLine(frame));
+                    delivered = sequence;
+                }
+                deliveryPosition += length;
+            }
+        }
+
+        void setAcked(long sequence) {
+            acked = sequence;
+            ackedMap.putLong(0, sequence);
+        }
+
+        /**
+         * Apaga os segmentos com todas as mensagens confirmadas. O mapeamento so eh liberado pelo GC, mas o arquivo
+         * pode ser apagado antes disso, mesmo com fatias dele ainda na fila de saida.
+         */
+        void reclaim() throws IOException {
+            while (!segments.isEmpty() && segments.get(0).lastSequence <= acked) {
+                final Segment segment = segments.get(0);
+                //O segmento atual so eh apagado se estiver cheio, para nao criar um segmento novo a cada mensagem
+                if (segments.size() == 1 && segment.writePosition < SEGMENT_SIZE / 2) {
+                    return;
+                }
+                segments.remove(0);
+                Files.deleteIfExists(segment.file);
+                if (deliverySegment > 0) {
+                    deliverySegment--;
+                } else {
+                    deliveryPosition = 0;
+                }
+            }
+        }
+    }
+}
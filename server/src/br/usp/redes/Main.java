@@ -1,27 +1,48 @@
 package br.usp.redes;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Protocolo de comunicacao:
  * <p>
  * Servidor ao receber conexao, pergunta "WHURO" (Who are you) ate o cliente entrar com um nome valido e que nao
- * esta em uso. Quando o cliente entra com um nome valido (clientName), o servidor notifica os contatos do cliente
- * conectados com "CONAT clientName/ip:porta" (Connection Active), e responde ao cliente
+ * esta em uso. Quando o cliente entra com um nome valido (clientName), o servidor notifica os clientes conectados
+ * que tem clientName como contato com "CONAT clientName/ip:porta" (Connection Active), e responde ao cliente
  * "CLIST contato1/ip1:porta1;contato2/ip2:porta2" (Contact List).
  * <p>
+ * O WHORU vem seguido das capacidades opcionais do protocolo que o servidor oferece, como "WHORU BATCH". O cliente
+ * pode aceita-las repetindo-as depois dos seus dados: "clientName/ip:porta BATCH". Clientes antigos ignoram as
+ * capacidades e continuam recebendo apenas as mensagens originais. Com a capacidade "BIN", as mensagens seguintes ao
+ * registro passam a ser frames binarios, descritos em ProtocolCodec. Com a capacidade "MOVED", um servidor que faz
+ * parte de um Cluster pode responder "MOVED host:porta" em vez de registrar o cliente, indicando o no ao qual ele
+ * pertence. Com a capacidade "RESYNC", o KEPTA traz a versao da presenca ("KEPTA epoca:sequencia"), e o cliente que
+ * reconecta informando-a ("clientName/ip:porta RESYNC SINCE=epoca:sequencia") recebe, em vez do CLIST, apenas os
+ * contatos que mudaram desde ela: "RESYN +contato1/ip1:porta1;-contato2", no formato do CONBA. Veja PresenceLog.
+ * <p>
+ * Grupos sao linhas do arquivo de clientes cujo nome comeca com GROUP_PREFIX, seguido dos membros:
+ * "#sala;membro1;membro2". Um membro que aceitou a capacidade "GROUP" pode mandar "GROUP #sala texto", e o servidor
+ * repassa "GRPMS #sala remetente texto" aos outros membros conectados que a aceitaram, para quando a conexao P2P nao
+ * eh possivel (por exemplo, atras de NAT). Nenhum cliente pode se registrar com o nome de um grupo.
+ * <p>
  * O servidor fica entao continuamente escutando por mensagens "KEEPA" (Keep Alive) do cliente, e respondendo-as com
  * "KEPTA" (Kept Alive). Caso o cliente fique sem mandar um numero MISSED_KEEP_ALIVE_LIMIT de mensagens KEEPA, que sao
- * esperadas a um intervalo de KEEP_ALIVE_INTERVAL, o servidor desconecta o cliente, e notifica todos seus contatos
+ * esperadas a um intervalo de KEEP_ALIVE_INTERVAL, o servidor desconecta o cliente, e notifica os mesmos clientes
  * conectados com a mensagem "CONIN clientName" (Connection Inactive).
  * <p>
  * Codigo adaptado de:
@@ -29,27 +50,58 @@ import java.util.List;
  */
 public class Main {
 
+    static final int KEEP_ALIVE_INTERVAL = 1000;
+
+    static final int MISSED_KEEP_ALIVE_LIMIT = 5;
+
+    //Capacidade do protocolo: mandar e receber mensagens de grupo repassadas pelo servidor (GROUP/GRPMS)
+    static final String GROUP_CAPABILITY = "GROUP";
+
     /**
-     * Porta na qual o servidor fica escutando.
+     * Prefixo dos nomes de grupo no arquivo de clientes.
      */
-    private static final int PORT = 9001;
+    static final String GROUP_PREFIX = "#";
 
-    private static final int KEEP_ALIVE_INTERVAL = 1000;
+    /**
+     * Mensagem que pergunta o nome do cliente, oferecendo as capacidades opcionais do protocolo.
+     */
+    static final String WHORU_MESSAGE = "WHORU " + PresenceCoalescer.BATCH_CAPABILITY + " "
+            + ProtocolCodec.BINARY_CAPABILITY + " " + Cluster.MOVED_CAPABILITY + " " + PresenceLog.RESYNC_CAPABILITY
+            + " " + GROUP_CAPABILITY;
 
-    private static final int MISSED_KEEP_ALIVE_LIMIT = 5;
+    /**
+     * Timer unico que acompanha o ultimo KEEPA de todos os clientes conectados e desconecta os que ficam mais de
+     * MISSED_KEEP_ALIVE_LIMIT intervalos de KEEP_ALIVE_INTERVAL sem manda-lo.
+     */
+    static final KeepAliveWheel keepAliveWheel = new KeepAliveWheel(
+            (long) KEEP_ALIVE_INTERVAL * (MISSED_KEEP_ALIVE_LIMIT + 1), KEEP_ALIVE_INTERVAL / 4);
 
     /**
-     * Executa o servidor, escutando na porta e criando uma thread ClientHandler para cada conexao
+     * Executa o servidor, escutando na porta e criando uma thread (de plataforma, ou virtual com --mode=virtual) que
+     * executa um ClientHandler para cada conexao, ou delegando as conexoes aos event loops do NioServer quando
+     * iniciado com --mode=nio
      */
     public static void main(String[] args) throws IOException {
 
-        clientContacts = FilesInterpreter.getClientsAndContacts();
+        init(ServerConfig.parse(args));
 
-        ServerSocket listener = new ServerSocket(PORT);
-        System.out.println("Servidor executando e esperando por clientes...");
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            new NioServer(config.getPort(), config.getEventLoops()).run();
+            return;
+        }
+
+        final Executor sessions = config.getMode() == ServerConfig.Mode.VIRTUAL
+                ? virtualThreadExecutor()
+                : runnable -> new Thread(runnable).start();
+
+        ServerSocket listener = new ServerSocket(config.getPort());
+        System.out.println("Servidor (" + config.getMode().name().toLowerCase()
+                + ") executando e esperando por clientes...");
         try {
             while (true) {
-                new ClientHandler(listener.accept()).start();
+                final Socket socket = listener.accept();
+                ServerMetrics.connectionAccepted();
+                sessions.execute(new ClientHandler(socket, sessions));
             }
         } finally {
             listener.close();
@@ -57,54 +109,726 @@ public class Main {
     }
 
     /**
-     * Conjunto de clientes conectados ao servidor no momento
+     * Prepara o estado do servidor com as opcoes: carrega o grafo de contatos e inicia o que elas pedem (recarga do
+     * arquivo de clientes, cluster, coalescer), sem ainda aceitar conexoes. Tambem usado pelos Benchmarks.
+     */
+    static void init(ServerConfig serverConfig) throws IOException {
+        config = serverConfig;
+        Log.configure(config.getLogLevel(), config.getLogFile());
+        //Criado antes do grafo, porque a recarga abaixo ja muda os contatos
+        presenceLog = new PresenceLog(config.getPresenceHistory());
+
+        final long loadStart = System.nanoTime();
+        if (config.getStoreDir() != null) {
+            contactStore = ContactStore.open(Paths.get(config.getStoreDir()), config.getClientsFile());
+            contactGraph = contactStore.graph();
+            System.out.println(contactGraph.size() + " clientes carregados de " + config.getStoreDir() + " em "
+                    + (System.nanoTime() - loadStart) / 1000000 + " ms");
+            //O arquivo de clientes mudou com o servidor parado
+            final File clientsFile = new File(config.getClientsFile());
+            if (clientsFile.lastModified() > contactStore.lastModified()) {
+                reloadContactGraph();
+            }
+        } else {
+            contactGraph = FilesInterpreter.loadContactGraph(config.getClientsFile());
+            System.out.println(contactGraph.size() + " clientes carregados de " + config.getClientsFile() + " em "
+                    + (System.nanoTime() - loadStart) / 1000000 + " ms");
+        }
+        if (config.isWatchClientsFile()) {
+            ClientsFileWatcher.start(config.getClientsFile(), Main::reloadContactGraph);
+        }
+        if (config.getPeers() != null) {
+            cluster = Cluster.start(config.getNodeId(), config.getPeers());
+        }
+        if (config.getCoalesceMillis() > 0) {
+            presenceCoalescer = new PresenceCoalescer(config.getCoalesceMillis(), presenceLog);
+        }
+        if (config.getMailboxDir() != null) {
+            mailbox = Mailbox.open(Paths.get(config.getMailboxDir()));
+        }
+        ServerMetrics.start(config.getAdminPort());
+    }
+
+    /**
+     * WHORU_MESSAGE, oferecendo tambem "MAIL" quando as caixas postais estao ligadas.
+     */
+    static String whoruMessage() {
+        return mailbox != null ? WHORU_MESSAGE + " " + Mailbox.MAIL_CAPABILITY : WHORU_MESSAGE;
+    }
+
+    /**
+     * Opcoes com as quais o servidor foi iniciado
+     */
+    static ServerConfig config;
+
+    /**
+     * Cria um Executor que executa cada tarefa em uma virtual thread. Usa reflexao para que o servidor continue
+     * compilando e executando em JDKs anteriores ao 21, onde apenas o modo virtual fica indisponivel.
+     */
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("O modo virtual precisa de Java 21 ou superior", e);
+        }
+    }
+
+    /**
+     * Clientes conectados ao servidor no momento, indexados pelo nome
+     */
+    private static final ClientRegistry registry = new ClientRegistry();
+
+    /**
+     * Contatos de cada cliente e, no sentido inverso, os clientes que o tem como contato. Eh carregado do arquivo
+     * clients.txt ao subir o servidor, e trocado por um grafo novo quando o arquivo muda. Os avisos de conexao e
+     * desconexao de um cliente vao apenas para os clientes conectados que o tem como contato.
+     */
+    private static volatile ContactGraph contactGraph;
+
+    /**
+     * Armazenamento duravel do grafo de contatos, com --store-dir. Eh null quando o grafo vem apenas do arquivo de
+     * clientes.
+     */
+    private static ContactStore contactStore;
+
+    //Serializa as mudancas no grafo de contatos
+    private static final ReentrantLock contactGraphLock = new ReentrantLock();
+
+    /**
+     * Versao da presenca e ultimas mudancas, para responder aos clientes que reconectam apenas com o que mudou.
+     */
+    private static PresenceLog presenceLog;
+
+    /**
+     * Junta os avisos de presenca de cada cliente em janelas de --coalesce-ms. Eh null quando os avisos sao enviados
+     * imediatamente.
+     */
+    private static PresenceCoalescer presenceCoalescer;
+
+    /**
+     * Ligacao com os outros nos do cluster, com --peers. Eh null quando o servidor roda sozinho.
+     */
+    private static Cluster cluster;
+
+    /**
+     * Caixas postais das mensagens para contatos offline, com --mailbox-dir. Eh null quando estao desligadas.
+     */
+    private static Mailbox mailbox;
+
+    /**
+     * Interpreta a resposta ao WHORU, no formato "nome/ip:porta", seguida opcionalmente das capacidades aceitas
+     * separadas por espaco. Retorna null caso esteja mal formada.
+     */
+    static Client parseConnectionData(String connectionData) {
+        if (connectionData == null) {
+            return null;
+        }
+        Set<String> capabilities = Collections.emptySet();
+        String presenceVersion = null;
+        final int space = connectionData.indexOf(' ');
+        if (space >= 0) {
+            capabilities = new HashSet<>(Arrays.asList(connectionData.substring(space + 1).split(" ")));
+            connectionData = connectionData.substring(0, space);
+            for (String capability : capabilities) {
+                if (capability.startsWith(PresenceLog.SINCE_PREFIX)) {
+                    presenceVersion = capability.substring(PresenceLog.SINCE_PREFIX.length());
+                }
+            }
+        }
+        final int slash = connectionData.indexOf('/');
+        final int colon = connectionData.lastIndexOf(':');
+        if (slash <= 0 || colon < slash) {
+            return null;
+        }
+        final String port = connectionData.substring(colon + 1);
+        if (!isValidPort(port)) {
+            return null;
+        }
+        Client c = new Client();
+        c.setName(connectionData.substring(0, slash));
+        c.setIp(connectionData.substring(slash + 1, colon));
+        c.setPort(port);
+        c.setCapabilities(capabilities);
+        c.setPresenceVersion(presenceVersion);
+        return c;
+    }
+
+    private static boolean isValidPort(String port) {
+        if (port.isEmpty() || port.length() > 5) {
+            return false;
+        }
+        for (int i = 0; i < port.length(); i++) {
+            if (!Character.isDigit(port.charAt(i))) {
+                return false;
+            }
+        }
+        return Integer.parseInt(port) <= 65535;
+    }
+
+    /**
+     * Endereco "host:porta" do no do cluster ao qual o cliente pertence, caso nao seja este e o cliente aceite ser
+     * redirecionado com "MOVED". Retorna null caso o cliente deva ser registrado neste servidor.
+     */
+    static String movedTo(Client c) {
+        if (cluster == null || !c.hasCapability(Cluster.MOVED_CAPABILITY)) {
+            return null;
+        }
+        return cluster.ownerAddress(c.getName());
+    }
+
+    /**
+     * Registra um cliente que respondeu ao WHORU, caso seu nome seja valido e nao esteja em uso, e avisa aos clientes
+     * conectados que o tem como contato com "CONAT clientName/ip:porta". O cliente ja deve ter sua saida de mensagens
+     * definida.
+     * Retorna false caso o cliente nao possa ser registrado.
+     */
+    static boolean registerClient(Client c) {
+        if (c.getName().startsWith(GROUP_PREFIX) || !contactGraph.contains(c.getName()) || !registry.register(c)) {
+            return false;
+        }
+        final ContactGraph graph = contactGraph;
+        final int id = graph.idOf(c.getName());
+        if (id >= 0) {
+            graph.setOnline(id, c);
+        }
+
+        // Avisa aos clientes conectados que tem este como contato que ele esta conectando.
+        final long sequence = presenceLog.begin(id);
+        try {
+            notifyWatchers(c, true);
+        } finally {
+            presenceLog.end(sequence);
+        }
+        if (cluster != null && !c.isRemote()) {
+            cluster.announceOnline(c);
+        }
+        return true;
+    }
+
+    /**
+     * Monta a mensagem "CLIST contato1/ip1:porta1;contato2/ip2:porta2" com os contatos conectados do cliente, ja
+     * codificada no modo do protocolo usado por ele.
+     */
+    static ByteBuffer contactListMessage(Client c) {
+        final List<Client> online = new ArrayList<>();
+        final ContactGraph graph = contactGraph;
+        final int id = graph.idOf(c.getName());
+        if (id >= 0) {
+            for (int i = graph.contactsStart(id); i < graph.contactsEnd(id); i++) {
+                final Client contactClient = graph.onlineClient(graph.contactAt(i));
+                if (contactClient != null) {
+                    online.add(contactClient);
+                }
+            }
+        }
+        if (c.hasCapability(ProtocolCodec.BINARY_CAPABILITY)) {
+            return ProtocolCodec.contactList(online);
+        }
+        final StringBuilder onlineContactList = new StringBuilder("CLIST ");
+        for (int i = 0; i < online.size(); i++) {
+            if (i > 0) {
+                onlineContactList.append(";");
+            }
+            onlineContactList.append(online.get(i).getContactData());
+        }
+        return ProtocolCodec.line(onlineContactList.toString());
+    }
+
+    /**
+     * Mensagem enviada ao cliente logo depois do registro: o RESYN com os contatos que mudaram desde a versao da
+     * presenca informada no login, se ela ainda pode ser usada, ou o CLIST completo.
+     */
+    static ByteBuffer loginContactsMessage(Client c) {
+        final ContactGraph graph = contactGraph;
+        final int id = graph.idOf(c.getName());
+        final int[] changed = c.getPresenceVersion() != null && c.hasCapability(PresenceLog.RESYNC_CAPABILITY)
+                ? presenceLog.changedSince(c.getPresenceVersion()) : null;
+        if (changed == null || id < 0) {
+            return contactListMessage(c);
+        }
+        Arrays.sort(changed);
+        final List<Client> online = new ArrayList<>();
+        final List<String> offline = new ArrayList<>();
+        for (int i = graph.contactsStart(id); i < graph.contactsEnd(id); i++) {
+            final int contact = graph.contactAt(i);
+            if (Arrays.binarySearch(changed, contact) >= 0) {
+                final Client contactClient = graph.onlineClient(contact);
+                if (contactClient != null) {
+                    online.add(contactClient);
+                } else {
+                    offline.add(graph.nameOf(contact));
+                }
+            }
+        }
+        if (c.hasCapability(ProtocolCodec.BINARY_CAPABILITY)) {
+            return ProtocolCodec.resync(online, offline);
+        }
+        return ProtocolCodec.presenceLine("RESYN", online, offline);
+    }
+
+    /**
+     * Resposta ao KEEPA, com a versao da presenca para os clientes que aceitaram "RESYNC".
+     */
+    static ByteBuffer keptAliveMessage(Client c) {
+        final boolean binary = c.hasCapability(ProtocolCodec.BINARY_CAPABILITY);
+        if (!c.hasCapability(PresenceLog.RESYNC_CAPABILITY)) {
+            return binary ? ProtocolCodec.keptAlive() : ProtocolCodec.line("KEPTA");
+        }
+        //Com o presenceCoalescer, as mudancas so chegam as filas de saida no fim da janela
+        final long version = presenceCoalescer != null ? presenceCoalescer.flushedVersion()
+                : presenceLog.stableVersion();
+        return binary ? ProtocolCodec.keptAlive(presenceLog.getEpoch(), version)
+                : ProtocolCodec.line("KEPTA " + presenceLog.format(version));
+    }
+
+    /**
+     * Remove um cliente registrado e avisa aos clientes conectados que o tem como contato com "CONIN clientName".
+     */
+    static void unregisterClient(Client c) {
+        if (!registry.unregister(c)) {
+            return;
+        }
+        final ContactGraph graph = contactGraph;
+        final int id = graph.idOf(c.getName());
+        if (id >= 0) {
+            graph.setOffline(id, c);
+        }
+
+        // Avisa que o cliente esta desconectando a quem o tem como contato
+        final long sequence = presenceLog.begin(id);
+        try {
+            notifyWatchers(c, false);
+        } finally {
+            presenceLog.end(sequence);
+        }
+        if (cluster != null && !c.isRemote()) {
+            cluster.announceOffline(c);
+        }
+        if (c.isRemote()) {
+            Log.info("desconectou", "cliente", c.getName(), "no", c.getNode());
+        } else {
+            Log.info("desconectou", "cliente", c.getName());
+        }
+    }
+
+    /**
+     * Registra um cliente conectado em outro no do cluster, substituindo o registro anterior dele caso tenha mudado
+     * de ip ou porta. Um cliente conectado neste servidor com o mesmo nome tem prioridade.
+     */
+    static void remoteClientOnline(Client c) {
+        final Client existing = registry.get(c.getName());
+        if (existing != null) {
+            if (!existing.isRemote()) {
+                Log.warn("conectou em outro no, mas ja esta conectado aqui", "cliente", c.getName(), "no", c.getNode());
+                return;
+            }
+            if (existing.getNode() == c.getNode() && existing.getContactData().equals(c.getContactData())) {
+                return;
+            }
+            unregisterClient(existing);
+        }
+        if (registerClient(c)) {
+            Log.info("conectou-se", "cliente", c.getContactData(), "no", c.getNode());
+        }
+    }
+
+    /**
+     * Remove um cliente que estava conectado no no do cluster.
+     */
+    static void remoteClientOffline(String name, int node) {
+        final Client existing = registry.get(name);
+        if (existing != null && existing.getNode() == node) {
+            unregisterClient(existing);
+        }
+    }
+
+    /**
+     * Nomes dos clientes registrados como conectados no no do cluster.
+     */
+    static List<String> remoteClientNames(int node) {
+        final List<String> names = new ArrayList<>();
+        for (Client c : registry.online()) {
+            if (c.getNode() == node) {
+                names.add(c.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Numero de clientes registrados, neste servidor ou em outros nos do cluster.
+     */
+    static int onlineClientCount() {
+        return registry.size();
+    }
+
+    /**
+     * Clientes conectados neste servidor.
+     */
+    static List<Client> localClients() {
+        final List<Client> local = new ArrayList<>();
+        for (Client c : registry.online()) {
+            if (!c.isRemote()) {
+                local.add(c);
+            }
+        }
+        return local;
+    }
+
+    /**
+     * Avisa aos clientes conectados que tem o cliente como contato que ele conectou ("CONAT") ou desconectou
+     * ("CONIN"), diretamente ou atraves do presenceCoalescer. Custa O(numero de clientes que o tem como contato),
+     * independente de quantos clientes estao conectados.
+     */
+    private static void notifyWatchers(Client c, boolean online) {
+        final ContactGraph graph = contactGraph;
+        final int id = graph.idOf(c.getName());
+        if (id < 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final PresenceNotice notice = new PresenceNotice(c, online);
+        int recipients = 0;
+        for (int i = graph.watchersStart(id); i < graph.watchersEnd(id); i++) {
+            final Client recipient = graph.onlineClient(graph.watcherAt(i));
+            if (recipient != null) {
+                notice.sendTo(recipient);
+                recipients++;
+            }
+        }
+        ServerMetrics.fanout(recipients, System.nanoTime() - start);
+    }
+
+    /**
+     * Repassa a mensagem de um membro do grupo aos outros membros conectados neste servidor que aceitaram "GROUP". A
+     * mensagem eh codificada uma unica vez em cada modo do protocolo, e o mesmo buffer vai para a fila de todos os
+     * membros, sem uma String ou copia por destinatario. Mensagens para um grupo que nao existe, ou do qual o
+     * remetente nao eh membro, sao descartadas.
+     */
+    static void relayGroupMessage(Client sender, String group, String text) {
+        final ContactGraph graph = contactGraph;
+        final int groupId = group.startsWith(GROUP_PREFIX) ? graph.idOf(group) : -1;
+        final int senderId = graph.idOf(sender.getName());
+        boolean member = false;
+        if (groupId >= 0 && senderId >= 0) {
+            for (int i = graph.contactsStart(groupId); i < graph.contactsEnd(groupId) && !member; i++) {
+                member = graph.contactAt(i) == senderId;
+            }
+        }
+        if (!member) {
+            Log.warn("mensagem para grupo do qual nao eh membro", "cliente", sender.getName(), "grupo", group);
+            return;
+        }
+
+        ByteBuffer line = null;
+        ByteBuffer frame = null;
+        for (int i = graph.contactsStart(groupId); i < graph.contactsEnd(groupId); i++) {
+            final Client recipient = graph.onlineClient(graph.contactAt(i));
+            if (recipient == null || recipient == sender || recipient.isRemote()
+                    || !recipient.hasCapability(GROUP_CAPABILITY)) {
+                continue;
+            }
+            if (recipient.hasCapability(ProtocolCodec.BINARY_CAPABILITY)) {
+                if (frame == null) {
+                    frame = ProtocolCodec.groupMessage(group, sender.getName(), text);
+                }
+                recipient.getWriter().send(frame);
+            } else {
+                if (line == null) {
+                    line = ProtocolCodec.line("GRPMS " + group + " " + sender.getName() + " " + text);
+                }
+                recipient.getWriter().send(line);
+            }
+        }
+    }
+
+    /**
+     * Trata "GROUP #grupo texto" recebido no modo texto.
+     */
+    static void relayGroupLine(Client sender, String input) {
+        final String message = input.substring("GROUP ".length());
+        final int space = message.indexOf(' ');
+        if (space < 0) {
+            Log.warn("mensagem de grupo invalida", "cliente", sender.getName(), "linha", input);
+            return;
+        }
+        relayGroupMessage(sender, message.substring(0, space), message.substring(space + 1));
+    }
+
+    /**
+     * Chamado depois que o CLIST (ou RESYN) do cliente recem registrado esta na fila de saida: entrega as mensagens da
+     * caixa postal dele, se ele aceitou "MAIL".
+     */
+    static void loggedIn(Client c) {
+        if (mailbox == null || !c.hasCapability(Mailbox.MAIL_CAPABILITY)) {
+            return;
+        }
+        try {
+            mailbox.loggedIn(c);
+        } catch (IOException e) {
+            Log.error("erro ao ler a caixa postal", "cliente", c.getName(), "erro", e);
+        }
+    }
+
+    /**
+     * Guarda na caixa postal do destinatario a mensagem que o remetente nao conseguiu entregar por P2P, e a entrega
+     * logo se o destinatario estiver conectado a este servidor. Apenas mensagens para um contato do remetente sao
+     * aceitas.
+     */
+    static void storeMessage(Client sender, String recipient, String text) {
+        final ContactGraph graph = contactGraph;
+        final int senderId = graph.idOf(sender.getName());
+        final int recipientId = recipient.startsWith(GROUP_PREFIX) ? -1 : graph.idOf(recipient);
+        boolean contact = false;
+        if (mailbox != null && senderId >= 0 && recipientId >= 0) {
+            for (int i = graph.contactsStart(senderId); i < graph.contactsEnd(senderId) && !contact; i++) {
+                contact = graph.contactAt(i) == recipientId;
+            }
+        }
+        if (!contact) {
+            Log.warn("mensagem offline para quem nao eh contato", "cliente", sender.getName(), "destinatario",
+                    recipient);
+            return;
+        }
+        try {
+            mailbox.append(recipient, sender.getName(), text);
+            final Client online = graph.onlineClient(recipientId);
+            if (online != null && !online.isRemote() && online.hasCapability(Mailbox.MAIL_CAPABILITY)) {
+                mailbox.deliver(online);
+            }
+        } catch (IOException e) {
+            Log.error("erro ao guardar mensagem offline", "destinatario", recipient, "erro", e);
+        }
+    }
+
+    /**
+     * Trata "OFFMS destinatario texto" recebido no modo texto.
+     */
+    static void storeMessageLine(Client sender, String input) {
+        final String message = input.substring("OFFMS ".length());
+        final int space = message.indexOf(' ');
+        if (space < 0) {
+            Log.warn("mensagem offline invalida", "cliente", sender.getName(), "linha", input);
+            return;
+        }
+        storeMessage(sender, message.substring(0, space), message.substring(space + 1));
+    }
+
+    /**
+     * O cliente confirmou que recebeu as mensagens da caixa postal ate a sequencia.
+     */
+    static void acknowledgeMail(Client c, long sequence) {
+        if (mailbox == null) {
+            return;
+        }
+        try {
+            mailbox.acknowledge(c, sequence);
+        } catch (IOException e) {
+            Log.error("erro ao confirmar mensagens", "cliente", c.getName(), "erro", e);
+        }
+    }
+
+    /**
+     * Trata "MAILA sequencia" recebido no modo texto.
      */
-    private static final List<Client> clients = new ArrayList<>();
+    static void acknowledgeMailLine(Client c, String input) {
+        try {
+            acknowledgeMail(c, Long.parseLong(input.substring("MAILA ".length()).trim()));
+        } catch (NumberFormatException e) {
+            Log.warn("confirmacao invalida", "cliente", c.getName(), "linha", input);
+        }
+    }
 
     /**
-     * Conjunto de buffers de saida para os clientes conectados. Usa os mesmos indices que a lista clients.
+     * Recarrega o arquivo de clientes depois que ele mudou, sem derrubar as sessoes, aplicando ao grafo atual as
+     * diferencas para o arquivo (e gravando-as no contactStore, se houver). Clientes novos passam a poder se conectar.
+     * Clientes removidos do arquivo continuam conectados, mas sem contatos, e nao conseguem se conectar de novo.
      */
-    private static List<PrintWriter> writers = new ArrayList<>();
+    static void reloadContactGraph() {
+        final ContactGraph loaded;
+        try {
+            loaded = FilesInterpreter.loadContactGraph(config.getClientsFile());
+        } catch (IOException e) {
+            Log.error("nao foi possivel recarregar o arquivo de clientes", "arquivo", config.getClientsFile(),
+                    "erro", e);
+            return;
+        }
+        try {
+            changeContacts(contactGraph.diff(loaded));
+        } catch (IOException e) {
+            Log.error("nao foi possivel gravar as mudancas do arquivo de clientes", "arquivo",
+                    config.getClientsFile(), "erro", e);
+            return;
+        }
+        Log.info("arquivo de clientes recarregado", "arquivo", config.getClientsFile(), "clientes",
+                contactGraph.size());
+    }
+
+    /**
+     * Aplica mudancas ao grafo de contatos, gravando-as antes no contactStore, se houver. Cada cliente conectado cuja
+     * lista de contatos mudou recebe CONAT dos contatos novos que estao conectados e CONIN dos que foram removidos.
+     * Sem mudancas, apenas registra no contactStore que ele foi conferido com o arquivo de clientes, para que ele nao
+     * seja lido de novo na proxima inicializacao.
+     */
+    static void changeContacts(List<ContactGraph.Change> changes) throws IOException {
+        if (changes.isEmpty() && contactStore == null) {
+            return;
+        }
+        contactGraphLock.lock();
+        //Sequencia da invalidacao, 0 se nao houve
+        long invalidated = 0;
+        try {
+            if (!changes.isEmpty()) {
+                //Um cliente que reconectar com uma versao anterior as mudancas recebe o CLIST completo
+                invalidated = presenceLog.invalidate();
+            }
+            final ContactGraph previous = contactGraph;
+            final ContactGraph updated = contactStore != null ? contactStore.apply(changes)
+                    : previous.withChanges(changes);
+
+            //Quem esta conectado eh marcado no grafo novo antes e depois da troca: quem conectar durante a troca ja
+            //estara no registry na segunda vez, e quem desconectar antes dela eh desmarcado
+            final List<Client> marked = markOnline(updated);
+            contactGraph = updated;
+            markOnline(updated);
+            for (Client client : marked) {
+                if (registry.get(client.getName()) != client) {
+                    updated.setOffline(updated.idOf(client.getName()), client);
+                }
+            }
+
+            final Set<String> changedClients = new HashSet<>();
+            for (ContactGraph.Change change : changes) {
+                changedClients.add(change.getClient());
+            }
+            for (String name : changedClients) {
+                final Client client = registry.get(name);
+                if (client != null) {
+                    notifyContactChanges(client, contactNames(previous, name), contactNames(updated, name));
+                }
+            }
+        } finally {
+            if (invalidated > 0) {
+                presenceLog.end(invalidated);
+            }
+            contactGraphLock.unlock();
+        }
+    }
+
+    private static List<Client> markOnline(ContactGraph graph) {
+        final List<Client> marked = new ArrayList<>();
+        for (Client client : registry.online()) {
+            final int id = graph.idOf(client.getName());
+            if (id >= 0 && registry.get(client.getName()) == client) {
+                graph.setOnline(id, client);
+                marked.add(client);
+            }
+        }
+        return marked;
+    }
+
+    private static void notifyContactChanges(Client client, Set<String> before, Set<String> after) {
+        for (String contact : after) {
+            final Client online = registry.get(contact);
+            if (online != null && !before.contains(contact)) {
+                new PresenceNotice(online, true).sendTo(client);
+            }
+        }
+        for (String contact : before) {
+            final Client online = registry.get(contact);
+            if (online != null && !after.contains(contact)) {
+                new PresenceNotice(online, false).sendTo(client);
+            }
+        }
+    }
 
     /**
-     * Mapa com uma lista de nomes de contatos de cada cliente. Eh inicializada a partir do arquivo clients.txt ao
-     * subir o servidor. Tem o formato: "cliente1=[contato1,contato2]"
+     * Nomes dos contatos do cliente no grafo, ou vazio se ele nao esta no grafo.
      */
-    private static HashMap<String, List<String>> clientContacts;
+    private static Set<String> contactNames(ContactGraph graph, String client) {
+        final int id = graph.idOf(client);
+        return id >= 0 ? graph.contactNames(id) : Collections.<String>emptySet();
+    }
 
     /**
-     * Busca um cliente conectado pelo nome e retorna o indice se existente, ou -1 caso contrario
+     * Aviso de que um cliente conectou ("CONAT") ou desconectou ("CONIN"), enviado diretamente ou atraves do
+     * presenceCoalescer. Cada modo do protocolo eh codificado uma unica vez, no primeiro destinatario que o usa.
      */
-    static int clientNameIndex(String name) {
-        for (int i = 0; i < clients.size(); i++) {
-            Client c = clients.get(i);
-            if (c.getName().equals(name)) {
-                return i;
+    private static class PresenceNotice {
+
+        private final Client changed;
+
+        private final boolean online;
+
+        private String message;
+
+        private ByteBuffer frame;
+
+        PresenceNotice(Client changed, boolean online) {
+            this.changed = changed;
+            this.online = online;
+        }
+
+        void sendTo(Client recipient) {
+            if (recipient.isRemote()) {
+                //O no do destinatario avisa ele
+                return;
+            }
+            if (presenceCoalescer != null) {
+                presenceCoalescer.add(recipient, changed, online);
+            } else if (recipient.hasCapability(ProtocolCodec.BINARY_CAPABILITY)) {
+                if (frame == null) {
+                    frame = online ? ProtocolCodec.contactActive(changed)
+                            : ProtocolCodec.contactInactive(changed.getName());
+                }
+                recipient.getWriter().sendPresence(frame);
+            } else {
+                if (message == null) {
+                    message = online ? "CONAT " + changed.getContactData() : "CONIN " + changed.getName();
+                }
+                recipient.getWriter().printlnPresence(message);
             }
         }
-        return -1;
     }
 
     /**
-     * Classe que eh instanciada para cada conexao com cada cliente e gerencia a comunicacao com ele.
+     * Cria a fila de saida de uma sessao, com a capacidade e a politica de transbordo configuradas.
      */
-    private static class ClientHandler extends Thread {
+    static OutboundQueue newOutboundQueue(Runnable onReady, Runnable onDisconnect) {
+        return new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(), onReady, onDisconnect);
+    }
 
-        private String clientName;
-        private String clientIp;
-        private String clientPort;
-        private List<String> contacts;
+    /**
+     * Classe que eh instanciada para cada conexao com cada cliente e gerencia a comunicacao com ele. Eh executada em
+     * uma thread propria, de plataforma ou virtual, de acordo com o modo do servidor. As mensagens para o cliente
+     * passam por uma OutboundQueue, esvaziada por uma segunda thread do mesmo tipo.
+     */
+    private static class ClientHandler implements Runnable {
+
+        private Client client;
+
+        private KeepAliveWheel.Entry keepAlive;
 
         private Socket socket;
 
         //Fluxo de entrada de dados. Recebe do cliente
-        private BufferedReader in;
+        private InputStream in;
+
+        //Bytes recebidos e ainda nao processados, de linhas ou frames incompletos
+        private final ByteBuffer inBuffer = ByteBuffer.allocate(ProtocolCodec.MAX_MESSAGE_LENGTH);
+
+        //Posicao no inBuffer do ultimo frame lido por readFrame()
+        private int frameStart;
 
-        //Fluxo de saida de dados. Envia para o cliente
-        private PrintWriter out;
+        //Fila de saida de dados. Envia para o cliente
+        private OutboundQueue out;
 
-        public ClientHandler(Socket socket) {
+        //Executa o escritor que esvazia a fila de saida
+        private final Executor writerExecutor;
+
+        public ClientHandler(Socket socket, Executor writerExecutor) {
             this.socket = socket;
+            this.writerExecutor = writerExecutor;
         }
 
         /**
@@ -113,125 +837,175 @@ public class Main {
          * gets inputs and broadcasts them.
          */
         public void run() {
+            final long handshakeStart = System.nanoTime();
             try {
 
-                // Create character streams for the socket.
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                // Create byte streams for the socket.
+                in = socket.getInputStream();
+                inBuffer.limit(0);
+                out = newOutboundQueue(null, () -> {
+                    Log.warn("nao deu conta das mensagens e foi desconectado", "endereco",
+                            socket.getRemoteSocketAddress());
+                    closeSocket();
+                });
+                final OutputStream output = socket.getOutputStream();
+                writerExecutor.execute(() -> {
+                    try {
+                        out.drainTo(output);
+                    } catch (IOException | InterruptedException e) {
+                        closeSocket();
+                    }
+                });
 
                 // Request a clientName from this client. Keep requesting until
-                // a clientName is submitted that is not already used. Note that
-                // checking for the existence of a clientName and adding the clientName
-                // must be done while locking the set of names.
+                // a clientName is submitted that is not already used.
                 while (true) {
-                    out.println("WHORU");
-                    final String connectionData = in.readLine();
-                    clientName = connectionData.split("/")[0];
-                    clientIp = connectionData.split("/")[1].split(":")[0];
-                    clientPort = connectionData.split("/")[1].split(":")[1];
-                    if (clientName == null || clientName.equals("null")) {
+                    out.println(whoruMessage());
+                    final String connectionData = readLine();
+                    if (connectionData == null || connectionData.startsWith("null")) {
                         return;
                     }
-                    synchronized (clients) {
-                        if (clientNameIndex(clientName) != -1 || !clientContacts.containsKey(clientName)) {
-                            out.println("Denied. Not a valid client.");
-                        } else {
-                            Client c = new Client();
-                            c.setName(clientName);
-                            c.setIp(clientIp);
-                            c.setPort(clientPort);
-                            clients.add(c);
-                            break;
+                    final Client c = parseConnectionData(connectionData);
+                    if (c != null) {
+                        c.setWriter(out);
+                        final String moved = movedTo(c);
+                        if (moved != null) {
+                            //O cliente fecha a conexao e se conecta ao outro no
+                            out.println("MOVED " + moved);
+                            continue;
                         }
                     }
-                }
-                //Cliente conectado com sucesso.
-
-                //Pega os contatos do cliente que estavam no arquivo clients.txt
-                contacts = clientContacts.get(clientName);
-
-                // Avisa aos contatos conectados do cliente que ele esta conectando.
-                final StringBuilder clientNameIp = new StringBuilder();
-                clientNameIp.append(clientName).append("/")
-                        .append(clientIp).append(":")
-                        .append(clientPort);
-                System.out.println(clientNameIp + " conectou-se atraves de " + socket.getRemoteSocketAddress());
-                for (int i = 0; i < writers.size(); i++) {
-                    if (contacts.contains(clients.get(i).getName())) {
-                        final PrintWriter writer = writers.get(i);
-                        writer.println("CONAT " + clientNameIp.toString());
+                    if (c != null && registerClient(c)) {
+                        client = c;
+                        out.setResyncMessage(() -> contactListMessage(c));
+                        break;
                     }
+                    out.println("Denied. Not a valid client.");
                 }
-                writers.add(out);
+                //Cliente conectado com sucesso.
+                Log.info("conectou-se", "cliente", client.getContactData(), "endereco",
+                        socket.getRemoteSocketAddress());
 
-                //Envia ao cliente a lista de seus contatos que estao conectados
-                final StringBuilder onlineContactList = new StringBuilder();
-                for (int i = 0; i < contacts.size(); i++) {
-                    String contact = contacts.get(i);
-                    int clientNameIndex;
-                    synchronized (clients) {
-                        clientNameIndex = clientNameIndex(contact);
-                    }
-                    if (clientNameIndex != -1) {
-                        onlineContactList.append(clients.get(clientNameIndex).getName()).append("/")
-                                .append(clients.get(clientNameIndex).getIp())
-                                .append(":").append(clients.get(clientNameIndex).getPort());
-                        if (i < contacts.size() - 1) {
-                            onlineContactList.append(";");
-                        }
-                    }
-                }
-                out.println("CLIST " + onlineContactList.toString());
+                //Envia ao cliente a lista de seus contatos que estao conectados, ou o que mudou desde a versao dele
+                out.send(loginContactsMessage(client));
+                ServerMetrics.handshakeCompleted(handshakeStart);
+                loggedIn(client);
 
                 // Depois do protocolo inicial, aceita mensagens de Keep Alive (KEEPA) dos clientes, e responde KEPTA.
-                // Caso um cliente fique sem mandar MISSED_KEEP_ALIVE_LIMIT por KEEP_ALIVE_INTERVAL, desconecta.
-                socket.setSoTimeout(KEEP_ALIVE_INTERVAL);
-                int missingKeepAlive = 0;
-                while (missingKeepAlive <= MISSED_KEEP_ALIVE_LIMIT) {
-                    try {
-                        String input = in.readLine();
-                        if (input == null) {
-                            return;
+                // Caso um cliente fique sem mandar MISSED_KEEP_ALIVE_LIMIT por KEEP_ALIVE_INTERVAL, o keepAliveWheel
+                // fecha o socket, o que interrompe a leitura abaixo.
+                keepAlive = keepAliveWheel.register(() -> {
+                    Log.warn("nao enviou KEEPA", "cliente", client.getName());
+                    ServerMetrics.keepAliveTimedOut();
+                    closeSocket();
+                });
+                if (client.hasCapability(ProtocolCodec.BINARY_CAPABILITY)) {
+                    int opcode;
+                    while ((opcode = readFrame()) != ProtocolCodec.INCOMPLETE) {
+                        // Keep Alive
+                        if (opcode == ProtocolCodec.KEEPA) {
+                            ServerMetrics.keepAliveReceived(keepAlive.touch());
+                            out.send(keptAliveMessage(client));
+                        } else if (opcode == ProtocolCodec.GROUP) {
+                            relayGroupMessage(client, ProtocolCodec.readText(inBuffer, frameStart, 0),
+                                    ProtocolCodec.readText(inBuffer, frameStart, 1));
+                        } else if (opcode == ProtocolCodec.OFFMS) {
+                            storeMessage(client, ProtocolCodec.readText(inBuffer, frameStart, 0),
+                                    ProtocolCodec.readText(inBuffer, frameStart, 1));
+                        } else if (opcode == ProtocolCodec.MAILA) {
+                            acknowledgeMail(client, ProtocolCodec.readLong(inBuffer, frameStart));
                         }
+                    }
+                } else {
+                    String input;
+                    while ((input = readLine()) != null) {
                         // Keep Alive
                         if (input.startsWith("KEEPA")) {
-                            missingKeepAlive = 0;
-                            out.println("KEPTA");
-                        }
-                    } catch (IOException timeout) {
-                        missingKeepAlive++;
-                        //Para evitar warnings desnecessarios
-                        if (missingKeepAlive > 1) {
-                            System.out.println(clientName + " nao enviou KEEPA " + missingKeepAlive);
+                            ServerMetrics.keepAliveReceived(keepAlive.touch());
+                            out.send(keptAliveMessage(client));
+                        } else if (input.startsWith("GROUP ")) {
+                            relayGroupLine(client, input);
+                        } else if (input.startsWith("OFFMS ")) {
+                            storeMessageLine(client, input);
+                        } else if (input.startsWith("MAILA ")) {
+                            acknowledgeMailLine(client, input);
                         }
                     }
                 }
             } catch (IOException e) {
-                System.out.println(e);
+                if (!socket.isClosed()) {
+                    Log.warn("erro na conexao", "endereco", socket.getRemoteSocketAddress(), "erro", e);
+                }
             } finally {
-                // Cliente esta saindo. Precisa remover ele das listas
-                if (clientName != null && !clientName.equals("null")) {
-                    int clientIndex = clientNameIndex(clientName);
-                    clients.remove(clientIndex);
-                    System.out.println(clientName + " desconectou.");
+                // Cliente esta saindo. Precisa remover ele das listas e avisar seus contatos
+                if (keepAlive != null) {
+                    keepAlive.cancel();
+                }
+                if (client != null) {
+                    unregisterClient(client);
                 }
                 if (out != null) {
-                    writers.remove(out);
-                } else {
-                    writers.removeAll(Collections.singleton(null));
+                    out.close();
                 }
-                // Avisa que o cliente esta desconectando aos seus contatos
-                for (int i = 0; i < clients.size(); i++) {
-                    if (contacts.contains(clients.get(i).getName())) {
-                        PrintWriter writer = writers.get(i);
-                        writer.println("CONIN " + clientName);
-                    }
+                closeSocket();
+                ServerMetrics.connectionClosed();
+            }
+        }
+
+        /**
+         * Le a proxima linha de texto, ou retorna null se o cliente fechou a conexao.
+         */
+        private String readLine() throws IOException {
+            String line;
+            while ((line = ProtocolCodec.nextLine(inBuffer)) == null) {
+                if (!fill()) {
+                    return null;
+                }
+            }
+            return line;
+        }
+
+        /**
+         * Le o proximo frame do modo binario e retorna seu opcode, ou INCOMPLETE se o cliente fechou a conexao.
+         */
+        private int readFrame() throws IOException {
+            while (true) {
+                frameStart = inBuffer.position();
+                final int opcode = ProtocolCodec.nextFrame(inBuffer);
+                if (opcode != ProtocolCodec.INCOMPLETE) {
+                    return opcode;
                 }
-                try {
-                    socket.close();
-                } catch (IOException ignored) {
+                if (!fill()) {
+                    return ProtocolCodec.INCOMPLETE;
                 }
             }
         }
+
+        /**
+         * Bloqueia ate receber mais bytes no inBuffer. Retorna false se o cliente fechou a conexao.
+         */
+        private boolean fill() throws IOException {
+            inBuffer.compact();
+            if (!inBuffer.hasRemaining()) {
+                throw new IOException(socket.getRemoteSocketAddress() + " mandou uma mensagem maior que "
+                        + ProtocolCodec.MAX_MESSAGE_LENGTH + " bytes");
+            }
+            //Le direto do InputStream do socket: os adaptadores de Channels usam synchronized, o que prenderia a
+            //virtual thread a sua carrier thread durante toda a leitura
+            final int read = in.read(inBuffer.array(), inBuffer.arrayOffset() + inBuffer.position(),
+                    inBuffer.remaining());
+            if (read > 0) {
+                inBuffer.position(inBuffer.position() + read);
+            }
+            inBuffer.flip();
+            return read >= 0;
+        }
+
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
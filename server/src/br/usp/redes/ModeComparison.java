@@ -0,0 +1,293 @@
+package br.usp.redes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Compara o servidor executando em modos diferentes (por padrao "thread" e "virtual"). Para cada modo, sobe o
+ * servidor em uma JVM separada, abre N sessoes que fazem o WHORU e ficam mandando KEEPA, e reporta o numero de
+ * threads de plataforma, o heap usado e a latencia de login (da conexao ate receber o CLIST).
+ * <p>
+ * As sessoes simuladas rodam na mesma JVM do servidor, todas em uma unica thread com Selector, entao elas somam o
+ * mesmo custo de heap em todos os modos.
+ * <p>
+ * Uso: java -cp server.jar br.usp.redes.ModeComparison [--sessions=N] [--modes=thread,virtual] [--hold=segundos]
+ */
+public class ModeComparison {
+
+    private static final int CONTACTS_PER_CLIENT = 5;
+
+    //Logins em andamento ao mesmo tempo, para nao estourar o backlog padrao (50) do socket do servidor
+    private static final int MAX_PENDING_LOGINS = 50;
+
+    //Tempo maximo para todas as sessoes fazerem login
+    private static final long LOGIN_TIMEOUT = 120_000;
+
+    private int sessions = 2000;
+
+    private String[] modes = {"thread", "virtual"};
+
+    private int holdSeconds = 5;
+
+    private int port = 9101;
+
+    private String runMode;
+
+    public static void main(String[] args) throws Exception {
+        final ModeComparison comparison = new ModeComparison();
+        for (String arg : args) {
+            final String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--sessions=")) {
+                comparison.sessions = Integer.parseInt(value);
+            } else if (arg.startsWith("--modes=")) {
+                comparison.modes = value.split(",");
+            } else if (arg.startsWith("--hold=")) {
+                comparison.holdSeconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--port=")) {
+                comparison.port = Integer.parseInt(value);
+            } else if (arg.startsWith("--run-mode=")) {
+                comparison.runMode = value;
+            } else {
+                throw new IllegalArgumentException("Opcao invalida: " + arg);
+            }
+        }
+
+        if (comparison.runMode != null) {
+            comparison.runSingleMode();
+        } else {
+            comparison.runAllModes();
+        }
+    }
+
+    /**
+     * Executa cada modo em uma JVM nova, para que as medidas de um nao interfiram nas do outro.
+     */
+    private void runAllModes() throws IOException, InterruptedException {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int i = 0; i < modes.length; i++) {
+            final Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ModeComparison.class.getName(), "--run-mode=" + modes[i], "--sessions=" + sessions,
+                    "--hold=" + holdSeconds, "--port=" + (port + i))
+                    .inheritIO()
+                    .start();
+            if (process.waitFor() != 0) {
+                System.out.println("modo=" + modes[i] + " falhou");
+            }
+        }
+    }
+
+    /**
+     * Sobe o servidor nesta JVM no modo runMode, conecta as sessoes e imprime uma linha de relatorio.
+     */
+    private void runSingleMode() throws Exception {
+        final PrintStream report = System.out;
+        //Silencia as mensagens de conexao do servidor
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        final File clientsFile = File.createTempFile("clients", ".txt");
+        clientsFile.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(clientsFile)) {
+            for (int i = 0; i < sessions; i++) {
+                final StringBuilder line = new StringBuilder("u" + i);
+                for (int c = 1; c <= CONTACTS_PER_CLIENT; c++) {
+                    line.append(";u").append((i + c) % sessions);
+                }
+                writer.println(line);
+            }
+        }
+
+        final Thread server = new Thread(() -> {
+            try {
+                Main.main(new String[]{"--mode=" + runMode, "--port=" + port,
+                        "--clients-file=" + clientsFile.getAbsolutePath(), "--log-level=warn"});
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer();
+
+        System.gc();
+        final long baselineHeap = usedHeap();
+
+        final long[] loginLatencies = new SessionSimulator().run();
+
+        System.gc();
+        final long heap = usedHeap() - baselineHeap;
+        Arrays.sort(loginLatencies);
+        report.printf("modo=%s sessoes=%d threads=%d picoThreads=%d heapMB=%.1f loginMs p50=%.2f p99=%.2f max=%.2f%n",
+                runMode, sessions,
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                ManagementFactory.getThreadMXBean().getPeakThreadCount(),
+                heap / (1024.0 * 1024.0),
+                percentile(loginLatencies, 0.50), percentile(loginLatencies, 0.99),
+                percentile(loginLatencies, 1.0));
+        System.exit(0);
+    }
+
+    private void waitForServer() throws InterruptedException {
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static double percentile(long[] sortedNanos, double p) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(p * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    /**
+     * Abre as sessoes simuladas em uma unica thread com Selector: responde ao WHORU, mede o tempo ate o CLIST e manda
+     * KEEPA a cada KEEP_ALIVE_INTERVAL enquanto as sessoes sao mantidas.
+     */
+    private class SessionSimulator {
+
+        private final Selector selector;
+
+        private final List<SimulatedSession> loggedIn = new ArrayList<>();
+
+        private final long[] latencies = new long[sessions];
+
+        private int started;
+
+        private int pending;
+
+        SessionSimulator() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        long[] run() throws IOException {
+            final long giveUpAt = System.currentTimeMillis() + LOGIN_TIMEOUT;
+            long holdUntil = Long.MAX_VALUE;
+            long nextKeepAlive = System.currentTimeMillis() + Main.KEEP_ALIVE_INTERVAL;
+            while (System.currentTimeMillis() < holdUntil) {
+                while (pending < MAX_PENDING_LOGINS && started < sessions) {
+                    connect(started++);
+                }
+
+                selector.select(100);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final SimulatedSession session = (SimulatedSession) key.attachment();
+                    if (key.isConnectable()) {
+                        session.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                    } else if (key.isReadable()) {
+                        session.read();
+                    }
+                }
+
+                final long now = System.currentTimeMillis();
+                if (now >= nextKeepAlive) {
+                    for (SimulatedSession session : loggedIn) {
+                        session.write("KEEPA");
+                    }
+                    nextKeepAlive = now + Main.KEEP_ALIVE_INTERVAL;
+                }
+                if (holdUntil == Long.MAX_VALUE && loggedIn.size() == sessions) {
+                    holdUntil = now + holdSeconds * 1000L;
+                } else if (holdUntil == Long.MAX_VALUE && now > giveUpAt) {
+                    throw new IOException("Apenas " + loggedIn.size() + " sessoes conseguiram fazer login");
+                }
+            }
+            return latencies;
+        }
+
+        private void connect(int id) throws IOException {
+            final SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            final SimulatedSession session = new SimulatedSession(id, channel);
+            channel.connect(new InetSocketAddress("127.0.0.1", port));
+            channel.register(selector, SelectionKey.OP_CONNECT, session);
+            pending++;
+        }
+
+        private class SimulatedSession {
+
+            private final int id;
+
+            private final SocketChannel channel;
+
+            private final long startNanos = System.nanoTime();
+
+            private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+            private boolean loggedIn;
+
+            SimulatedSession(int id, SocketChannel channel) {
+                this.id = id;
+                this.channel = channel;
+            }
+
+            void read() throws IOException {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Servidor fechou a sessao u" + id);
+                }
+                buffer.flip();
+                int lineStart = 0;
+                for (int i = buffer.position(); i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        handleLine(lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                buffer.position(lineStart);
+                buffer.compact();
+            }
+
+            private void handleLine(int start, int end) throws IOException {
+                if (end - start < 5) {
+                    return;
+                }
+                final byte first = buffer.get(start);
+                final byte second = buffer.get(start + 1);
+                if (first == 'W' && second == 'H') {
+                    write("u" + id + "/127.0.0.1:" + (10000 + id % 50000));
+                } else if (first == 'C' && second == 'L' && !loggedIn) {
+                    loggedIn = true;
+                    latencies[id] = System.nanoTime() - startNanos;
+                    SessionSimulator.this.loggedIn.add(this);
+                    pending--;
+                }
+            }
+
+            void write(String line) throws IOException {
+                final ByteBuffer out = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+        }
+    }
+}
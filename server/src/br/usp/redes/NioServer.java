@@ -0,0 +1,352 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Servidor nao bloqueante, alternativo as threads ClientHandler. Um ServerSocketChannel aceita as conexoes e as
+ * distribui entre um conjunto pequeno de event loops, cada um com seu proprio Selector, de forma que o numero de
+ * threads nao cresce com o numero de clientes conectados.
+ * <p>
+ * Fala exatamente o mesmo protocolo descrito em Main (WHORU/CLIST/CONAT/CONIN/KEEPA/KEPTA), em linhas de texto
+ * terminadas por "\n" ou em frames binarios, entao os clientes existentes funcionam sem alteracao. O registro dos
+ * clientes e os avisos aos contatos sao feitos pelos mesmos metodos de Main usados pelo ClientHandler.
+ */
+class NioServer {
+
+    private final int port;
+
+    private final EventLoop[] loops;
+
+    NioServer(int port, int eventLoops) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Inicia os event loops e fica aceitando conexoes, distribuindo-as entre os loops em round-robin.
+     */
+    void run() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            System.out.println("Servidor (nio, " + loops.length
+                    + " event loops) executando e esperando por clientes...");
+            int next = 0;
+            while (true) {
+                final SocketChannel channel = listener.accept();
+                ServerMetrics.connectionAccepted();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * Thread que atende um conjunto de conexoes atraves de um Selector. Todo o estado das sessoes eh manipulado
+     * apenas por esta thread; outras threads pedem trabalho atraves de execute().
+     */
+    private static class EventLoop extends Thread {
+
+        private final Selector selector;
+
+        //Tarefas enviadas por outras threads para executar no loop
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int id) throws IOException {
+            super("nio-event-loop-" + id);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    final Session session = new Session(this, channel);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    session.out.println(Main.whoruMessage());
+                } catch (IOException e) {
+                    Log.warn("erro ao registrar a conexao", "erro", e);
+                    ServerMetrics.connectionClosed();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        final Session session = (Session) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                session.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flushPending();
+                            }
+                        } catch (IOException e) {
+                            session.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error("erro no event loop", "erro", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Estado de uma conexao atendida por um EventLoop.
+     */
+    private static class Session {
+
+        //Mensagens escritas no canal de uma vez
+        private static final int WRITE_BATCH = 64;
+
+        private final EventLoop loop;
+
+        private final SocketChannel channel;
+
+        private SelectionKey key;
+
+        //Bytes recebidos e ainda nao processados, de linhas ou frames incompletos
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(ProtocolCodec.MAX_MESSAGE_LENGTH);
+
+        //Fila de saida de dados. Recebe mensagens de qualquer thread e eh esvaziada pelo loop
+        private final OutboundQueue out;
+
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        //Mensagens retiradas da fila e ainda nao escritas por inteiro no canal, de batchStart ate batchEnd
+        private final ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH];
+
+        private int batchStart;
+
+        private int batchEnd;
+
+        //Cliente registrado nesta sessao, ou null enquanto nao respondeu ao WHORU com um nome valido
+        private Client client;
+
+        //Prazo de keep alive da sessao, acompanhado pelo keepAliveWheel de Main
+        private KeepAliveWheel.Entry keepAlive;
+
+        private volatile boolean closed;
+
+        //Instante do primeiro WHORU, para medir o login
+        private final long handshakeStart = System.nanoTime();
+
+        Session(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.out = Main.newOutboundQueue(this::scheduleFlush, () -> loop.execute(() -> {
+                Log.warn("nao deu conta das mensagens e foi desconectado", "endereco",
+                        channel.socket().getRemoteSocketAddress());
+                close();
+            }));
+        }
+
+        /**
+         * Le o que estiver disponivel no canal e processa cada linha, ou frame no modo binario, completo recebido.
+         * Fecha a conexao se uma mensagem nao couber no readBuffer.
+         */
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            while (!closed) {
+                if (client != null && client.hasCapability(ProtocolCodec.BINARY_CAPABILITY)) {
+                    final int frameStart = readBuffer.position();
+                    final int opcode = ProtocolCodec.nextFrame(readBuffer);
+                    if (opcode == ProtocolCodec.INCOMPLETE) {
+                        break;
+                    }
+                    handleFrame(opcode, frameStart);
+                } else {
+                    final String received = ProtocolCodec.nextLine(readBuffer);
+                    if (received == null) {
+                        break;
+                    }
+                    handleLine(received);
+                }
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                close();
+            }
+        }
+
+        /**
+         * Processa uma linha do protocolo: a resposta ao WHORU antes do registro, e KEEPA depois dele.
+         */
+        private void handleLine(String received) {
+            if (client == null) {
+                if (received.startsWith("null")) {
+                    close();
+                    return;
+                }
+                final Client c = Main.parseConnectionData(received);
+                if (c != null) {
+                    c.setWriter(out);
+                    final String moved = Main.movedTo(c);
+                    if (moved != null) {
+                        //O cliente fecha a conexao e se conecta ao outro no
+                        out.println("MOVED " + moved);
+                        return;
+                    }
+                }
+                if (c != null && Main.registerClient(c)) {
+                    //Cliente conectado com sucesso.
+                    client = c;
+                    out.setResyncMessage(() -> Main.contactListMessage(c));
+                    keepAlive = Main.keepAliveWheel.register(() -> loop.execute(() -> {
+                        Log.warn("nao enviou KEEPA", "cliente", c.getName());
+                        ServerMetrics.keepAliveTimedOut();
+                        close();
+                    }));
+                    Log.info("conectou-se", "cliente", c.getContactData(), "endereco",
+                            channel.socket().getRemoteSocketAddress());
+                    out.send(Main.loginContactsMessage(c));
+                    ServerMetrics.handshakeCompleted(handshakeStart);
+                    Main.loggedIn(c);
+                } else {
+                    out.println("Denied. Not a valid client.");
+                    out.println(Main.whoruMessage());
+                }
+            } else if (received.startsWith("KEEPA")) {
+                ServerMetrics.keepAliveReceived(keepAlive.touch());
+                out.send(Main.keptAliveMessage(client));
+            } else if (received.startsWith("GROUP ")) {
+                Main.relayGroupLine(client, received);
+            } else if (received.startsWith("OFFMS ")) {
+                Main.storeMessageLine(client, received);
+            } else if (received.startsWith("MAILA ")) {
+                Main.acknowledgeMailLine(client, received);
+            }
+        }
+
+        /**
+         * Processa um frame do modo binario, recebido depois do registro, que comeca em frameStart no readBuffer.
+         */
+        private void handleFrame(int opcode, int frameStart) throws IOException {
+            if (opcode == ProtocolCodec.KEEPA) {
+                ServerMetrics.keepAliveReceived(keepAlive.touch());
+                out.send(Main.keptAliveMessage(client));
+            } else if (opcode == ProtocolCodec.GROUP) {
+                Main.relayGroupMessage(client, ProtocolCodec.readText(readBuffer, frameStart, 0),
+                        ProtocolCodec.readText(readBuffer, frameStart, 1));
+            } else if (opcode == ProtocolCodec.OFFMS) {
+                Main.storeMessage(client, ProtocolCodec.readText(readBuffer, frameStart, 0),
+                        ProtocolCodec.readText(readBuffer, frameStart, 1));
+            } else if (opcode == ProtocolCodec.MAILA) {
+                Main.acknowledgeMail(client, ProtocolCodec.readLong(readBuffer, frameStart));
+            }
+        }
+
+        /**
+         * Pede ao loop que esvazie a fila de saida. Chamado pela fila, de qualquer thread, a cada mensagem nova.
+         */
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    try {
+                        flushPending();
+                    } catch (IOException e) {
+                        close();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Escreve no canal o que estiver na fila de saida, ate WRITE_BATCH mensagens por vez em uma unica escrita
+         * (gathering write). Se o canal nao aceitar tudo, passa a esperar OP_WRITE e deixa o restante na fila, onde a
+         * politica de transbordo pode agir. Executado apenas pela thread do loop.
+         */
+        void flushPending() throws IOException {
+            flushScheduled.set(false);
+            if (closed) {
+                return;
+            }
+            while (true) {
+                if (batchStart == batchEnd) {
+                    batchStart = 0;
+                    batchEnd = out.poll(batch);
+                    if (batchEnd == 0) {
+                        break;
+                    }
+                }
+                channel.write(batch, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Fecha a conexao e, caso o cliente tenha se registrado, remove ele e avisa seus contatos.
+         * Executado apenas pela thread do loop.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ServerMetrics.connectionClosed();
+            out.close();
+            if (keepAlive != null) {
+                keepAlive.cancel();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (client != null) {
+                Main.unregisterClient(client);
+            }
+        }
+    }
+}
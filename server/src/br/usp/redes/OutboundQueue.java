@@ -0,0 +1,346 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Fila limitada de mensagens de saida de uma sessao. Quem gera uma mensagem para o cliente (inclusive as threads de
+ * outros clientes, ao avisar presenca) apenas a coloca na fila, sem nunca bloquear na escrita do socket. A fila eh
+ * esvaziada pelo escritor da propria sessao: uma thread com drainTo() nos modos thread/virtual, ou o event loop da
+ * sessao no modo nio, atraves de poll().
+ * <p>
+ * Quando um cliente le mais devagar do que recebe e a fila enche, aplica a OverflowPolicy configurada.
+ */
+class OutboundQueue {
+
+    /**
+     * O que fazer quando a fila de um cliente lento enche.
+     */
+    enum OverflowPolicy {
+        /**
+         * Descarta o aviso de presenca mais antigo da fila (ou a mensagem nova, se nao houver nenhum).
+         */
+        DROP_PRESENCE,
+        /**
+         * Descarta todos os avisos de presenca da fila e envia um CLIST completo no lugar deles.
+         */
+        RESYNC,
+        /**
+         * Desconecta o cliente lento.
+         */
+        DISCONNECT
+    }
+
+    //Totais de todas as sessoes do servidor
+    private static final LongAdder droppedTotal = new LongAdder();
+    private static final LongAdder resyncTotal = new LongAdder();
+    private static final LongAdder disconnectTotal = new LongAdder();
+
+    //Tamanho do bloco em que drainTo() junta as mensagens antes de escrever no socket
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private final int capacity;
+
+    private final OverflowPolicy policy;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+    //Avisado sempre que uma mensagem entra na fila. Usado pelo modo nio para acordar o event loop
+    private final Runnable onReady;
+
+    //Executado quando a sessao deve ser desconectada pela politica DISCONNECT
+    private final Runnable onDisconnect;
+
+    //Monta o CLIST usado pela politica RESYNC. So existe depois do login
+    private volatile Supplier<ByteBuffer> resyncMessage;
+
+    private boolean resyncPending;
+
+    private boolean closed;
+
+    private long dropped;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, Runnable onReady, Runnable onDisconnect) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.onReady = onReady;
+        this.onDisconnect = onDisconnect;
+    }
+
+    /**
+     * Coloca uma linha do protocolo na fila.
+     */
+    void println(String message) {
+        offer(new Frame(ProtocolCodec.line(message), false));
+    }
+
+    /**
+     * Coloca na fila uma mensagem ja codificada, como um frame do modo binario. O buffer pode ser compartilhado entre
+     * as filas de varias sessoes, pois cada fila escreve a partir de uma copia dos seus indices e nenhuma altera seu
+     * conteudo. Pode ser um direct buffer, como as fatias dos segmentos mapeados da Mailbox.
+     */
+    void send(ByteBuffer message) {
+        offer(new Frame(message.duplicate(), false));
+    }
+
+    /**
+     * Coloca um aviso de presenca (CONAT/CONIN/CONBA) na fila. Avisos de presenca podem ser descartados ou
+     * substituidos por um CLIST quando o cliente nao da conta de recebe-los.
+     */
+    void printlnPresence(String message) {
+        offer(new Frame(ProtocolCodec.line(message), true));
+    }
+
+    /**
+     * Como printlnPresence(), para um aviso de presenca ja codificado.
+     */
+    void sendPresence(ByteBuffer message) {
+        offer(new Frame(message.duplicate(), true));
+    }
+
+    void setResyncMessage(Supplier<ByteBuffer> resyncMessage) {
+        this.resyncMessage = resyncMessage;
+    }
+
+    private void offer(Frame frame) {
+        boolean disconnect = false;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (frame.presence && resyncPending) {
+                //O CLIST que vai ser enviado ja inclui esta mudanca
+                return;
+            }
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DROP_PRESENCE:
+                        dropped++;
+                        droppedTotal.increment();
+                        if (!removePresence(true)) {
+                            return;
+                        }
+                        break;
+                    case RESYNC:
+                        final boolean removed = resyncMessage != null && removePresence(false);
+                        if (removed || (resyncMessage != null && frame.presence)) {
+                            resyncPending = true;
+                            resyncTotal.increment();
+                        }
+                        if (!removed) {
+                            //Nao abriu espaco: a mensagem nova so entra se o CLIST ja a inclui
+                            if (!frame.presence || resyncMessage == null) {
+                                dropped++;
+                                droppedTotal.increment();
+                            }
+                            return;
+                        }
+                        if (frame.presence) {
+                            return;
+                        }
+                        break;
+                    case DISCONNECT:
+                        closed = true;
+                        frames.clear();
+                        disconnect = true;
+                        disconnectTotal.increment();
+                        break;
+                }
+            }
+            if (!disconnect) {
+                frames.add(frame);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (disconnect) {
+            onDisconnect.run();
+        } else if (onReady != null) {
+            onReady.run();
+        }
+    }
+
+    /**
+     * Remove da fila o aviso de presenca mais antigo, ou todos quando onlyOldest eh false. Retorna false se nao havia
+     * nenhum. Deve ser chamado com a trava.
+     */
+    private boolean removePresence(boolean onlyOldest) {
+        boolean removed = false;
+        final Iterator<Frame> iterator = frames.iterator();
+        while (iterator.hasNext()) {
+            final Frame frame = iterator.next();
+            if (frame.presence) {
+                iterator.remove();
+                removed = true;
+                if (onlyOldest) {
+                    return true;
+                }
+                dropped++;
+                droppedTotal.increment();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Retira a proxima mensagem da fila sem bloquear, ou retorna null se ela estiver vazia.
+     */
+    ByteBuffer poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retira da fila, sem bloquear, ate batch.length mensagens, colocando-as em batch a partir do inicio. Retorna
+     * quantas foram retiradas. Usado pelo modo nio para escrever varias mensagens de uma vez no canal.
+     */
+    int poll(ByteBuffer[] batch) {
+        lock.lock();
+        try {
+            int count = 0;
+            ByteBuffer next;
+            while (count < batch.length && (next = next()) != null) {
+                batch[count++] = next;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Escreve as mensagens da fila no fluxo, bloqueando enquanto ela estiver vazia, ate a fila ser fechada. As
+     * mensagens que ja estao na fila sao juntadas em writeBuffer e escritas de uma vez, em vez de uma escrita no socket
+     * por mensagem.
+     */
+    void drainTo(OutputStream output) throws IOException, InterruptedException {
+        final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+        int buffered = 0;
+        while (true) {
+            ByteBuffer buffer = poll();
+            if (buffer == null) {
+                //Fila vazia: escreve o que foi juntado antes de esperar
+                if (buffered > 0) {
+                    output.write(writeBuffer, 0, buffered);
+                    buffered = 0;
+                }
+                lock.lock();
+                try {
+                    while ((buffer = next()) == null && !closed) {
+                        notEmpty.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (buffer == null) {
+                    return;
+                }
+            }
+            final int length = buffer.remaining();
+            if (buffered + length > writeBuffer.length) {
+                output.write(writeBuffer, 0, buffered);
+                buffered = 0;
+            }
+            if (length > writeBuffer.length && buffer.hasArray()) {
+                output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            } else {
+                //Direct buffers (mapeados) sao copiados por partes para o writeBuffer
+                while (buffer.hasRemaining()) {
+                    if (buffered == writeBuffer.length) {
+                        output.write(writeBuffer, 0, buffered);
+                        buffered = 0;
+                    }
+                    final int chunk = Math.min(buffer.remaining(), writeBuffer.length - buffered);
+                    buffer.get(writeBuffer, buffered, chunk);
+                    buffered += chunk;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deve ser chamado com a trava. O CLIST da politica RESYNC eh montado so agora, para refletir o estado atual.
+     */
+    private ByteBuffer next() {
+        if (resyncPending) {
+            resyncPending = false;
+            return resyncMessage.get();
+        }
+        final Frame frame = frames.poll();
+        return frame == null ? null : frame.data;
+    }
+
+    /**
+     * Fecha a fila, descartando o que estiver pendente e liberando quem estiver esperando em drainTo().
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getDepth() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static long getDroppedTotal() {
+        return droppedTotal.sum();
+    }
+
+    static long getResyncTotal() {
+        return resyncTotal.sum();
+    }
+
+    static long getDisconnectTotal() {
+        return disconnectTotal.sum();
+    }
+
+    private static class Frame {
+
+        private final ByteBuffer data;
+
+        private final boolean presence;
+
+        Frame(ByteBuffer data, boolean presence) {
+            this.data = data;
+            this.presence = presence;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package br.usp.redes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Junta as mudancas de presenca destinadas a cada cliente durante uma janela de tempo, e as envia de uma vez.
+ * <p>
+ * Dentro da janela, cada contato tem apenas o seu estado final: um contato que conectou e desconectou (ou o inverso)
+ * nao gera duas mensagens. Clientes que anunciaram a capacidade BATCH no WHORU recebem todas as mudancas da janela em
+ * um unico "CONBA +contato1/ip1:porta1;-contato2" (Connection Batch), onde "+" eh um contato que esta online (e que
+ * substitui qualquer endereco anterior dele) e "-" um contato que ficou offline. Os demais clientes recebem as linhas
+ * CONAT/CONIN de sempre, ja sem as mudancas que se cancelaram. Clientes no modo binario recebem os frames
+ * equivalentes.
+ */
+class PresenceCoalescer {
+
+    static final String BATCH_CAPABILITY = "BATCH";
+
+    //Clientes com mudancas pendentes, esperando o fim da janela
+    private final Queue<Client> dirty = new ConcurrentLinkedQueue<>();
+
+    private final PresenceLog presenceLog;
+
+    //Versao da presenca cujas mudancas ja sairam do coalescer para as filas de saida
+    private volatile long flushedVersion;
+
+    PresenceCoalescer(long windowMillis, PresenceLog presenceLog) {
+        this.presenceLog = presenceLog;
+        final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "presence-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleAtFixedRate(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registra, para o recipient, que changed conectou (online) ou desconectou.
+     */
+    void add(Client recipient, Client changed, boolean online) {
+        final Pending pending = recipient.getPendingPresence();
+        synchronized (pending) {
+            final Change change = pending.changes.get(changed.getName());
+            final Client contact = online ? changed : null;
+            if (change == null) {
+                //A primeira mudanca da janela diz qual era o estado do contato para o recipient antes dela
+                pending.changes.put(changed.getName(), new Change(!online, contact));
+            } else {
+                change.contact = contact;
+            }
+            if (!pending.queued) {
+                pending.queued = true;
+                dirty.add(recipient);
+            }
+        }
+    }
+
+    /**
+     * Versao da presenca que pode ser enviada no KEPTA: as mudancas ate ela ja estao nas filas de saida, e nao mais
+     * esperando a janela.
+     */
+    long flushedVersion() {
+        return flushedVersion;
+    }
+
+    private void flush() {
+        try {
+            //Tudo que ja tinha terminado de ser adicionado antes de esvaziar dirty sai neste flush
+            final long version = presenceLog.stableVersion();
+            Client recipient;
+            while ((recipient = dirty.poll()) != null) {
+                final Pending pending = recipient.getPendingPresence();
+                final List<Map.Entry<String, Change>> changes;
+                synchronized (pending) {
+                    changes = new ArrayList<>(pending.changes.entrySet());
+                    pending.changes.clear();
+                    pending.queued = false;
+                }
+                if (recipient.hasCapability(BATCH_CAPABILITY)) {
+                    sendBatch(recipient, changes);
+                } else {
+                    sendLines(recipient, changes);
+                }
+            }
+            flushedVersion = version;
+        } catch (RuntimeException e) {
+            //Uma excecao cancelaria as proximas execucoes agendadas
+            Log.error("erro ao enviar os avisos de presenca juntados", "erro", e);
+        }
+    }
+
+    private static void sendBatch(Client recipient, List<Map.Entry<String, Change>> changes) {
+        final List<Client> online = new ArrayList<>();
+        final List<String> offline = new ArrayList<>();
+        for (Map.Entry<String, Change> entry : changes) {
+            final Change change = entry.getValue();
+            if (change.contact != null) {
+                online.add(change.contact);
+            } else if (change.wasOnline) {
+                offline.add(entry.getKey());
+            }
+            //Senao conectou e desconectou dentro da janela
+        }
+        if (online.isEmpty() && offline.isEmpty()) {
+            return;
+        }
+        if (recipient.hasCapability(ProtocolCodec.BINARY_CAPABILITY)) {
+            recipient.getWriter().sendPresence(ProtocolCodec.presenceBatch(online, offline));
+            return;
+        }
+        recipient.getWriter().sendPresence(ProtocolCodec.presenceLine("CONBA", online, offline));
+    }
+
+    private static void sendLines(Client recipient, List<Map.Entry<String, Change>> changes) {
+        final boolean binary = recipient.hasCapability(ProtocolCodec.BINARY_CAPABILITY);
+        for (Map.Entry<String, Change> entry : changes) {
+            final Change change = entry.getValue();
+            if (change.wasOnline) {
+                //Desconectou, ou reconectou possivelmente com outro endereco
+                if (binary) {
+                    recipient.getWriter().sendPresence(ProtocolCodec.contactInactive(entry.getKey()));
+                } else {
+                    recipient.getWriter().printlnPresence("CONIN " + entry.getKey());
+                }
+            }
+            if (change.contact != null) {
+                if (binary) {
+                    recipient.getWriter().sendPresence(ProtocolCodec.contactActive(change.contact));
+                } else {
+                    recipient.getWriter().printlnPresence("CONAT " + change.contact.getContactData());
+                }
+            }
+        }
+    }
+
+    /**
+     * Mudancas de presenca pendentes para um cliente, na ordem em que aconteceram.
+     */
+    static class Pending {
+
+        private final Map<String, Change> changes = new LinkedHashMap<>();
+
+        private boolean queued;
+    }
+
+    private static class Change {
+
+        //Se o contato estava online para o recipient antes da janela
+        private final boolean wasOnline;
+
+        //O contato, se ele terminou a janela online, ou null se terminou offline
+        private Client contact;
+
+        Change(boolean wasOnline, Client contact) {
+            this.wasOnline = wasOnline;
+            this.contact = contact;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package br.usp.redes;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Versao da presenca dos clientes, para que um cliente que reconecta receba apenas o que mudou enquanto ele esteve
+ * fora, em vez de um CLIST completo.
+ * <p>
+ * Cada conexao ou desconexao de cliente recebe um numero de sequencia, e o id do cliente que mudou fica guardado em um
+ * anel com as ultimas mudancas. A versao "epoca:sequencia" eh enviada aos clientes que aceitam a capacidade "RESYNC"
+ * no KEPTA, e eles a repetem no login seguinte como "SINCE=epoca:sequencia". A epoca muda a cada vez que o servidor
+ * sobe, entao versoes de outro processo nunca sao aceitas. Quando a versao eh desta epoca e as mudancas desde ela ainda
+ * estao no anel, changedSince() diz quais clientes mudaram; senao o cliente recebe o CLIST completo.
+ * <p>
+ * A versao enviada no KEPTA eh stableVersion(): uma sequencia cujas mudancas, e todas as anteriores, ja foram
+ * colocadas nas filas de saida dos clientes avisados. Assim o cliente nunca diz ter visto uma mudanca cujo aviso ainda
+ * nao entrou na fila dele antes do KEPTA.
+ */
+class PresenceLog {
+
+    static final String RESYNC_CAPABILITY = "RESYNC";
+
+    /**
+     * Prefixo da versao na resposta ao WHORU: "nome/ip:porta RESYNC SINCE=epoca:sequencia".
+     */
+    static final String SINCE_PREFIX = "SINCE=";
+
+    //Id gravado no anel quando o grafo de contatos muda, invalidando as versoes anteriores
+    private static final int INVALIDATED = -1;
+
+    private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+    private final int mask;
+
+    //Sequencia e id do cliente de cada mudanca, na posicao sequencia & mask
+    private final AtomicLongArray sequences;
+
+    private final AtomicIntegerArray ids;
+
+    private final AtomicLong last = new AtomicLong();
+
+    //Sequencia de cada mudanca cujos avisos ja terminaram, na posicao sequencia & mask
+    private final AtomicLongArray done;
+
+    //Maior sequencia que, junto com todas as anteriores, ja terminou de avisar os clientes
+    private final AtomicLong stable = new AtomicLong();
+
+    /**
+     * Guarda as ultimas capacity mudancas, arredondado para a proxima potencia de 2.
+     */
+    PresenceLog(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.ids = new AtomicIntegerArray(size);
+        this.done = new AtomicLongArray(size);
+    }
+
+    /**
+     * Registra que o cliente de id conectou ou desconectou e retorna a sequencia da mudanca. Deve ser chamado depois
+     * de mudar o estado dele no grafo e antes de avisar os clientes que o tem como contato, seguido de end() com a
+     * sequencia retornada depois dos avisos.
+     */
+    long begin(int id) {
+        final long sequence = last.incrementAndGet();
+        final int slot = (int) sequence & mask;
+        //A posicao em done so eh reaproveitada depois que a mudanca de uma volta atras do anel terminou
+        while (stable.get() < sequence - (mask + 1)) {
+            Thread.yield();
+        }
+        ids.set(slot, id);
+        sequences.set(slot, sequence);
+        return sequence;
+    }
+
+    /**
+     * Marca o fim dos avisos da mudanca de sequencia iniciada com begin(). A versao estavel avanca ate a mudanca
+     * anterior a mais antiga que ainda esta avisando, sem esperar que nenhuma esteja em andamento.
+     */
+    void end(long sequence) {
+        done.set((int) sequence & mask, sequence);
+        //Quem terminar a mudanca seguinte a versao estavel a avanca. Como done eh gravado antes de ler stable, das
+        //duas threads que terminam mudancas vizinhas ao mesmo tempo ao menos uma ve a outra ja terminada
+        long current = stable.get();
+        while (done.get((int) (current + 1) & mask) == current + 1) {
+            if (stable.compareAndSet(current, current + 1)) {
+                current++;
+            } else {
+                current = stable.get();
+            }
+        }
+    }
+
+    /**
+     * Invalida as versoes enviadas ate agora, para quando os contatos dos clientes mudam e nao apenas sua presenca.
+     * Como begin(), deve ser seguido de end() depois dos avisos.
+     */
+    long invalidate() {
+        return begin(INVALIDATED);
+    }
+
+    long stableVersion() {
+        return stable.get();
+    }
+
+    /**
+     * Versao no formato enviado aos clientes, "epoca:sequencia".
+     */
+    String format(long version) {
+        return epoch + ":" + version;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Ids dos clientes que conectaram ou desconectaram depois da versao "epoca:sequencia", possivelmente repetidos; ou
+     * null se a versao nao eh deste servidor, eh invalida ou ja saiu do anel.
+     */
+    int[] changedSince(String version) {
+        final int colon = version.indexOf(':');
+        final long since;
+        try {
+            if (colon < 0 || Long.parseLong(version.substring(0, colon)) != epoch) {
+                return null;
+            }
+            since = Long.parseLong(version.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final long current = last.get();
+        if (since < 0 || since > current || current - since > mask) {
+            return null;
+        }
+        final int[] changed = new int[(int) (current - since)];
+        for (long sequence = since + 1; sequence <= current; sequence++) {
+            final int slot = (int) sequence & mask;
+            //A sequencia ja foi reservada, mas begin() ainda nao terminou de grava-la
+            while (sequences.get(slot) < sequence) {
+                Thread.yield();
+            }
+            final int id = ids.get(slot);
+            if (id == INVALIDATED) {
+                return null;
+            }
+            changed[(int) (sequence - since - 1)] = id;
+        }
+        //Se o anel deu a volta durante a leitura, alguma posicao pode ter sido sobrescrita
+        return last.get() - since > mask ? null : changed;
+    }
+}
@@ -0,0 +1,317 @@
+package br.usp.redes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Codificacao das mensagens enviadas pelo servidor e leitura das mensagens recebidas, direto de um ByteBuffer, nos
+ * dois modos do protocolo.
+ * <p>
+ * O modo texto (padrao) usa as linhas terminadas por "\n" descritas em Main. O modo binario eh oferecido no WHORU
+ * pela capacidade "BIN" e, quando o cliente a aceita, comeca nos dois sentidos logo depois do registro: o CLIST ja eh
+ * enviado como frame, e o cliente passa a mandar KEEPA como frame. Cada frame eh
+ * [opcode: 1 byte][tamanho do conteudo: 4 bytes][conteudo]. Textos sao codificados como [tamanho: 2 bytes][UTF-8],
+ * portas como 2 bytes sem sinal e contagens como 4 bytes, todos big endian. Um contato eh [nome][ip][porta].
+ * Conteudo de cada opcode:
+ * <ul>
+ * <li>CLIST: [contagem][contato]...</li>
+ * <li>CONAT: [contato]</li>
+ * <li>CONIN: [nome]</li>
+ * <li>CONBA: [contagem][contato]... dos que ficaram online, seguido de [contagem][nome]... dos que ficaram
+ * offline</li>
+ * <li>KEEPA: vazio</li>
+ * <li>KEPTA: vazio, ou [epoca: 8 bytes][sequencia: 8 bytes] da versao da presenca para clientes que aceitaram
+ * "RESYNC" (veja PresenceLog)</li>
+ * <li>RESYN: como CONBA, com o que mudou desde a versao informada no login</li>
+ * <li>GROUP: [grupo][texto], enviado pelo cliente para o servidor repassar aos membros do grupo</li>
+ * <li>GRPMS: [grupo][remetente][texto], a mensagem de grupo repassada pelo servidor</li>
+ * <li>OFFMS: [destinatario][texto], enviado pelo cliente para guardar a mensagem na caixa postal do destinatario</li>
+ * <li>MAILM: [sequencia: 8 bytes][instante em ms: 8 bytes][remetente][texto], uma mensagem da caixa postal</li>
+ * <li>MAILA: [sequencia: 8 bytes], enviado pelo cliente para confirmar as mensagens da caixa postal ate ela</li>
+ * </ul>
+ * Os opcodes sao menores que 0x20, entao o primeiro byte de um frame nunca se confunde com o de uma linha de texto.
+ */
+class ProtocolCodec {
+
+    static final String BINARY_CAPABILITY = "BIN";
+
+    static final byte CLIST = 1;
+    static final byte CONAT = 2;
+    static final byte CONIN = 3;
+    static final byte CONBA = 4;
+    static final byte KEEPA = 5;
+    static final byte KEPTA = 6;
+    static final byte RESYN = 7;
+    static final byte GROUP = 8;
+    static final byte GRPMS = 9;
+    static final byte OFFMS = 10;
+    static final byte MAILM = 11;
+    static final byte MAILA = 12;
+
+    /**
+     * Tamanho maximo de uma linha ou frame recebido. Conexoes que mandam mensagens maiores sao fechadas.
+     */
+    static final int MAX_MESSAGE_LENGTH = 8192;
+
+    /**
+     * Retornado por nextFrame() enquanto o frame ainda nao chegou inteiro.
+     */
+    static final int INCOMPLETE = -1;
+
+    private static final int HEADER_LENGTH = 5;
+
+    private static final Charset TEXT_CHARSET = Charset.defaultCharset();
+
+    //Compartilhado por todas as sessoes. Nunca eh alterado, e cada fila usa uma copia dos indices
+    private static final ByteBuffer KEPTA_FRAME = header(KEPTA, 0).flip();
+
+    /**
+     * Codifica uma linha do modo texto.
+     */
+    static ByteBuffer line(String message) {
+        return ByteBuffer.wrap((message + "\n").getBytes(TEXT_CHARSET));
+    }
+
+    static ByteBuffer keptAlive() {
+        return KEPTA_FRAME.duplicate();
+    }
+
+    static ByteBuffer keptAlive(long epoch, long version) {
+        return header(KEPTA, 16).putLong(epoch).putLong(version).flip();
+    }
+
+    static ByteBuffer contactList(List<Client> contacts) {
+        final byte[][] encoded = new byte[contacts.size()][];
+        int length = 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = contactBytes(contacts.get(i));
+            length += encoded[i].length;
+        }
+        final ByteBuffer frame = header(CLIST, length);
+        frame.putInt(encoded.length);
+        for (byte[] contact : encoded) {
+            frame.put(contact);
+        }
+        return frame.flip();
+    }
+
+    static ByteBuffer contactActive(Client contact) {
+        final byte[] encoded = contactBytes(contact);
+        return header(CONAT, encoded.length).put(encoded).flip();
+    }
+
+    static ByteBuffer contactInactive(String name) {
+        final byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer frame = header(CONIN, 2 + encoded.length);
+        putString(frame, encoded);
+        return frame.flip();
+    }
+
+    static ByteBuffer presenceBatch(List<Client> online, List<String> offline) {
+        return presenceFrame(CONBA, online, offline);
+    }
+
+    static ByteBuffer resync(List<Client> online, List<String> offline) {
+        return presenceFrame(RESYN, online, offline);
+    }
+
+    /**
+     * Frame GRPMS com uma mensagem de grupo. Eh codificado uma unica vez e compartilhado entre as filas de todos os
+     * membros.
+     */
+    static ByteBuffer groupMessage(String group, String sender, String text) {
+        final byte[] groupBytes = group.getBytes(StandardCharsets.UTF_8);
+        final byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        final byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer frame = header(GRPMS, 6 + groupBytes.length + senderBytes.length + textBytes.length);
+        putString(frame, groupBytes);
+        putString(frame, senderBytes);
+        putString(frame, textBytes);
+        return frame.flip();
+    }
+
+    /**
+     * Tamanho do frame MAILM, com o cabecalho, de uma mensagem da caixa postal.
+     */
+    static int mailMessageLength(byte[] sender, byte[] text) {
+        return HEADER_LENGTH + 20 + sender.length + text.length;
+    }
+
+    /**
+     * Escreve o frame MAILM na posicao atual de target, como eh guardado nos segmentos da Mailbox.
+     */
+    static void putMailMessage(ByteBuffer target, long sequence, long timestamp, byte[] sender, byte[] text) {
+        target.put(MAILM).putInt(20 + sender.length + text.length).putLong(sequence).putLong(timestamp);
+        putString(target, sender);
+        putString(target, text);
+    }
+
+    /**
+     * Tamanho total, com o cabecalho, do frame que comeca em position.
+     */
+    static int frameLength(ByteBuffer buffer, int position) {
+        return HEADER_LENGTH + buffer.getInt(position + 1);
+    }
+
+    static long mailSequence(ByteBuffer buffer, int position) {
+        return buffer.getLong(position + HEADER_LENGTH);
+    }
+
+    /**
+     * Linha "MAILM sequencia remetente instante texto" do modo texto com o conteudo de um frame MAILM.
+     */
+    static ByteBuffer mailLine(ByteBuffer frame) throws IOException {
+        final ByteBuffer payload = frame.duplicate();
+        payload.position(payload.position() + HEADER_LENGTH);
+        final long sequence = payload.getLong();
+        final long timestamp = payload.getLong();
+        final String sender = readString(payload);
+        return line("MAILM " + sequence + " " + sender + " " + timestamp + " " + readString(payload));
+    }
+
+    /**
+     * Codifica no modo texto um lote de mudancas de presenca, "CONBA +contato1/ip1:porta1;-contato2" ou, com o
+     * command "RESYN", a resposta a um login com versao.
+     */
+    static ByteBuffer presenceLine(String command, List<Client> online, List<String> offline) {
+        final StringBuilder batch = new StringBuilder(command).append(' ');
+        final int start = batch.length();
+        for (Client contact : online) {
+            batch.append(batch.length() > start ? ";+" : "+").append(contact.getContactData());
+        }
+        for (String name : offline) {
+            batch.append(batch.length() > start ? ";-" : "-").append(name);
+        }
+        return line(batch.toString());
+    }
+
+    private static ByteBuffer presenceFrame(byte opcode, List<Client> online, List<String> offline) {
+        final byte[][] onlineBytes = new byte[online.size()][];
+        final byte[][] offlineBytes = new byte[offline.size()][];
+        int length = 8;
+        for (int i = 0; i < onlineBytes.length; i++) {
+            onlineBytes[i] = contactBytes(online.get(i));
+            length += onlineBytes[i].length;
+        }
+        for (int i = 0; i < offlineBytes.length; i++) {
+            offlineBytes[i] = offline.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 2 + offlineBytes[i].length;
+        }
+        final ByteBuffer frame = header(opcode, length);
+        frame.putInt(onlineBytes.length);
+        for (byte[] contact : onlineBytes) {
+            frame.put(contact);
+        }
+        frame.putInt(offlineBytes.length);
+        for (byte[] name : offlineBytes) {
+            putString(frame, name);
+        }
+        return frame.flip();
+    }
+
+    /**
+     * Retorna a proxima linha de texto do buffer, sem o "\n" (e "\r") final, avancando o buffer para depois dela; ou
+     * null se a linha ainda nao chegou inteira. O buffer deve ser um heap buffer.
+     */
+    static String nextLine(ByteBuffer buffer) {
+        final int start = buffer.position();
+        for (int i = start; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                final int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                final String line = new String(buffer.array(), buffer.arrayOffset() + start, end - start, TEXT_CHARSET);
+                buffer.position(i + 1);
+                return line;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retorna o opcode do proximo frame do buffer, avancando o buffer para depois dele; ou INCOMPLETE se o frame
+     * ainda nao chegou inteiro. O conteudo fica no buffer, entre a posicao anterior a chamada e a atual, e pode ser
+     * lido em seguida com readText() ou readLong().
+     */
+    static int nextFrame(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return INCOMPLETE;
+        }
+        final int start = buffer.position();
+        final int length = buffer.getInt(start + 1);
+        if (length < 0 || length > MAX_MESSAGE_LENGTH - HEADER_LENGTH) {
+            throw new IOException("Frame invalido, com " + length + " bytes");
+        }
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return INCOMPLETE;
+        }
+        buffer.position(start + HEADER_LENGTH + length);
+        return buffer.get(start);
+    }
+
+    /**
+     * Le o texto de numero field (0 ou 1) do conteudo [texto][texto] de um frame GROUP ou OFFMS que comeca em
+     * frameStart e termina na posicao atual do buffer. Le direto do array do buffer (de heap, como os de leitura das
+     * sessoes), pelas posicoes, sem copiar o conteudo.
+     */
+    static String readText(ByteBuffer buffer, int frameStart, int field) throws IOException {
+        final int end = buffer.position();
+        int position = frameStart + HEADER_LENGTH;
+        for (int i = 0; ; i++) {
+            if (end - position < 2) {
+                throw new IOException("Frame invalido, sem o tamanho do texto");
+            }
+            final int length = buffer.getShort(position) & 0xFFFF;
+            position += 2;
+            if (end - position < length) {
+                throw new IOException("Frame invalido, com texto de " + length + " bytes");
+            }
+            if (i == field) {
+                return new String(buffer.array(), buffer.arrayOffset() + position, length, StandardCharsets.UTF_8);
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Le o conteudo [8 bytes] de um frame MAILA que comeca em frameStart e termina na posicao atual do buffer.
+     */
+    static long readLong(ByteBuffer buffer, int frameStart) throws IOException {
+        if (buffer.position() - frameStart - HEADER_LENGTH < 8) {
+            throw new IOException("Frame invalido, sem os 8 bytes esperados");
+        }
+        return buffer.getLong(frameStart + HEADER_LENGTH);
+    }
+
+    private static String readString(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 2) {
+            throw new IOException("Frame invalido, sem o tamanho do texto");
+        }
+        final int length = payload.getShort() & 0xFFFF;
+        if (payload.remaining() < length) {
+            throw new IOException("Frame invalido, com texto de " + length + " bytes");
+        }
+        final byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer header(byte opcode, int length) {
+        return ByteBuffer.allocate(HEADER_LENGTH + length).put(opcode).putInt(length);
+    }
+
+    private static byte[] contactBytes(Client contact) {
+        final byte[] name = contact.getName().getBytes(StandardCharsets.UTF_8);
+        final byte[] ip = contact.getIp().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer encoded = ByteBuffer.allocate(2 + name.length + 2 + ip.length + 2);
+        putString(encoded, name);
+        putString(encoded, ip);
+        encoded.putShort((short) Integer.parseInt(contact.getPort()));
+        return encoded.array();
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] encoded) {
+        buffer.putShort((short) encoded.length).put(encoded);
+    }
+}
@@ -0,0 +1,205 @@
+package br.usp.redes;
+
+/**
+ * Opcoes de inicializacao do servidor. Sao lidas dos argumentos de linha de comando no formato "--opcao=valor".
+ * <p>
+ * Opcoes disponiveis:
+ * <ul>
+ * <li>--mode=thread|virtual|nio : modo de execucao. "thread" (padrao) cria uma thread por conexao, "virtual" cria
+ * uma virtual thread por conexao (Java 21+), "nio" usa um conjunto pequeno de event loops com Selector.</li>
+ * <li>--port=N : porta na qual o servidor escuta. Por padrao, 9001.</li>
+ * <li>--clients-file=caminho : arquivo com os clientes e seus contatos. Por padrao, clients.txt.</li>
+ * <li>--watch-clients-file=true|false : recarrega o arquivo de clientes quando ele muda, sem reiniciar o servidor.
+ * Por padrao, true.</li>
+ * <li>--store-dir=caminho : diretorio onde o grafo de contatos eh guardado em um snapshot binario e um log de
+ * mudancas, para subir rapido e manter as mudancas. Na primeira vez, importa o arquivo de clientes. Por padrao, nenhum
+ * (o grafo vem apenas do arquivo de clientes).</li>
+ * <li>--peers=host:portaClientes:portaCluster,... : nos de um cluster, na ordem dos ids, com a porta em que cada um
+ * atende clientes e a porta em que escuta os outros nos. Por padrao, nenhum (servidor sozinho).</li>
+ * <li>--node-id=N : indice deste servidor em --peers. Por padrao, 0.</li>
+ * <li>--event-loops=N : numero de event loops no modo nio. Por padrao, o numero de processadores.</li>
+ * <li>--coalesce-ms=N : janela em milissegundos na qual os avisos de presenca para cada cliente sao juntados. Por
+ * padrao, 0 (avisos enviados imediatamente).</li>
+ * <li>--presence-history=N : numero de mudancas de presenca guardadas para que clientes que reconectam recebam
+ * apenas o que mudou (veja PresenceLog). Por padrao, 65536.</li>
+ * <li>--outbound-capacity=N : numero maximo de mensagens na fila de saida de cada cliente. Por padrao, 1024.</li>
+ * <li>--overflow=drop-presence|resync|disconnect : o que fazer quando a fila de saida de um cliente lento enche:
+ * descartar o aviso de presenca mais antigo, trocar os avisos pendentes por um CLIST completo (padrao) ou desconectar
+ * o cliente.</li>
+ * <li>--admin-port=N : porta, apenas em localhost, que responde ao comando "METRICS" com as metricas do servidor (veja
+ * ServerMetrics). Por padrao, 0 (desligada).</li>
+ * <li>--mailbox-dir=caminho : diretorio das caixas postais, onde ficam as mensagens para contatos offline ate que eles
+ * as recebam (veja Mailbox). Por padrao, nenhum (caixas postais desligadas).</li>
+ * <li>--log-level=debug|info|warn|error : nivel minimo dos registros do log (veja Log). Por padrao, info.</li>
+ * <li>--log-file=caminho : arquivo do log, rodado a cada 16 MB. Por padrao, nenhum (o log vai para o console).</li>
+ * </ul>
+ */
+public class ServerConfig {
+
+    enum Mode {
+        THREAD, VIRTUAL, NIO
+    }
+
+    private Mode mode = Mode.THREAD;
+
+    private int port = 9001;
+
+    private String clientsFile = "clients.txt";
+
+    private boolean watchClientsFile = true;
+
+    private String storeDir;
+
+    private String peers;
+
+    private int nodeId;
+
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    private int coalesceMillis;
+
+    private int presenceHistory = 65536;
+
+    private int outboundCapacity = 1024;
+
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.RESYNC;
+
+    private int adminPort;
+
+    private String mailboxDir;
+
+    private Log.Level logLevel = Log.Level.INFO;
+
+    private String logFile;
+
+    /**
+     * Interpreta os argumentos de linha de comando. Lanca IllegalArgumentException para opcoes desconhecidas.
+     */
+    static ServerConfig parse(String[] args) {
+        final ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                throw new IllegalArgumentException("Opcao invalida: " + arg);
+            }
+            final String key = arg.substring(2, arg.indexOf('='));
+            final String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "clients-file":
+                    config.clientsFile = value;
+                    break;
+                case "watch-clients-file":
+                    config.watchClientsFile = Boolean.parseBoolean(value);
+                    break;
+                case "store-dir":
+                    config.storeDir = value;
+                    break;
+                case "peers":
+                    config.peers = value;
+                    break;
+                case "node-id":
+                    config.nodeId = Integer.parseInt(value);
+                    break;
+                case "event-loops":
+                    config.eventLoops = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "coalesce-ms":
+                    config.coalesceMillis = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "presence-history":
+                    config.presenceHistory = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "outbound-capacity":
+                    config.outboundCapacity = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "overflow":
+                    config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "admin-port":
+                    config.adminPort = Integer.parseInt(value);
+                    break;
+                case "mailbox-dir":
+                    config.mailboxDir = value;
+                    break;
+                case "log-level":
+                    config.logLevel = Log.Level.valueOf(value.toUpperCase());
+                    break;
+                case "log-file":
+                    config.logFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Opcao desconhecida: " + key);
+            }
+        }
+        return config;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getClientsFile() {
+        return clientsFile;
+    }
+
+    public boolean isWatchClientsFile() {
+        return watchClientsFile;
+    }
+
+    public String getStoreDir() {
+        return storeDir;
+    }
+
+    public String getPeers() {
+        return peers;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public int getCoalesceMillis() {
+        return coalesceMillis;
+    }
+
+    public int getPresenceHistory() {
+        return presenceHistory;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    public String getMailboxDir() {
+        return mailboxDir;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+}
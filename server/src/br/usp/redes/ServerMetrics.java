@@ -0,0 +1,303 @@
+package br.usp.redes;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metricas de operacao do servidor: sessoes abertas e taxa de conexoes aceitas, latencia do login (do WHORU ate o
+ * CLIST estar na fila de saida), numero de destinatarios e tempo de cada aviso de presenca, intervalo entre KEEPAs de
+ * cada sessao e sessoes desconectadas por falta deles, e o que as OutboundQueue descartaram. A profundidade das filas
+ * de saida eh calculada na leitura, percorrendo os clientes conectados neste servidor.
+ * <p>
+ * A gravacao usa apenas contadores atomicos (LongAdder e Histogram), sem trava e sem alocar, para poder ser feita em
+ * cada KEEPA. As metricas sao lidas por JMX (OBJECT_NAME) ou pela porta de administracao (--admin-port), que aceita
+ * conexoes apenas de localhost e responde ao comando "METRICS" com uma linha "nome valores" por metrica, seguidas de
+ * "END".
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+
+    static final String OBJECT_NAME = "br.usp.redes:type=ServerMetrics";
+
+    //Segundos guardados para a taxa de conexoes aceitas, e quantos deles entram na media
+    private static final int RATE_SLOTS = 16;
+
+    private static final int RATE_WINDOW_SECONDS = 10;
+
+    private static final long MICROS = 1000;
+
+    private static final long MILLIS = 1000000;
+
+    private static final LongAdder accepted = new LongAdder();
+
+    private static final LongAdder closed = new LongAdder();
+
+    //Conexoes aceitas em cada segundo, na posicao segundo % RATE_SLOTS
+    private static final AtomicLongArray acceptSeconds = new AtomicLongArray(RATE_SLOTS);
+
+    private static final AtomicLongArray acceptCounts = new AtomicLongArray(RATE_SLOTS);
+
+    private static final Histogram handshakeNanos = new Histogram();
+
+    private static final Histogram fanoutSize = new Histogram();
+
+    private static final Histogram fanoutNanos = new Histogram();
+
+    private static final Histogram keepAliveGapNanos = new Histogram();
+
+    private static final LongAdder keepAliveTimeouts = new LongAdder();
+
+    private static final long startNanos = System.nanoTime();
+
+    /**
+     * Registra as metricas no servidor JMX da plataforma e, se adminPort for maior que 0, abre a porta de
+     * administracao.
+     */
+    static void start(int adminPort) throws IOException {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new ServerMetrics(), name);
+            }
+        } catch (JMException e) {
+            Log.error("nao foi possivel registrar as metricas no JMX", "erro", e);
+        }
+        if (adminPort > 0) {
+            final ServerSocket admin = new ServerSocket(adminPort, 50, InetAddress.getLoopbackAddress());
+            final Thread thread = new Thread(() -> serveAdmin(admin), "admin");
+            thread.setDaemon(true);
+            thread.start();
+            Log.info("metricas disponiveis na porta de administracao", "endereco", admin.getLocalSocketAddress());
+        }
+    }
+
+    /**
+     * Atende as conexoes da porta de administracao, uma de cada vez.
+     */
+    private static void serveAdmin(ServerSocket admin) {
+        while (true) {
+            try (Socket socket = admin.accept();
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                String command;
+                while ((command = in.readLine()) != null) {
+                    command = command.trim().toUpperCase(Locale.ROOT);
+                    if (command.equals("METRICS")) {
+                        out.print(summary());
+                        out.println("END");
+                    } else if (command.equals("QUIT")) {
+                        break;
+                    } else if (!command.isEmpty()) {
+                        out.println("Comando desconhecido. Use METRICS ou QUIT");
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("erro na porta de administracao", "erro", e);
+            }
+        }
+    }
+
+    /**
+     * Uma conexao foi aceita, antes do WHORU.
+     */
+    static void connectionAccepted() {
+        accepted.increment();
+        final long second = (System.nanoTime() - startNanos) / TimeUnit.SECONDS.toNanos(1);
+        final int slot = (int) (second % RATE_SLOTS);
+        final long slotSecond = acceptSeconds.get(slot);
+        //A primeira conexao de cada segundo zera a posicao. Uma conexao concorrente com a troca pode se perder
+        if (slotSecond != second && acceptSeconds.compareAndSet(slot, slotSecond, second)) {
+            acceptCounts.set(slot, 0);
+        }
+        acceptCounts.incrementAndGet(slot);
+    }
+
+    static void connectionClosed() {
+        closed.increment();
+    }
+
+    /**
+     * O cliente foi registrado e seu CLIST (ou RESYN) colocado na fila de saida, startNanos depois do primeiro WHORU.
+     */
+    static void handshakeCompleted(long startNanos) {
+        handshakeNanos.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Um aviso de presenca foi entregue a recipients clientes em nanos nanossegundos.
+     */
+    static void fanout(int recipients, long nanos) {
+        fanoutSize.record(recipients);
+        fanoutNanos.record(nanos);
+    }
+
+    /**
+     * Uma sessao mandou KEEPA gapNanos depois do anterior (ou do login, no primeiro).
+     */
+    static void keepAliveReceived(long gapNanos) {
+        keepAliveGapNanos.record(gapNanos);
+    }
+
+    static void keepAliveTimedOut() {
+        keepAliveTimeouts.increment();
+    }
+
+    /**
+     * Todas as metricas, uma por linha.
+     */
+    static String summary() {
+        return "sessions active=" + (accepted.sum() - closed.sum()) + " clientsOnline=" + Main.onlineClientCount()
+                + " accepted=" + accepted.sum() + String.format(Locale.ROOT, " acceptsPerSecond=%.1f", acceptRate())
+                + "\n"
+                + "handshakeUs " + handshakeNanos.summary(MICROS) + "\n"
+                + "fanoutSize " + fanoutSize.summary(1) + "\n"
+                + "fanoutUs " + fanoutNanos.summary(MICROS) + "\n"
+                + "keepAliveGapMs " + keepAliveGapNanos.summary(MILLIS) + "\n"
+                + "keepAlive timeouts=" + keepAliveTimeouts.sum() + "\n"
+                + "outbound dropped=" + OutboundQueue.getDroppedTotal() + " resyncs=" + OutboundQueue.getResyncTotal()
+                + " disconnects=" + OutboundQueue.getDisconnectTotal() + "\n"
+                + "outboundDepth " + outboundDepths() + "\n";
+    }
+
+    /**
+     * Profundidade das filas de saida dos clientes conectados neste servidor: a maior, a soma, e o cliente com a
+     * maior fila, com quantas mensagens a fila dele ja descartou.
+     */
+    private static OutboundDepths outboundDepths() {
+        final OutboundDepths depths = new OutboundDepths();
+        for (Client c : Main.localClients()) {
+            final OutboundQueue queue = c.getWriter();
+            if (queue == null) {
+                continue;
+            }
+            final int depth = queue.getDepth();
+            depths.total += depth;
+            if (depth > depths.max || depths.deepest == null) {
+                depths.max = depth;
+                depths.deepest = c.getName();
+                depths.deepestDropped = queue.getDropped();
+            }
+        }
+        return depths;
+    }
+
+    private static class OutboundDepths {
+
+        private int max;
+
+        private long total;
+
+        private String deepest;
+
+        private long deepestDropped;
+
+        public String toString() {
+            return "max=" + max + " total=" + total + " deepest=" + (deepest != null ? deepest : "-")
+                    + " deepestDropped=" + deepestDropped;
+        }
+    }
+
+    /**
+     * Media de conexoes aceitas por segundo nos ultimos RATE_WINDOW_SECONDS segundos completos.
+     */
+    private static double acceptRate() {
+        final long current = (System.nanoTime() - startNanos) / TimeUnit.SECONDS.toNanos(1);
+        long total = 0;
+        for (long second = current - RATE_WINDOW_SECONDS; second < current; second++) {
+            final int slot = (int) (second % RATE_SLOTS);
+            if (second >= 0 && acceptSeconds.get(slot) == second) {
+                total += acceptCounts.get(slot);
+            }
+        }
+        return (double) total / RATE_WINDOW_SECONDS;
+    }
+
+    public long getActiveSessions() {
+        return accepted.sum() - closed.sum();
+    }
+
+    public int getClientsOnline() {
+        return Main.onlineClientCount();
+    }
+
+    public long getAcceptedTotal() {
+        return accepted.sum();
+    }
+
+    public double getAcceptsPerSecond() {
+        return acceptRate();
+    }
+
+    public long getHandshakes() {
+        return handshakeNanos.getCount();
+    }
+
+    public double getHandshakeP50Micros() {
+        return handshakeNanos.percentile(0.50) / (double) MICROS;
+    }
+
+    public double getHandshakeP99Micros() {
+        return handshakeNanos.percentile(0.99) / (double) MICROS;
+    }
+
+    public long getFanouts() {
+        return fanoutSize.getCount();
+    }
+
+    public long getFanoutSizeP99() {
+        return fanoutSize.percentile(0.99);
+    }
+
+    public double getFanoutP99Micros() {
+        return fanoutNanos.percentile(0.99) / (double) MICROS;
+    }
+
+    public double getKeepAliveGapP99Millis() {
+        return keepAliveGapNanos.percentile(0.99) / (double) MILLIS;
+    }
+
+    public long getKeepAliveTimeouts() {
+        return keepAliveTimeouts.sum();
+    }
+
+    public long getOutboundDropped() {
+        return OutboundQueue.getDroppedTotal();
+    }
+
+    public long getOutboundResyncs() {
+        return OutboundQueue.getResyncTotal();
+    }
+
+    public long getOutboundDisconnects() {
+        return OutboundQueue.getDisconnectTotal();
+    }
+
+    public int getOutboundDepthMax() {
+        return outboundDepths().max;
+    }
+
+    public long getOutboundDepthTotal() {
+        return outboundDepths().total;
+    }
+
+    public String getOutboundDeepestClient() {
+        return outboundDepths().deepest;
+    }
+
+    public String getSummary() {
+        return summary();
+    }
+}
@@ -0,0 +1,54 @@
+package br.usp.redes;
+
+/**
+ * Metricas do servidor expostas por JMX, com o nome ServerMetrics.OBJECT_NAME. Veja ServerMetrics.
+ */
+public interface ServerMetricsMXBean {
+
+    long getActiveSessions();
+
+    int getClientsOnline();
+
+    long getAcceptedTotal();
+
+    double getAcceptsPerSecond();
+
+    long getHandshakes();
+
+    double getHandshakeP50Micros();
+
+    double getHandshakeP99Micros();
+
+    long getFanouts();
+
+    long getFanoutSizeP99();
+
+    double getFanoutP99Micros();
+
+    double getKeepAliveGapP99Millis();
+
+    long getKeepAliveTimeouts();
+
+    long getOutboundDropped();
+
+    long getOutboundResyncs();
+
+    long getOutboundDisconnects();
+
+    /**
+     * Maior fila de saida entre os clientes conectados neste servidor, em mensagens.
+     */
+    int getOutboundDepthMax();
+
+    long getOutboundDepthTotal();
+
+    /**
+     * Nome do cliente com a maior fila de saida, ou null se nao ha clientes.
+     */
+    String getOutboundDeepestClient();
+
+    /**
+     * Todas as metricas, no mesmo texto enviado pela porta de administracao.
+     */
+    String getSummary();
+}